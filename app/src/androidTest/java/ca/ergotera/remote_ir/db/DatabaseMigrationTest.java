@@ -0,0 +1,154 @@
+package ca.ergotera.remote_ir.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static ca.ergotera.remote_ir.db.DatabaseManager.*;
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test of the database upgrades, which will execute on an Android device. The
+ * migrations run on an in-memory database, the database of the application is not touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseMigrationTest {
+
+    private static final String DATE = "2018-06-01T12:00:00Z";
+
+    private SQLiteDatabase db;
+    private DatabaseManager manager;
+
+    @Before
+    public void setUp() {
+        db = SQLiteDatabase.create(null);
+        manager = DatabaseManager.getInstance(InstrumentationRegistry.getTargetContext());
+        createVersion1();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsButtons() {
+        upgrade(1);
+
+        Cursor buttons = db.rawQuery("SELECT " + COL_ID + ", " + COL_BTN_NAME + ", " + COL_IR_SIGNAL + ", "
+                + COL_AUDIO_PATH + ", " + COL_IR_RAW_SIGNAL + " FROM " + BTN_TABLE_NAME + " ORDER BY " + COL_ID, null);
+        try {
+            assertEquals(3, buttons.getCount());
+            buttons.moveToFirst();
+            assertEquals(1, buttons.getInt(0));
+            assertEquals("Power", buttons.getString(1));
+            assertEquals("{codeLen:32,codeType:3,codeValue:16689239}", buttons.getString(2));
+            assertTrue(buttons.isNull(4));
+            buttons.moveToNext();
+            assertEquals("Hello", buttons.getString(1));
+            assertEquals("content://sounds/hello", buttons.getString(3));
+            buttons.moveToNext();
+            assertEquals(4, buttons.getInt(0));
+        } finally {
+            buttons.close();
+        }
+
+        // The rebuilt table accepts a button with only a raw signal
+        db.execSQL("INSERT INTO " + BTN_TABLE_NAME + " (" + COL_CREATION_DATE + ", " + COL_MODIF_DATE + ", "
+                + COL_BTN_NAME + ", " + COL_IR_RAW_SIGNAL + ") VALUES (?, ?, ?, ?)", new Object[]{DATE, DATE, "Raw", new byte[]{1}});
+    }
+
+    @Test
+    public void upgradeFromVersion1_movesInterfaceButtonsToJoinTable() {
+        upgrade(1);
+
+        assertArrayEquals(new int[]{4, 1, 2}, buttonsOf(1));
+        // Button 3 was removed before the upgrade, its id is dropped
+        assertArrayEquals(new int[]{2, 1}, buttonsOf(2));
+
+        Cursor interfaces = db.rawQuery("SELECT * FROM " + INTERFACE_TABLE_NAME, null);
+        try {
+            assertEquals(2, interfaces.getCount());
+            assertEquals(-1, interfaces.getColumnIndex(COL_INTERFACE_BUTTONS));
+        } finally {
+            interfaces.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion1_removingButtonRemovesItFromInterfaces() {
+        upgrade(1);
+
+        db.execSQL("DELETE FROM " + BTN_TABLE_NAME + " WHERE " + COL_ID + " = 1");
+        assertArrayEquals(new int[]{4, 2}, buttonsOf(1));
+        assertArrayEquals(new int[]{2}, buttonsOf(2));
+    }
+
+    private void upgrade(int oldVersion) {
+        manager.onConfigure(db);
+        db.beginTransaction();
+        try {
+            manager.onUpgrade(db, oldVersion, DB_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private int[] buttonsOf(int interfaceId) {
+        Cursor rows = db.rawQuery("SELECT " + COL_BUTTON_ID + " FROM " + INTERFACE_BTN_TABLE_NAME + " WHERE "
+                + COL_INTERFACE_ID + " = ? ORDER BY " + COL_POSITION, new String[]{Integer.toString(interfaceId)});
+        try {
+            int[] ids = new int[rows.getCount()];
+            for (int i = 0; rows.moveToNext(); i++)
+                ids[i] = rows.getInt(0);
+            return ids;
+        } finally {
+            rows.close();
+        }
+    }
+
+    // Schema and data of the first release, the button ids of an interface are comma separated
+    private void createVersion1() {
+        db.execSQL("CREATE TABLE " + BTN_TABLE_NAME + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + COL_CREATION_DATE + " TEXT NOT NULL,"
+                + COL_MODIF_DATE + " TEXT NOT NULL,"
+                + COL_BTN_NAME + " TEXT UNIQUE NOT NULL,"
+                + COL_IMAGE_PATH + " TEXT,"
+                + COL_AUDIO_PATH + " TEXT CHECK (" + COL_IR_SIGNAL + " IS NOT NULL OR " + COL_AUDIO_PATH + " IS NOT NULL),"
+                + COL_IR_SIGNAL + " TEXT CHECK (" + COL_AUDIO_PATH + " IS NOT NULL OR " + COL_IR_SIGNAL + " IS NOT NULL)"
+                + ")");
+        db.execSQL("CREATE TABLE " + INTERFACE_TABLE_NAME + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + COL_CREATION_DATE + " TEXT NOT NULL,"
+                + COL_MODIF_DATE + " TEXT NOT NULL,"
+                + COL_INTERFACE_NAME + " TEXT UNIQUE NOT NULL,"
+                + COL_INTERFACE_BUTTONS + " TEXT NOT NULL"
+                + ")");
+
+        insertButton(1, "Power", "{codeLen:32,codeType:3,codeValue:16689239}", null);
+        insertButton(2, "Hello", null, "content://sounds/hello");
+        insertButton(4, "Volume", "{codeLen:32,codeType:3,codeValue:16712445}", null);
+        insertInterface(1, "Living room", "4,1,2,");
+        insertInterface(2, "Kitchen", "2,3,1,");
+    }
+
+    private void insertButton(int id, String name, String signal, String audioPath) {
+        db.execSQL("INSERT INTO " + BTN_TABLE_NAME + " (" + COL_ID + ", " + COL_CREATION_DATE + ", " + COL_MODIF_DATE + ", "
+                + COL_BTN_NAME + ", " + COL_AUDIO_PATH + ", " + COL_IR_SIGNAL + ") VALUES (?, ?, ?, ?, ?, ?)",
+                new Object[]{id, DATE, DATE, name, audioPath, signal});
+    }
+
+    private void insertInterface(int id, String name, String buttonIds) {
+        db.execSQL("INSERT INTO " + INTERFACE_TABLE_NAME + " (" + COL_ID + ", " + COL_CREATION_DATE + ", " + COL_MODIF_DATE + ", "
+                + COL_INTERFACE_NAME + ", " + COL_INTERFACE_BUTTONS + ") VALUES (?, ?, ?, ?, ?)",
+                new Object[]{id, DATE, DATE, name, buttonIds});
+    }
+}
@@ -1,20 +1,23 @@
 package ca.ergotera.remote_ir.db;
 
-import android.app.Activity;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.widget.Toast;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import ca.ergotera.remote_ir.app.R;
 import ca.ergotera.remote_ir.utils.TimestampUtils;
 import ca.ergotera.remote_ir.utils.Utils;
 import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.models.RawIrCode;
 import ca.ergotera.remote_ir.models.VirtualButton;
 import ca.ergotera.remote_ir.models.VirtualInterface;
 
@@ -22,6 +25,10 @@ import ca.ergotera.remote_ir.models.VirtualInterface;
  * Class containing functions to store, access, modify and delete database
  * entries in the different SQLite tables.
  *
+ * One instance is shared by the whole application (see getInstance()) and the database stays
+ * open, in write-ahead logging mode so reads are not blocked by writes. The statements of the
+ * inserts, updates and removals are compiled once and reused.
+ *
  * @author Dominic Fournier (dominicfournier@outlook.com)
  * Copyright 2018, Ergotera Technologies, All rights reserved.
  */
@@ -30,6 +37,9 @@ public class DatabaseManager extends SQLiteOpenHelper {
     private static final String CLASS_ID = DatabaseManager.class.getSimpleName();
 
     public static final String DB_NAME = "REMOTE_IR.db";
+    // 2: raw IR signals (RawIrCode blobs) in the buttons table
+    // 3: buttons of the interfaces in a join table instead of a comma separated column
+    public static final int DB_VERSION = 3;
     public static final String COL_ID = "ID";
     public static final String COL_CREATION_DATE = "CREATION_DATE";
     public static final String COL_MODIF_DATE = "MODIFICATION_DATE";
@@ -41,69 +51,230 @@ public class DatabaseManager extends SQLiteOpenHelper {
     public static final String COL_IMAGE_PATH = "IMAGE_PATH";
     public static final String COL_AUDIO_PATH = "AUDIO_PATH";
     public static final String COL_IR_SIGNAL = "IR_SIGNAL";
+    public static final String COL_IR_RAW_SIGNAL = "IR_RAW_SIGNAL";
 
     // Interfaces table
     public static final String INTERFACE_TABLE_NAME = "INTERFACES_TABLE";
     // First column is an autoincrement ID column.
     public static final String COL_INTERFACE_NAME = "INTERFACE_NAME";
+    // Comma separated button ids up to version 2, see INTERFACE_BTN_TABLE_NAME
     public static final String COL_INTERFACE_BUTTONS = "INTERFACE_BUTTONS";
 
+    // Interface buttons join table, one row per button of an interface
+    public static final String INTERFACE_BTN_TABLE_NAME = "INTERFACE_BUTTONS_TABLE";
+    public static final String COL_INTERFACE_ID = "INTERFACE_ID";
+    public static final String COL_BUTTON_ID = "BUTTON_ID";
+    public static final String COL_POSITION = "POSITION"; // Order of the button in the interface
+
+    private static DatabaseManager instance;
+
     private SQLiteDatabase db;
 
-    private Activity activityContext;
+    // Statements compiled when the database is opened, guarded by this
+    private SQLiteStatement insertButtonStmt;
+    private SQLiteStatement updateButtonStmt;
+    private SQLiteStatement deleteButtonStmt;
+    private SQLiteStatement insertInterfaceStmt;
+    private SQLiteStatement updateInterfaceStmt;
+    private SQLiteStatement deleteInterfaceStmt;
+    private SQLiteStatement insertInterfaceButtonStmt;
+    private SQLiteStatement deleteInterfaceButtonsStmt;
+
+    private DatabaseManager(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Returns the database manager of the application. The database is opened by open(), which
+     * Repository calls on its background thread: the disk is never touched from the main thread.
+     *
+     * @param context any context, the application context is kept.
+     */
+    public static synchronized DatabaseManager getInstance(Context context) {
+        if (instance == null)
+            instance = new DatabaseManager(context.getApplicationContext());
+        return instance;
+    }
 
-    public DatabaseManager(Context context) {
-        super(context, DB_NAME, null, 1);
-        activityContext = (Activity) context;
-        this.open();
+    /**
+     * Removing a button or an interface removes it from the join table.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
 
-        SQLiteStatement createBtnTableStmt = db.compileStatement("CREATE TABLE "
-                + BTN_TABLE_NAME + " ("
-                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
-                + COL_CREATION_DATE + " TEXT NOT NULL,"
-                + COL_MODIF_DATE + " TEXT NOT NULL,"
-                + COL_BTN_NAME + " TEXT UNIQUE NOT NULL,"
-                + COL_IMAGE_PATH + " TEXT,"
-                + COL_AUDIO_PATH + " TEXT CHECK (" + COL_IR_SIGNAL + " IS NOT NULL OR " + COL_AUDIO_PATH + " IS NOT NULL),"
-                + COL_IR_SIGNAL + " TEXT CHECK (" + COL_AUDIO_PATH + " IS NOT NULL OR " + COL_IR_SIGNAL + " IS NOT NULL)"
-                + ")");
-        createBtnTableStmt.execute();
+        createButtonTable(db, BTN_TABLE_NAME);
+        createInterfaceTable(db, INTERFACE_TABLE_NAME);
+        createInterfaceButtonTable(db);
+    }
+
+    /**
+     * Migrates the tables one version at a time, keeping the buttons and interfaces. Runs in
+     * the transaction of the upgrade.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // The checks requiring a signal or a sound change, so the table is rebuilt
+            String oldColumns = COL_ID + ", " + COL_CREATION_DATE + ", " + COL_MODIF_DATE + ", "
+                    + COL_BTN_NAME + ", " + COL_IMAGE_PATH + ", " + COL_AUDIO_PATH + ", " + COL_IR_SIGNAL;
+            createButtonTable(db, BTN_TABLE_NAME + "_V2");
+            db.execSQL("INSERT INTO " + BTN_TABLE_NAME + "_V2 (" + oldColumns + ") SELECT " + oldColumns
+                    + " FROM " + BTN_TABLE_NAME);
+            db.execSQL("DROP TABLE " + BTN_TABLE_NAME);
+            db.execSQL("ALTER TABLE " + BTN_TABLE_NAME + "_V2 RENAME TO " + BTN_TABLE_NAME);
+            Logger.Info(CLASS_ID, "Migrated the buttons table to version 2.");
+        }
+        if (oldVersion < 3) {
+            // The button ids are read before the interfaces table is rebuilt without their column
+            List<int[]> interfaceButtons = new ArrayList<>();
+            Cursor old = db.rawQuery("SELECT " + COL_ID + ", " + COL_INTERFACE_BUTTONS + " FROM " + INTERFACE_TABLE_NAME, null);
+            try {
+                while (old.moveToNext()) {
+                    String strBtnIds = old.getString(1);
+                    if (strBtnIds != null && !strBtnIds.equals("")) {
+                        int[] btnIds = Utils.convertStrArrayToIntArray(strBtnIds);
+                        int[] row = Arrays.copyOf(btnIds, btnIds.length + 1);
+                        row[btnIds.length] = old.getInt(0); // Interface id last
+                        interfaceButtons.add(row);
+                    }
+                }
+            } finally {
+                old.close();
+            }
+
+            String columns = COL_ID + ", " + COL_CREATION_DATE + ", " + COL_MODIF_DATE + ", " + COL_INTERFACE_NAME;
+            createInterfaceTable(db, INTERFACE_TABLE_NAME + "_V3");
+            db.execSQL("INSERT INTO " + INTERFACE_TABLE_NAME + "_V3 (" + columns + ") SELECT " + columns
+                    + " FROM " + INTERFACE_TABLE_NAME);
+            db.execSQL("DROP TABLE " + INTERFACE_TABLE_NAME);
+            db.execSQL("ALTER TABLE " + INTERFACE_TABLE_NAME + "_V3 RENAME TO " + INTERFACE_TABLE_NAME);
+            createInterfaceButtonTable(db);
+
+            // Ids of buttons removed since are dropped
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + INTERFACE_BTN_TABLE_NAME + " ("
+                    + COL_INTERFACE_ID + ", " + COL_BUTTON_ID + ", " + COL_POSITION + ") SELECT ?, ?, ? WHERE EXISTS (SELECT 1 FROM "
+                    + BTN_TABLE_NAME + " WHERE " + COL_ID + " = ?)");
+            for (int[] row : interfaceButtons) {
+                int interfaceId = row[row.length - 1];
+                for (int position = 0; position < row.length - 1; position++) {
+                    insert.bindLong(1, interfaceId);
+                    insert.bindLong(2, row[position]);
+                    insert.bindLong(3, position);
+                    insert.bindLong(4, row[position]);
+                    insert.executeInsert();
+                }
+            }
+            insert.close();
+            Logger.Info(CLASS_ID, "Migrated the interfaces table to version 3.");
+        }
+    }
 
+    private void createInterfaceTable(SQLiteDatabase db, String tableName) {
         SQLiteStatement createInterfaceTableStmt = db.compileStatement("CREATE TABLE "
-                + INTERFACE_TABLE_NAME + " ("
+                + tableName + " ("
                 + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
                 + COL_CREATION_DATE + " TEXT NOT NULL,"
                 + COL_MODIF_DATE + " TEXT NOT NULL,"
-                + COL_INTERFACE_NAME + " TEXT UNIQUE NOT NULL,"
-                + COL_INTERFACE_BUTTONS + " TEXT NOT NULL"
+                + COL_INTERFACE_NAME + " TEXT UNIQUE NOT NULL"
                 + ")");
         createInterfaceTableStmt.execute();
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + BTN_TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + INTERFACE_TABLE_NAME);
-        onCreate(db);
+    /**
+     * Join table of the interfaces and their buttons, indexed both ways: the buttons of an
+     * interface in order, and the interfaces using a button.
+     */
+    private void createInterfaceButtonTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + INTERFACE_BTN_TABLE_NAME + " ("
+                + COL_INTERFACE_ID + " INTEGER NOT NULL REFERENCES " + INTERFACE_TABLE_NAME + "(" + COL_ID + ") ON DELETE CASCADE,"
+                + COL_BUTTON_ID + " INTEGER NOT NULL REFERENCES " + BTN_TABLE_NAME + "(" + COL_ID + ") ON DELETE CASCADE,"
+                + COL_POSITION + " INTEGER NOT NULL"
+                + ")");
+        db.execSQL("CREATE UNIQUE INDEX IDX_" + INTERFACE_BTN_TABLE_NAME + "_" + COL_INTERFACE_ID + " ON "
+                + INTERFACE_BTN_TABLE_NAME + " (" + COL_INTERFACE_ID + ", " + COL_POSITION + ")");
+        db.execSQL("CREATE INDEX IDX_" + INTERFACE_BTN_TABLE_NAME + "_" + COL_BUTTON_ID + " ON "
+                + INTERFACE_BTN_TABLE_NAME + " (" + COL_BUTTON_ID + ")");
+    }
+
+    private void createButtonTable(SQLiteDatabase db, String tableName) {
+        String hasSignalOrSound = " CHECK (" + COL_AUDIO_PATH + " IS NOT NULL OR " + COL_IR_SIGNAL + " IS NOT NULL OR "
+                + COL_IR_RAW_SIGNAL + " IS NOT NULL)";
+        SQLiteStatement createBtnTableStmt = db.compileStatement("CREATE TABLE "
+                + tableName + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + COL_CREATION_DATE + " TEXT NOT NULL,"
+                + COL_MODIF_DATE + " TEXT NOT NULL,"
+                + COL_BTN_NAME + " TEXT UNIQUE NOT NULL,"
+                + COL_IMAGE_PATH + " TEXT,"
+                + COL_AUDIO_PATH + " TEXT" + hasSignalOrSound + ","
+                + COL_IR_SIGNAL + " TEXT" + hasSignalOrSound + ","
+                + COL_IR_RAW_SIGNAL + " BLOB" + hasSignalOrSound
+                + ")");
+        createBtnTableStmt.execute();
     }
 
     /**
-     * Opens database stream.
+     * Opens database stream and compiles the statements, if not done yet.
      */
-    public void open() {
+    public synchronized void open() {
+        if (db != null)
+            return;
         db = this.getWritableDatabase();
+        // Fields not set (null) keep their value on update
+        insertButtonStmt = db.compileStatement("INSERT INTO " + BTN_TABLE_NAME + " ("
+                + COL_CREATION_DATE + ", " + COL_MODIF_DATE + ", " + COL_BTN_NAME + ", " + COL_IMAGE_PATH + ", "
+                + COL_AUDIO_PATH + ", " + COL_IR_SIGNAL + ", " + COL_IR_RAW_SIGNAL + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        updateButtonStmt = db.compileStatement("UPDATE " + BTN_TABLE_NAME + " SET "
+                + COL_MODIF_DATE + " = ?, "
+                + COL_BTN_NAME + " = COALESCE(?, " + COL_BTN_NAME + "), "
+                + COL_IMAGE_PATH + " = COALESCE(?, " + COL_IMAGE_PATH + "), "
+                + COL_AUDIO_PATH + " = COALESCE(?, " + COL_AUDIO_PATH + "), "
+                + COL_IR_SIGNAL + " = COALESCE(?, " + COL_IR_SIGNAL + "), "
+                + COL_IR_RAW_SIGNAL + " = COALESCE(?, " + COL_IR_RAW_SIGNAL + ")"
+                + " WHERE " + COL_ID + " = ?");
+        deleteButtonStmt = db.compileStatement("DELETE FROM " + BTN_TABLE_NAME + " WHERE " + COL_ID + " = ?");
+        insertInterfaceStmt = db.compileStatement("INSERT INTO " + INTERFACE_TABLE_NAME + " ("
+                + COL_CREATION_DATE + ", " + COL_MODIF_DATE + ", " + COL_INTERFACE_NAME + ") VALUES (?, ?, ?)");
+        updateInterfaceStmt = db.compileStatement("UPDATE " + INTERFACE_TABLE_NAME + " SET "
+                + COL_MODIF_DATE + " = ?, "
+                + COL_INTERFACE_NAME + " = COALESCE(?, " + COL_INTERFACE_NAME + ")"
+                + " WHERE " + COL_ID + " = ?");
+        deleteInterfaceStmt = db.compileStatement("DELETE FROM " + INTERFACE_TABLE_NAME + " WHERE " + COL_ID + " = ?");
+        insertInterfaceButtonStmt = db.compileStatement("INSERT INTO " + INTERFACE_BTN_TABLE_NAME + " ("
+                + COL_INTERFACE_ID + ", " + COL_BUTTON_ID + ", " + COL_POSITION + ") VALUES (?, ?, ?)");
+        deleteInterfaceButtonsStmt = db.compileStatement("DELETE FROM " + INTERFACE_BTN_TABLE_NAME
+                + " WHERE " + COL_INTERFACE_ID + " = ?");
     }
 
     /**
-     * Closes database stream.
+     * Closes database stream. The next getInstance() returns a new manager, the application does
+     * not need to close it.
      */
+    @Override
     public void close() {
-        if (db != null) {
-            db.close();
+        synchronized (DatabaseManager.class) {
+            if (instance == this)
+                instance = null;
+        }
+        synchronized (this) {
+            if (db != null) {
+                insertButtonStmt.close();
+                updateButtonStmt.close();
+                deleteButtonStmt.close();
+                insertInterfaceStmt.close();
+                updateInterfaceStmt.close();
+                deleteInterfaceStmt.close();
+                insertInterfaceButtonStmt.close();
+                deleteInterfaceButtonsStmt.close();
+                db.close();
+                db = null;
+            }
         }
     }
 
@@ -115,24 +286,22 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * Runs the SQL command to add the button to the buttons's table in the database.
      *
      * @param btn virtual button model to add to the buttons database.
+     * @return the id of the new button.
      * @throws SQLiteException
      */
-    public void addButton(VirtualButton btn) throws SQLiteException {
+    public synchronized int addButton(VirtualButton btn) throws SQLiteException {
+        int id = VirtualButton.NO_ID;
         try {
-            ContentValues cv = new ContentValues();
             String dateTime = TimestampUtils.getISO8601StringForCurrentDate();
-            cv.put(COL_CREATION_DATE, dateTime);
-            cv.put(COL_MODIF_DATE, dateTime);
-            if (btn.getName() != null) {
-                if(!btn.getName().equals("")) cv.put(COL_BTN_NAME, btn.getName());
-            }
-            if (btn.getImagePath() != null) cv.put(COL_IMAGE_PATH, btn.getImagePath().toString());
-            if (btn.getAudioPath() != null) cv.put(COL_AUDIO_PATH, btn.getAudioPath().toString());
-            if (btn.getSignal() != null) cv.put(COL_IR_SIGNAL, btn.getSignal());
-            db.insertOrThrow(BTN_TABLE_NAME, null, cv);
+            insertButtonStmt.clearBindings();
+            insertButtonStmt.bindString(1, dateTime);
+            insertButtonStmt.bindString(2, dateTime);
+            bindButtonFields(insertButtonStmt, 3, btn);
+            id = (int) insertButtonStmt.executeInsert();
         } catch (SQLiteException e) {
             logButtonSQLiteExceptionAndThrow(e);
         }
+        return id;
     }
 
     /**
@@ -142,28 +311,60 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @return the retrieved VirtualButton object or null if no button was found.
      */
     public VirtualButton getButton(int id) {
+        Cursor dbButton = null;
         try {
-            Cursor dbButton = this.getEntryWithId(BTN_TABLE_NAME, id);
-            if (dbButton == null)
-                return null;
+            dbButton = db.rawQuery(SELECT_BUTTONS + " WHERE " + COL_ID + " = ?", new String[]{Integer.toString(id)});
             if (!dbButton.moveToFirst())
                 return null;
-            String creationDate = dbButton.getString(dbButton.getColumnIndexOrThrow(COL_CREATION_DATE));
-            String modificationDate = dbButton.getString(dbButton.getColumnIndexOrThrow(COL_MODIF_DATE));
-            String name = dbButton.getString(dbButton.getColumnIndexOrThrow(COL_BTN_NAME));
-            String imgPath = dbButton.getString(dbButton.getColumnIndexOrThrow(COL_IMAGE_PATH));
-            Uri parsedImgPath = null;
-            if(imgPath != null)  parsedImgPath = Uri.parse(imgPath);
-            String audioPath = dbButton.getString(dbButton.getColumnIndexOrThrow(COL_AUDIO_PATH));
-            Uri parsedAudioPath = null;
-            if(audioPath != null) parsedAudioPath = Uri.parse(audioPath);
-            String signal = dbButton.getString(dbButton.getColumnIndexOrThrow(COL_IR_SIGNAL));
-            return new VirtualButton(id, creationDate, modificationDate, name, parsedImgPath, parsedAudioPath, signal);
+            return readButton(dbButton);
         } catch (Exception e) {
             Logger.Error(CLASS_ID, e.getMessage());
-            Toast.makeText(activityContext, activityContext.getString(R.string.error_database_get_button), Toast.LENGTH_LONG).show();
             return null;
+        } finally {
+            if (dbButton != null)
+                dbButton.close();
+        }
+    }
+
+    /**
+     * Runs the SQL commands to retrieve the buttons with the given IDs from the buttons's table,
+     * in as few queries as possible (one for up to MAX_IDS_PER_QUERY distinct ids).
+     *
+     * @param ids of the buttons to retrieve from the database, an id can be repeated.
+     * @return the retrieved VirtualButton objects in the order of ids, null for the ids of
+     * buttons not found.
+     */
+    public VirtualButton[] getButtons(int[] ids) {
+        VirtualButton[] buttons = new VirtualButton[ids.length];
+        SparseArray<VirtualButton> found = new SparseArray<>(ids.length);
+        int[] distinctIds = distinct(ids);
+        Cursor dbButtons = null;
+        try {
+            for (int from = 0; from < distinctIds.length; from += MAX_IDS_PER_QUERY) {
+                int count = Math.min(MAX_IDS_PER_QUERY, distinctIds.length - from);
+                StringBuilder sql = new StringBuilder(SELECT_BUTTONS).append(" WHERE ").append(COL_ID).append(" IN (");
+                String[] args = new String[count];
+                for (int i = 0; i < count; i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                    args[i] = Integer.toString(distinctIds[from + i]);
+                }
+                dbButtons = db.rawQuery(sql.append(')').toString(), args);
+                while (dbButtons.moveToNext()) {
+                    VirtualButton button = readButton(dbButtons);
+                    found.put(button.getId(), button);
+                }
+                dbButtons.close();
+                dbButtons = null;
+            }
+        } catch (Exception e) {
+            Logger.Error(CLASS_ID, e.getMessage());
+        } finally {
+            if (dbButtons != null)
+                dbButtons.close();
         }
+        for (int i = 0; i < ids.length; i++)
+            buttons[i] = found.get(ids[i]);
+        return buttons;
     }
 
     /**
@@ -172,17 +373,13 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @param btn virtual button model to add to the database.
      * @throws SQLiteException
      */
-    public void updateButton(VirtualButton btn) throws SQLiteException {
+    public synchronized void updateButton(VirtualButton btn) throws SQLiteException {
         try {
-            ContentValues cv = new ContentValues();
-            cv.put(COL_MODIF_DATE, TimestampUtils.getISO8601StringForCurrentDate());
-            if (btn.getName() != null) {
-                if(!btn.getName().equals("")) cv.put(COL_BTN_NAME, btn.getName());
-            }
-            if (btn.getImagePath() != null) cv.put(COL_IMAGE_PATH, btn.getImagePath().toString());
-            if (btn.getAudioPath() != null) cv.put(COL_AUDIO_PATH, btn.getAudioPath().toString());
-            if (btn.getSignal() != null) cv.put(COL_IR_SIGNAL, btn.getSignal());
-            db.update(BTN_TABLE_NAME, cv, "ID = ?", new String[]{Integer.toString(btn.getId())});
+            updateButtonStmt.clearBindings();
+            updateButtonStmt.bindString(1, TimestampUtils.getISO8601StringForCurrentDate());
+            bindButtonFields(updateButtonStmt, 2, btn);
+            updateButtonStmt.bindLong(7, btn.getId());
+            updateButtonStmt.executeUpdateDelete();
         } catch (SQLiteException e) {
             logButtonSQLiteExceptionAndThrow(e);
         }
@@ -195,13 +392,23 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @return true if succeeded, false otherwise.
      */
     public boolean removeButton(int id) {
-        boolean success = this.removeEntryWithId(BTN_TABLE_NAME, id);
-        if (success) {
-            return true;
-        } else {
-            Toast.makeText(activityContext, activityContext.getString(R.string.error_database_remove_button), Toast.LENGTH_LONG).show();
-            return false;
-        }
+        return this.removeEntryWithId(deleteButtonStmt, id);
+    }
+
+    /**
+     * Binds the name, image, sound, signal and raw signal of the button from index on, null for
+     * the fields not set.
+     */
+    private static void bindButtonFields(SQLiteStatement stmt, int index, VirtualButton btn) {
+        String name = btn.getName();
+        bindStringOrNull(stmt, index, name != null && !name.equals("") ? name : null);
+        bindStringOrNull(stmt, index + 1, btn.getImagePath() != null ? btn.getImagePath().toString() : null);
+        bindStringOrNull(stmt, index + 2, btn.getAudioPath() != null ? btn.getAudioPath().toString() : null);
+        bindStringOrNull(stmt, index + 3, btn.getSignal());
+        if (btn.getRawSignal() != null)
+            stmt.bindBlob(index + 4, btn.getRawSignal().toBlob());
+        else
+            stmt.bindNull(index + 4);
     }
 
     private void logButtonSQLiteExceptionAndThrow(SQLiteException e){
@@ -238,22 +445,32 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * Runs the SQL command to add the interface to the interfaces's table in the database.
      *
      * @param vinterface virtual interface model to add to the database.
+     * @return the id of the new interface.
      */
-    public void addInterface(VirtualInterface vinterface) throws SQLiteException{
+    public synchronized int addInterface(VirtualInterface vinterface) throws SQLiteException{
+        int id = VirtualInterface.NO_ID;
         try {
-            ContentValues cv = new ContentValues();
+            // An interface needs buttons, as when they were a NOT NULL column
+            if (vinterface.getButtonIds() == null || vinterface.getButtonIds().length == 0)
+                throw new SQLiteConstraintException("NOT NULL constraint failed: " + INTERFACE_TABLE_NAME + "." + COL_INTERFACE_BUTTONS);
             String dateTime = TimestampUtils.getISO8601StringForCurrentDate();
-            cv.put(COL_CREATION_DATE, dateTime);
-            cv.put(COL_MODIF_DATE, dateTime);
-            if (vinterface.getName() != null) {
-                if(!vinterface.getName().equals("")) cv.put(COL_INTERFACE_NAME, vinterface.getName());
+            String name = vinterface.getName();
+            db.beginTransaction();
+            try {
+                insertInterfaceStmt.clearBindings();
+                insertInterfaceStmt.bindString(1, dateTime);
+                insertInterfaceStmt.bindString(2, dateTime);
+                bindStringOrNull(insertInterfaceStmt, 3, name != null && !name.equals("") ? name : null);
+                id = (int) insertInterfaceStmt.executeInsert();
+                insertInterfaceButtons(id, vinterface.getButtonIds());
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-            if (vinterface.getButtonIds() != null && vinterface.getButtonIds().length > 0)
-                cv.put(COL_INTERFACE_BUTTONS, Utils.convertIntArrayToString(vinterface.getButtonIds()));
-            db.insertOrThrow(INTERFACE_TABLE_NAME, null, cv);
         } catch (SQLiteException e) {
             logInterfaceSQLiteExceptionAndThrow(e);
         }
+        return id;
     }
 
     /**
@@ -265,21 +482,19 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @return the retrieved VirtualInterface object or null if no interface was found.
      */
     public VirtualInterface getInterface(int id) {
+        Cursor dbInterface = null;
         try {
-            Cursor dbInterface = this.getEntryWithId(INTERFACE_TABLE_NAME, id);
-            if (dbInterface == null)
-                return null;
+            dbInterface = db.rawQuery(SELECT_INTERFACES + " WHERE i." + COL_ID + " = ?" + ORDER_INTERFACES,
+                    new String[]{Integer.toString(id)});
             if (!dbInterface.moveToFirst()) //this will move the cursor to the first element
                 return null;
-            String creationDate = dbInterface.getString(dbInterface.getColumnIndexOrThrow(COL_CREATION_DATE));
-            String modificationDate = dbInterface.getString(dbInterface.getColumnIndexOrThrow(COL_MODIF_DATE));
-            String name = dbInterface.getString(dbInterface.getColumnIndexOrThrow(COL_INTERFACE_NAME));
-            String strBtnIds = dbInterface.getString(dbInterface.getColumnIndexOrThrow(COL_INTERFACE_BUTTONS));
-            return new VirtualInterface(id, creationDate, modificationDate, name, Utils.convertStrArrayToIntArray(strBtnIds));
+            return readInterface(dbInterface);
         } catch (Exception e) {
             Logger.Error(CLASS_ID, e.getMessage());
-            Toast.makeText(activityContext, activityContext.getString(R.string.error_database_get_interface), Toast.LENGTH_LONG).show();
             return null;
+        } finally {
+            if (dbInterface != null)
+                dbInterface.close();
         }
     }
 
@@ -289,16 +504,26 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @param vinterface virtual interface model to add to the database.
      * @throws SQLiteException
      */
-    public void updateInterface(VirtualInterface vinterface) throws SQLiteException{
+    public synchronized void updateInterface(VirtualInterface vinterface) throws SQLiteException{
         try {
-            ContentValues cv = new ContentValues();
-            cv.put(COL_MODIF_DATE, TimestampUtils.getISO8601StringForCurrentDate());
-            if (vinterface.getName() != null) {
-                if(!vinterface.getName().equals("")) cv.put(COL_INTERFACE_NAME, vinterface.getName());
+            String name = vinterface.getName();
+            db.beginTransaction();
+            try {
+                updateInterfaceStmt.clearBindings();
+                updateInterfaceStmt.bindString(1, TimestampUtils.getISO8601StringForCurrentDate());
+                bindStringOrNull(updateInterfaceStmt, 2, name != null && !name.equals("") ? name : null);
+                updateInterfaceStmt.bindLong(3, vinterface.getId());
+                updateInterfaceStmt.executeUpdateDelete();
+                // Buttons not set keep their value
+                if (vinterface.getButtonIds() != null) {
+                    deleteInterfaceButtonsStmt.bindLong(1, vinterface.getId());
+                    deleteInterfaceButtonsStmt.executeUpdateDelete();
+                    insertInterfaceButtons(vinterface.getId(), vinterface.getButtonIds());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-            if (vinterface.getButtonIds().equals("")) vinterface.setButtonIds(null);
-            if (vinterface.getButtonIds() != null) cv.put(COL_INTERFACE_BUTTONS, Utils.convertIntArrayToString(vinterface.getButtonIds()));
-            db.update(INTERFACE_TABLE_NAME, cv, "ID = ?", new String[]{Integer.toString(vinterface.getId())});
         } catch (SQLiteException e) {
             logInterfaceSQLiteExceptionAndThrow(e);
         }
@@ -311,18 +536,130 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @return true if succeeded, false otherwise.
      */
     public boolean removeInterface(int id) {
-        boolean success = this.removeEntryWithId(INTERFACE_TABLE_NAME, id);
-        if (success) {
-            return true;
-        } else {
-            Toast.makeText(activityContext, activityContext.getString(R.string.error_database_remove_interface), Toast.LENGTH_LONG).show();
-            return false;
+        return this.removeEntryWithId(deleteInterfaceStmt, id);
+    }
+
+    /**
+     * Runs the SQL command to retrieve every interface with its buttons, in one query.
+     *
+     * @return the interfaces, by id, or null if they could not be read.
+     */
+    public VirtualInterface[] getAllInterfaces() {
+        List<VirtualInterface> interfaces = new ArrayList<>();
+        Cursor dbInterfaces = null;
+        try {
+            dbInterfaces = db.rawQuery(SELECT_INTERFACES + ORDER_INTERFACES, null);
+            if (dbInterfaces.moveToFirst()) {
+                while (!dbInterfaces.isAfterLast())
+                    interfaces.add(readInterface(dbInterfaces));
+            }
+        } catch (Exception e) {
+            Logger.Error(CLASS_ID, e.getMessage());
+            return null;
+        } finally {
+            if (dbInterfaces != null)
+                dbInterfaces.close();
+        }
+        return interfaces.toArray(new VirtualInterface[interfaces.size()]);
+    }
+
+    /**
+     * Runs the SQL command to retrieve every button.
+     *
+     * @return the buttons, by id, or null if they could not be read.
+     */
+    public VirtualButton[] getAllButtons() {
+        List<VirtualButton> buttons = new ArrayList<>();
+        Cursor dbButtons = null;
+        try {
+            dbButtons = db.rawQuery(SELECT_BUTTONS + " ORDER BY " + COL_ID, null);
+            while (dbButtons.moveToNext())
+                buttons.add(readButton(dbButtons));
+        } catch (Exception e) {
+            Logger.Error(CLASS_ID, e.getMessage());
+            return null;
+        } finally {
+            if (dbButtons != null)
+                dbButtons.close();
+        }
+        return buttons.toArray(new VirtualButton[buttons.size()]);
+    }
+
+    // Under the default limit of 999 variables per statement of SQLite
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    // Columns of the buttons in the order read by readButton, so no index has to be looked up
+    private static final String SELECT_BUTTONS = "SELECT " + COL_ID + ", " + COL_CREATION_DATE + ", "
+            + COL_MODIF_DATE + ", " + COL_BTN_NAME + ", " + COL_IMAGE_PATH + ", " + COL_AUDIO_PATH + ", "
+            + COL_IR_SIGNAL + ", " + COL_IR_RAW_SIGNAL + " FROM " + BTN_TABLE_NAME;
+
+    /**
+     * Reads the button of the current row of a SELECT_BUTTONS cursor.
+     */
+    private static VirtualButton readButton(Cursor cursor) {
+        String imgPath = cursor.getString(4);
+        String audioPath = cursor.getString(5);
+        VirtualButton button = new VirtualButton(cursor.getInt(0), cursor.getString(1), cursor.getString(2),
+                cursor.getString(3), imgPath != null ? Uri.parse(imgPath) : null,
+                audioPath != null ? Uri.parse(audioPath) : null, cursor.getString(6));
+        byte[] rawSignal = cursor.getBlob(7);
+        if (rawSignal != null) {
+            try {
+                button.setRawSignal(RawIrCode.fromBlob(rawSignal));
+            } catch (IllegalArgumentException e) {
+                // The button is still usable through its decoded signal, if any
+                Logger.Error(CLASS_ID, "Ignored the raw signal of button " + button.getId() + ": " + e.getMessage());
+            }
+        }
+        return button;
+    }
+
+    private static int[] distinct(int[] ids) {
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                sorted[count++] = sorted[i];
         }
+        return Arrays.copyOf(sorted, count);
     }
 
-    public Cursor getAllDataFromTable(String tableName) {
-        Cursor response = db.rawQuery("SELECT * FROM " + tableName, null);
-        return response;
+    // Interfaces with the ids of their buttons, one row per button (a single row without button)
+    private static final String SELECT_INTERFACES = "SELECT i." + COL_ID + ", i." + COL_CREATION_DATE + ", i."
+            + COL_MODIF_DATE + ", i." + COL_INTERFACE_NAME + ", j." + COL_BUTTON_ID
+            + " FROM " + INTERFACE_TABLE_NAME + " i LEFT JOIN " + INTERFACE_BTN_TABLE_NAME + " j ON j."
+            + COL_INTERFACE_ID + " = i." + COL_ID;
+    private static final String ORDER_INTERFACES = " ORDER BY i." + COL_ID + ", j." + COL_POSITION;
+
+    /**
+     * Reads the interface of the current row of a SELECT_INTERFACES cursor, and its buttons from
+     * the rows which follow. The cursor is left on the first row of the next interface.
+     */
+    private static VirtualInterface readInterface(Cursor cursor) {
+        int id = cursor.getInt(0);
+        String creationDate = cursor.getString(1);
+        String modificationDate = cursor.getString(2);
+        String name = cursor.getString(3);
+        int[] btnIds = new int[8];
+        int count = 0;
+        do {
+            if (!cursor.isNull(4)) {
+                if (count == btnIds.length)
+                    btnIds = Arrays.copyOf(btnIds, count * 2);
+                btnIds[count++] = cursor.getInt(4);
+            }
+        } while (cursor.moveToNext() && cursor.getInt(0) == id);
+        return new VirtualInterface(id, creationDate, modificationDate, name, Arrays.copyOf(btnIds, count));
+    }
+
+    private void insertInterfaceButtons(long interfaceId, int[] btnIds) {
+        for (int position = 0; position < btnIds.length; position++) {
+            insertInterfaceButtonStmt.bindLong(1, interfaceId);
+            insertInterfaceButtonStmt.bindLong(2, btnIds[position]);
+            insertInterfaceButtonStmt.bindLong(3, position);
+            insertInterfaceButtonStmt.executeInsert();
+        }
     }
 
     private void logInterfaceSQLiteExceptionAndThrow(SQLiteException e){
@@ -355,35 +692,17 @@ public class DatabaseManager extends SQLiteOpenHelper {
     // Utility functions ---------------------------------------------------------------------------
     // ---------------------------------------------------------------------------------------------
 
-    /**
-     * Returns the entry from the given table with the given ID.
-     *
-     * @param table to retrieve the element from.
-     * @param id    to retrieve.
-     * @return Cursor of the retrieved database object.
-     */
-    private Cursor getEntryWithId(String table, int id) {
-        try {
-            Cursor response = db.rawQuery("SELECT * FROM " + table + " WHERE " + COL_ID + " = "
-                    + "?", new String[]{Integer.toString(id)});
-            return response;
-        } catch (Exception e) {
-            Logger.Error(CLASS_ID, e.getMessage());
-            return null;
-        }
-    }
-
     /**
      * General form of the remove with ID function.
      *
-     * @param table table targeted by the removal.
-     * @param id    targeted by the removal.
+     * @param delStmt compiled removal of the targeted table.
+     * @param id      targeted by the removal.
      * @return true if succeeded, false otherwise.
      */
-    private boolean removeEntryWithId(String table, int id) {
+    private synchronized boolean removeEntryWithId(SQLiteStatement delStmt, int id) {
         try {
-            SQLiteStatement delStmt = db.compileStatement("DELETE FROM " + table + " WHERE " + COL_ID + " = " + id);
-            delStmt.execute();
+            delStmt.bindLong(1, id);
+            delStmt.executeUpdateDelete();
             return true;
         } catch (Exception e) {
             Logger.Error(CLASS_ID, e.getMessage());
@@ -391,6 +710,13 @@ public class DatabaseManager extends SQLiteOpenHelper {
         }
     }
 
+    private static void bindStringOrNull(SQLiteStatement stmt, int index, String value) {
+        if (value != null)
+            stmt.bindString(index, value);
+        else
+            stmt.bindNull(index);
+    }
+
     public SQLiteDatabase getDb() {
         return db;
     }
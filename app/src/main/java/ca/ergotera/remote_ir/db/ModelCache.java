@@ -0,0 +1,149 @@
+package ca.ergotera.remote_ir.db;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.ergotera.remote_ir.models.VirtualButton;
+import ca.ergotera.remote_ir.models.VirtualInterface;
+
+/**
+ * Buttons and interfaces already read from the database, by id. The Repository keeps it in step
+ * with every write it does (write-through), so each table is read from SQLite once per process.
+ *
+ * Models are copied in and out: screens modify the models they edit, and their changes must not
+ * reach the cache before they are saved. Only used on the thread of the Repository, it is not
+ * synchronized.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+final class ModelCache {
+
+    private final SparseArray<VirtualButton> buttons = new SparseArray<>();
+    private final SparseArray<VirtualInterface> interfaces = new SparseArray<>();
+    // Whether every row of the table is cached, an id missing then does not exist
+    private boolean allButtons;
+    private boolean allInterfaces;
+
+    // Buttons =====================================================================================
+
+    boolean hasAllButtons() {
+        return allButtons;
+    }
+
+    /**
+     * @return a copy of the button, or null if it is not cached.
+     */
+    VirtualButton getButton(int id) {
+        VirtualButton btn = buttons.get(id);
+        return btn != null ? new VirtualButton(btn) : null;
+    }
+
+    /**
+     * @return copies of every button cached, by id.
+     */
+    VirtualButton[] getAllButtons() {
+        VirtualButton[] all = new VirtualButton[buttons.size()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = new VirtualButton(buttons.valueAt(i)); // SparseArray keys are sorted
+        return all;
+    }
+
+    void putButton(VirtualButton btn) {
+        buttons.put(btn.getId(), new VirtualButton(btn));
+    }
+
+    /**
+     * Replaces the cached buttons with every button of the table.
+     */
+    void putAllButtons(VirtualButton[] all) {
+        buttons.clear();
+        for (VirtualButton btn : all)
+            putButton(btn);
+        allButtons = true;
+    }
+
+    /**
+     * Removes the button, and its id from the cached interfaces, as the database does.
+     *
+     * @return copies of the interfaces which contained the button.
+     */
+    List<VirtualInterface> removeButton(int id) {
+        buttons.remove(id);
+        List<VirtualInterface> changed = new ArrayList<>();
+        for (int i = 0; i < interfaces.size(); i++) {
+            VirtualInterface vinterface = interfaces.valueAt(i);
+            int[] btnIds = without(vinterface.getButtonIds(), id);
+            if (btnIds != vinterface.getButtonIds()) {
+                vinterface.setButtonIds(btnIds);
+                changed.add(new VirtualInterface(vinterface));
+            }
+        }
+        return changed;
+    }
+
+    // Interfaces ==================================================================================
+
+    boolean hasAllInterfaces() {
+        return allInterfaces;
+    }
+
+    /**
+     * @return a copy of the interface, or null if it is not cached.
+     */
+    VirtualInterface getInterface(int id) {
+        VirtualInterface vinterface = interfaces.get(id);
+        return vinterface != null ? new VirtualInterface(vinterface) : null;
+    }
+
+    /**
+     * @return copies of every interface cached, by id.
+     */
+    VirtualInterface[] getAllInterfaces() {
+        VirtualInterface[] all = new VirtualInterface[interfaces.size()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = new VirtualInterface(interfaces.valueAt(i));
+        return all;
+    }
+
+    void putInterface(VirtualInterface vinterface) {
+        interfaces.put(vinterface.getId(), new VirtualInterface(vinterface));
+    }
+
+    /**
+     * Replaces the cached interfaces with every interface of the table.
+     */
+    void putAllInterfaces(VirtualInterface[] all) {
+        interfaces.clear();
+        for (VirtualInterface vinterface : all)
+            putInterface(vinterface);
+        allInterfaces = true;
+    }
+
+    void removeInterface(int id) {
+        interfaces.remove(id);
+    }
+
+    /**
+     * @return ids without every occurrence of id, or ids itself if it does not contain id.
+     */
+    private static int[] without(int[] ids, int id) {
+        if (ids == null)
+            return null;
+        int count = 0;
+        for (int value : ids) {
+            if (value != id)
+                count++;
+        }
+        if (count == ids.length)
+            return ids;
+        int[] result = new int[count];
+        int i = 0;
+        for (int value : ids) {
+            if (value != id)
+                result[i++] = value;
+        }
+        return result;
+    }
+}
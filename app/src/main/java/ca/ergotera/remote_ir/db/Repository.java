@@ -0,0 +1,441 @@
+package ca.ergotera.remote_ir.db;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.models.VirtualButton;
+import ca.ergotera.remote_ir.models.VirtualInterface;
+
+/**
+ * Access to the buttons and interfaces for the UI: every DatabaseManager call runs on a single
+ * background thread (which also serializes the writes) and its result is delivered on the main
+ * thread, so screens never wait on the disk.
+ *
+ * Each call returns a Request; a fragment cancels its pending requests when it stops, so no
+ * result reaches a fragment which can no longer change its views.
+ *
+ * Models read are kept in a ModelCache updated by every write, and the writes are announced to
+ * the ChangeListeners, so screens open without reading the tables again and change only the
+ * elements concerned.
+ *
+ * A read which fails delivers the value given for a failure (ie.: no model found) and is logged,
+ * a write which fails delivers its error: a callback is always called unless cancelled.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class Repository {
+
+    private static final String CLASS_ID = Repository.class.getSimpleName();
+
+    /**
+     * Receives the result of a read, on the main thread.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /**
+     * Receives the outcome of a write, on the main thread.
+     */
+    public interface WriteCallback {
+        void onSuccess();
+
+        void onError(SQLiteException e);
+    }
+
+    // Kinds of change
+    public static final int ADDED = 0;
+    public static final int UPDATED = 1;
+    public static final int REMOVED = 2;
+
+    /**
+     * Notified on the main thread of the buttons and interfaces added, updated or removed
+     * through the repository. The models given are null when removed.
+     */
+    public interface ChangeListener {
+        void onButtonChanged(int change, int id, VirtualButton button);
+
+        void onInterfaceChanged(int change, int id, VirtualInterface vinterface);
+    }
+
+    /**
+     * A pending call, whose result can be dropped.
+     */
+    public static final class Request {
+        private volatile boolean cancelled;
+
+        /**
+         * Drops the result. A write already queued is still done.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private interface Query<T> {
+        T run(DatabaseManager dbMgr);
+    }
+
+    private interface Write {
+        void run(DatabaseManager dbMgr) throws SQLiteException;
+    }
+
+    private static final ChangeListener[] NO_LISTENERS = new ChangeListener[0];
+
+    private static Repository instance;
+
+    private final Context context;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ModelCache cache = new ModelCache(); // Only used on the executor thread
+    private volatile ChangeListener[] changeListeners = NO_LISTENERS;
+
+    private Repository(Context context) {
+        this.context = context;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Repository");
+            }
+        });
+    }
+
+    /**
+     * @param context any context, the application context is kept.
+     */
+    public static synchronized Repository getInstance(Context context) {
+        if (instance == null)
+            instance = new Repository(context.getApplicationContext());
+        return instance;
+    }
+
+    public synchronized void addChangeListener(ChangeListener listener) {
+        ChangeListener[] copy = Arrays.copyOf(changeListeners, changeListeners.length + 1);
+        copy[copy.length - 1] = listener;
+        changeListeners = copy;
+    }
+
+    public synchronized void removeChangeListener(ChangeListener listener) {
+        for (int i = 0; i < changeListeners.length; i++) {
+            if (changeListeners[i] == listener) {
+                ChangeListener[] copy = new ChangeListener[changeListeners.length - 1];
+                System.arraycopy(changeListeners, 0, copy, 0, i);
+                System.arraycopy(changeListeners, i + 1, copy, i, copy.length - i);
+                changeListeners = copy;
+                return;
+            }
+        }
+    }
+
+    // Buttons =====================================================================================
+
+    public Request getAllButtons(Callback<VirtualButton[]> callback) {
+        return read(new Query<VirtualButton[]>() {
+            @Override
+            public VirtualButton[] run(DatabaseManager dbMgr) {
+                if (!cache.hasAllButtons()) {
+                    VirtualButton[] all = dbMgr.getAllButtons();
+                    if (all == null)
+                        return new VirtualButton[0];
+                    cache.putAllButtons(all);
+                }
+                return cache.getAllButtons();
+            }
+        }, new VirtualButton[0], callback);
+    }
+
+    /**
+     * Delivers the button, or null if it was not found.
+     */
+    public Request getButton(final int id, Callback<VirtualButton> callback) {
+        return read(new Query<VirtualButton>() {
+            @Override
+            public VirtualButton run(DatabaseManager dbMgr) {
+                VirtualButton btn = cache.getButton(id);
+                if (btn == null && !cache.hasAllButtons()) {
+                    btn = dbMgr.getButton(id);
+                    if (btn != null)
+                        cache.putButton(btn);
+                }
+                return btn;
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Delivers the buttons in the order of ids, null for the ones not found.
+     */
+    public Request getButtons(final int[] ids, Callback<VirtualButton[]> callback) {
+        return read(new Query<VirtualButton[]>() {
+            @Override
+            public VirtualButton[] run(DatabaseManager dbMgr) {
+                return getCachedButtons(dbMgr, ids);
+            }
+        }, new VirtualButton[ids.length], callback);
+    }
+
+    public Request addButton(final VirtualButton btn, WriteCallback callback) {
+        return write(new Write() {
+            @Override
+            public void run(DatabaseManager dbMgr) {
+                // Read back for the dates and id set by the database
+                buttonWritten(ADDED, dbMgr.getButton(dbMgr.addButton(btn)));
+            }
+        }, callback);
+    }
+
+    public Request updateButton(final VirtualButton btn, WriteCallback callback) {
+        return write(new Write() {
+            @Override
+            public void run(DatabaseManager dbMgr) {
+                // Read back for the fields not set, which kept their value
+                dbMgr.updateButton(btn);
+                buttonWritten(UPDATED, dbMgr.getButton(btn.getId()));
+            }
+        }, callback);
+    }
+
+    /**
+     * Delivers true if the button was removed.
+     */
+    public Request removeButton(final int id, Callback<Boolean> callback) {
+        return read(new Query<Boolean>() {
+            @Override
+            public Boolean run(DatabaseManager dbMgr) {
+                if (!dbMgr.removeButton(id))
+                    return false;
+                // The interfaces lose the button too
+                for (VirtualInterface vinterface : cache.removeButton(id))
+                    postChange(false, UPDATED, vinterface.getId(), vinterface);
+                postChange(true, REMOVED, id, null);
+                return true;
+            }
+        }, false, callback);
+    }
+
+    // Interfaces ==================================================================================
+
+    public Request getAllInterfaces(Callback<VirtualInterface[]> callback) {
+        return read(new Query<VirtualInterface[]>() {
+            @Override
+            public VirtualInterface[] run(DatabaseManager dbMgr) {
+                if (!cache.hasAllInterfaces()) {
+                    VirtualInterface[] all = dbMgr.getAllInterfaces();
+                    if (all == null)
+                        return new VirtualInterface[0];
+                    cache.putAllInterfaces(all);
+                }
+                return cache.getAllInterfaces();
+            }
+        }, new VirtualInterface[0], callback);
+    }
+
+    /**
+     * Delivers the interface, or null if it was not found.
+     */
+    public Request getInterface(final int id, Callback<VirtualInterface> callback) {
+        return read(new Query<VirtualInterface>() {
+            @Override
+            public VirtualInterface run(DatabaseManager dbMgr) {
+                VirtualInterface vinterface = cache.getInterface(id);
+                if (vinterface == null && !cache.hasAllInterfaces()) {
+                    vinterface = dbMgr.getInterface(id);
+                    if (vinterface != null)
+                        cache.putInterface(vinterface);
+                }
+                return vinterface;
+            }
+        }, null, callback);
+    }
+
+    public Request addInterface(final VirtualInterface vinterface, WriteCallback callback) {
+        return write(new Write() {
+            @Override
+            public void run(DatabaseManager dbMgr) {
+                interfaceWritten(ADDED, dbMgr.getInterface(dbMgr.addInterface(vinterface)));
+            }
+        }, callback);
+    }
+
+    public Request updateInterface(final VirtualInterface vinterface, WriteCallback callback) {
+        return write(new Write() {
+            @Override
+            public void run(DatabaseManager dbMgr) {
+                dbMgr.updateInterface(vinterface);
+                interfaceWritten(UPDATED, dbMgr.getInterface(vinterface.getId()));
+            }
+        }, callback);
+    }
+
+    /**
+     * Delivers true if the interface was removed.
+     */
+    public Request removeInterface(final int id, Callback<Boolean> callback) {
+        return read(new Query<Boolean>() {
+            @Override
+            public Boolean run(DatabaseManager dbMgr) {
+                if (!dbMgr.removeInterface(id))
+                    return false;
+                cache.removeInterface(id);
+                postChange(false, REMOVED, id, null);
+                return true;
+            }
+        }, false, callback);
+    }
+
+    // Cache =======================================================================================
+
+    /**
+     * @return the buttons of ids from the cache, the ones missing read in one query.
+     */
+    private VirtualButton[] getCachedButtons(DatabaseManager dbMgr, int[] ids) {
+        VirtualButton[] btns = new VirtualButton[ids.length];
+        int[] missing = new int[ids.length];
+        int missingCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            btns[i] = cache.getButton(ids[i]);
+            if (btns[i] == null)
+                missing[missingCount++] = ids[i];
+        }
+        if (missingCount == 0 || cache.hasAllButtons())
+            return btns;
+        for (VirtualButton btn : dbMgr.getButtons(Arrays.copyOf(missing, missingCount))) {
+            if (btn != null)
+                cache.putButton(btn);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (btns[i] == null)
+                btns[i] = cache.getButton(ids[i]);
+        }
+        return btns;
+    }
+
+    /**
+     * Caches the button read back after a write, and announces it.
+     */
+    private void buttonWritten(int change, VirtualButton btn) {
+        if (btn == null)
+            return; // Could not be read back, it is read again when asked
+        cache.putButton(btn);
+        postChange(true, change, btn.getId(), btn);
+    }
+
+    private void interfaceWritten(int change, VirtualInterface vinterface) {
+        if (vinterface == null)
+            return;
+        cache.putInterface(vinterface);
+        postChange(false, change, vinterface.getId(), vinterface);
+    }
+
+    /**
+     * Delivers a change to the listeners on the main thread, before the result of the write.
+     */
+    private void postChange(final boolean isButton, final int change, final int id, final Object model) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ChangeListener listener : changeListeners) {
+                    if (isButton)
+                        listener.onButtonChanged(change, id, (VirtualButton) model);
+                    else
+                        listener.onInterfaceChanged(change, id, (VirtualInterface) model);
+                }
+            }
+        });
+    }
+
+    // Execution ===================================================================================
+
+    private DatabaseManager openDatabase() {
+        DatabaseManager dbMgr = DatabaseManager.getInstance(context);
+        dbMgr.open();
+        return dbMgr;
+    }
+
+    /**
+     * Runs the query and delivers its result, or failure if it throws.
+     */
+    private <T> Request read(final Query<T> query, final T failure, final Callback<T> callback) {
+        final Request request = new Request();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T value;
+                try {
+                    value = query.run(openDatabase());
+                } catch (RuntimeException e) { // SQLiteException included
+                    Logger.Error(CLASS_ID, "Read failed: " + e.getMessage());
+                    value = failure;
+                }
+                final T result = value;
+                deliver(request, new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(result);
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    private Request write(final Write write, final WriteCallback callback) {
+        final Request request = new Request();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteException error = null;
+                try {
+                    write.run(openDatabase());
+                } catch (SQLiteException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    Logger.Error(CLASS_ID, "Write failed: " + e.getMessage());
+                    error = new SQLiteException(e.getMessage(), e);
+                }
+                final SQLiteException e = error;
+                deliver(request, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (e == null)
+                            callback.onSuccess();
+                        else
+                            callback.onError(e);
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    private void deliver(final Request request, final Runnable delivery) {
+        if (request.isCancelled())
+            return;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isCancelled())
+                    delivery.run();
+            }
+        });
+    }
+}
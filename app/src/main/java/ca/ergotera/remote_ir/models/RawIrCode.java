@@ -0,0 +1,191 @@
+package ca.ergotera.remote_ir.models;
+
+import java.util.Arrays;
+
+import static ca.ergotera.remote_ir.serial_com.BinaryFrameCodec.readVarint;
+import static ca.ergotera.remote_ir.serial_com.BinaryFrameCodec.writeVarint;
+
+/**
+ * Learned infrared code as raw timings: the carrier frequency and the alternating mark and space
+ * durations, in microseconds, starting with a mark. Used for the protocols which the
+ * {codeLen,codeType,codeValue} triple of the module cannot represent.
+ *
+ * Codes are stored as a compact blob. The timings are split into frames at every long space,
+ * frames repeating a previous one (within 1/16th of each duration) are stored once, and every
+ * duration is stored as the zigzag varint of its difference with the previous mark or space of
+ * its frame. A capture of several kilobytes of text usually fits in a few hundred bytes.
+ *
+ * Blob layout (varints): version, frequency, duration count, unique frame count, then for each
+ * unique frame its duration count and deltas, then the number of frames sent and the index of
+ * the unique frame for each of them.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class RawIrCode {
+
+    private static final int BLOB_VERSION = 1;
+
+    // Spaces at least this long (us) end a frame, ie.: the gap between repeats of a NEC code
+    public static final int FRAME_GAP_US = 15000;
+
+    private final int frequency;
+    private final int[] durations;
+
+    public RawIrCode(int frequency, int[] durations) {
+        this.frequency = frequency;
+        this.durations = durations;
+    }
+
+    public int getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * Alternating mark and space durations in microseconds, not copied.
+     */
+    public int[] getDurations() {
+        return durations;
+    }
+
+    // Blob encoding ===============================================================================
+
+    /**
+     * Encodes the code as a blob, see the class documentation for the layout.
+     */
+    public byte[] toBlob() {
+        int[] frameStarts = new int[durations.length + 1];
+        int frameCount = splitFrames(frameStarts);
+
+        // Unique frame sent for every frame, the first frame of each group of repeats
+        int[] sequence = new int[frameCount];
+        int[] uniqueFrames = new int[frameCount];
+        int uniqueCount = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int match = -1;
+            for (int unique = 0; unique < uniqueCount && match < 0; unique++) {
+                if (sameFrame(frameStarts, uniqueFrames[unique], frame))
+                    match = unique;
+            }
+            if (match < 0) {
+                match = uniqueCount;
+                uniqueFrames[uniqueCount++] = frame;
+            }
+            sequence[frame] = match;
+        }
+
+        // Every varint written is at most 5 bytes long
+        byte[] blob = new byte[(4 + durations.length + 2 * uniqueCount + 1 + frameCount) * 5];
+        int length = writeVarint(BLOB_VERSION, blob, 0);
+        length += writeVarint(frequency, blob, length);
+        length += writeVarint(durations.length, blob, length);
+        length += writeVarint(uniqueCount, blob, length);
+        for (int unique = 0; unique < uniqueCount; unique++) {
+            int frame = uniqueFrames[unique];
+            int start = frameStarts[frame];
+            int end = frameStarts[frame + 1];
+            length += writeVarint(end - start, blob, length);
+            int previousMark = 0;
+            int previousSpace = 0;
+            for (int i = start; i < end; i++) {
+                boolean mark = (i - start) % 2 == 0;
+                int delta = durations[i] - (mark ? previousMark : previousSpace);
+                length += writeVarint(zigzag(delta), blob, length);
+                if (mark)
+                    previousMark = durations[i];
+                else
+                    previousSpace = durations[i];
+            }
+        }
+        length += writeVarint(frameCount, blob, length);
+        for (int frame = 0; frame < frameCount; frame++)
+            length += writeVarint(sequence[frame], blob, length);
+        return Arrays.copyOf(blob, length);
+    }
+
+    /**
+     * Decodes a blob made by toBlob(), in a single pass filling one array.
+     *
+     * @throws IllegalArgumentException if the blob is truncated or of an unknown version.
+     */
+    public static RawIrCode fromBlob(byte[] blob) {
+        try {
+            return decode(blob);
+        } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Corrupted raw IR code.", e);
+        }
+    }
+
+    private static RawIrCode decode(byte[] blob) {
+        int[] position = {0};
+        int end = blob.length;
+        int version = (int) readVarint(blob, position, end);
+        if (version != BLOB_VERSION)
+            throw new IllegalArgumentException("Unknown raw IR code version: " + version);
+        int frequency = (int) readVarint(blob, position, end);
+        int[] durations = new int[(int) readVarint(blob, position, end)];
+
+        int uniqueCount = (int) readVarint(blob, position, end);
+        int[] uniqueDurations = new int[durations.length];
+        int[] uniqueStarts = new int[uniqueCount + 1];
+        int unpacked = 0;
+        for (int unique = 0; unique < uniqueCount; unique++) {
+            uniqueStarts[unique] = unpacked;
+            int count = (int) readVarint(blob, position, end);
+            int previousMark = 0;
+            int previousSpace = 0;
+            for (int i = 0; i < count; i++) {
+                int delta = unzigzag(readVarint(blob, position, end));
+                if (i % 2 == 0)
+                    previousMark = uniqueDurations[unpacked++] = previousMark + delta;
+                else
+                    previousSpace = uniqueDurations[unpacked++] = previousSpace + delta;
+            }
+        }
+        uniqueStarts[uniqueCount] = unpacked;
+
+        int frameCount = (int) readVarint(blob, position, end);
+        int length = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int unique = (int) readVarint(blob, position, end);
+            int count = uniqueStarts[unique + 1] - uniqueStarts[unique];
+            System.arraycopy(uniqueDurations, uniqueStarts[unique], durations, length, count);
+            length += count;
+        }
+        if (length != durations.length)
+            throw new IllegalArgumentException("Corrupted raw IR code: " + length + " of " + durations.length + " durations.");
+        return new RawIrCode(frequency, durations);
+    }
+
+    // Fills frameStarts with the index of the first duration of every frame, returns their count
+    private int splitFrames(int[] frameStarts) {
+        int frameCount = 0;
+        for (int i = 0; i < durations.length; i++) {
+            if (i == 0 || (i % 2 == 0 && durations[i - 1] >= FRAME_GAP_US))
+                frameStarts[frameCount++] = i;
+        }
+        frameStarts[frameCount] = durations.length;
+        return frameCount;
+    }
+
+    private boolean sameFrame(int[] frameStarts, int first, int second) {
+        int length = frameStarts[first + 1] - frameStarts[first];
+        if (length != frameStarts[second + 1] - frameStarts[second])
+            return false;
+        for (int i = 0; i < length; i++) {
+            int a = durations[frameStarts[first] + i];
+            int b = durations[frameStarts[second] + i];
+            if (Math.abs(a - b) > Math.max(a, b) / 16)
+                return false;
+        }
+        return true;
+    }
+
+    private static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unzigzag(long value) {
+        int n = (int) value;
+        return (n >>> 1) ^ -(n & 1);
+    }
+}
@@ -4,6 +4,7 @@ import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import ca.ergotera.remote_ir.misc.Logger;
 import ca.ergotera.remote_ir.utils.TimestampUtils;
 
 /**
@@ -17,6 +18,8 @@ import ca.ergotera.remote_ir.utils.TimestampUtils;
  */
 public class VirtualButton implements Parcelable {
 
+    private static final String CLASS_ID = VirtualButton.class.getSimpleName();
+
     public static final String BTN_ID = "ID";
     public static final String BTN_CREATION_DATE = "BTN_CREATION_DATE";
     public static final String BTN_MODIFICATION_DATE = "BTN_MODIFICATION_DATE";
@@ -24,6 +27,7 @@ public class VirtualButton implements Parcelable {
     public static final String BTN_IMG_PATH = "BTN_IMG_PATH";
     public static final String BTN_AUDIO_PATH = "BTN_AUDIO_PATH";
     public static final String BTN_SIGNAL = "BTN_SIGNAL";
+    public static final String BTN_RAW_SIGNAL = "BTN_RAW_SIGNAL";
 
     public static final int NO_ID = -1;
 
@@ -34,6 +38,7 @@ public class VirtualButton implements Parcelable {
     private Uri imagePath;
     private Uri audioPath;
     private String signal;
+    private RawIrCode rawSignal; // Learned timings, for the codes the signal cannot represent
 
     public VirtualButton(int id, String creationDate, String modificationDate, String name, Uri imgPath, Uri audioPath, String signal) {
         this.id = id;
@@ -51,6 +56,14 @@ public class VirtualButton implements Parcelable {
         this.modificationDate = creationDate;
     }
 
+    /**
+     * Copy of other, which can be modified without changing other.
+     */
+    public VirtualButton(VirtualButton other) {
+        this(other.id, other.creationDate, other.modificationDate, other.name, other.imagePath, other.audioPath, other.signal);
+        this.rawSignal = other.rawSignal; // Not modified once built
+    }
+
     private VirtualButton(Parcel in) {
         this.id = in.readInt();
         this.creationDate = in.readString();
@@ -59,6 +72,14 @@ public class VirtualButton implements Parcelable {
         this.imagePath = in.readParcelable(Uri.class.getClassLoader());
         this.audioPath = in.readParcelable(Uri.class.getClassLoader());
         this.signal = in.readString();
+        byte[] rawBlob = in.createByteArray();
+        if (rawBlob != null) {
+            try {
+                this.rawSignal = RawIrCode.fromBlob(rawBlob);
+            } catch (IllegalArgumentException e) {
+                Logger.Error(CLASS_ID, "Ignored the raw signal of button " + this.id + ": " + e.getMessage());
+            }
+        }
     }
 
     // Parcelable implementation ===================================================================
@@ -90,6 +111,7 @@ public class VirtualButton implements Parcelable {
         out.writeParcelable(this.imagePath, flags);
         out.writeParcelable(this.audioPath, flags);
         out.writeString(this.signal);
+        out.writeByteArray(this.rawSignal != null ? this.rawSignal.toBlob() : null);
     }
     // End of: Parcelable implementation ===========================================================
 
@@ -99,7 +121,7 @@ public class VirtualButton implements Parcelable {
      * @return true if valid, false otherwise.
      */
     public boolean isValid() {
-        return name != null && (audioPath != null || (signal != null && signal.length() > 0));
+        return name != null && (audioPath != null || (signal != null && signal.length() > 0) || rawSignal != null);
     }
 
     public int getId() {
@@ -130,6 +152,10 @@ public class VirtualButton implements Parcelable {
         return this.signal;
     }
 
+    public RawIrCode getRawSignal() {
+        return this.rawSignal;
+    }
+
     public void setId(int id) {
         this.id = id;
     }
@@ -157,4 +183,8 @@ public class VirtualButton implements Parcelable {
     public void setSignal(String signal) {
         this.signal = signal;
     }
+
+    public void setRawSignal(RawIrCode rawSignal) {
+        this.rawSignal = rawSignal;
+    }
 }
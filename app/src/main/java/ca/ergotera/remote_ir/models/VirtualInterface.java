@@ -1,11 +1,8 @@
 package ca.ergotera.remote_ir.models;
 
-import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import ca.ergotera.remote_ir.db.DatabaseManager;
-import ca.ergotera.remote_ir.misc.Logger;
 import ca.ergotera.remote_ir.utils.TimestampUtils;
 
 /**
@@ -49,6 +46,14 @@ public class VirtualInterface implements Parcelable {
     }
 
 
+    /**
+     * Copy of other, which can be modified without changing other.
+     */
+    public VirtualInterface(VirtualInterface other) {
+        this(other.id, other.creationDate, other.modificationDate, other.name,
+                other.buttonIds != null ? other.buttonIds.clone() : null);
+    }
+
     protected VirtualInterface(Parcel in) {
         this.id = in.readInt();
         this.creationDate = in.readString();
@@ -87,29 +92,6 @@ public class VirtualInterface implements Parcelable {
     }
     // End of: Parcelable implementation ===========================================================
 
-    /**
-     * Returns an array of buttons retrieved from the database using the interface's button IDs.
-     *
-     * @param context context of execution.
-     * @return the array of VirtualButtons contained within the interface.
-     */
-    public VirtualButton[] getButtons(Context context) {
-        if (buttonIds != null && buttonIds.length > 0) {
-            VirtualButton[] btns = new VirtualButton[buttonIds.length];
-            DatabaseManager dbMgr = new DatabaseManager(context);
-            for (int i = 0; i < buttonIds.length; i++) {
-                VirtualButton btn = dbMgr.getButton(buttonIds[i]);
-                if (btn != null) {
-                    btns[i] = btn;
-                } else
-                    Logger.Error(CLASS_ID, "Unable to find button with id '" + buttonIds[i] + "'.");
-            }
-            return btns;
-        } else {
-            return null;
-        }
-    }
-
     public int getId() {
         return id;
     }
@@ -0,0 +1,173 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import com.felhr.utils.HexData;
+
+/**
+ * Compact binary framing of the module protocol, used alongside the text protocol once both
+ * sides agreed on it through PING.
+ *
+ * A frame is: SYNC, type, payload length (2 bytes, big endian), payload, CRC16 (2 bytes, big
+ * endian). The CRC (CCITT, polynomial 0x1021, initial value 0xFFFF) covers the type, the length
+ * and the payload. SYNC is not an ASCII byte, so binary frames can be told apart from text
+ * responses at any frame boundary. Numbers in payloads are unsigned LEB128 varints: a NEC code
+ * is sent in 9 to 13 bytes instead of about 50 characters, and raw pulse durations take 2 bytes
+ * each instead of up to 6 characters.
+ *
+ * Replies from the module use the ResponseParser types and carry the same {key:value,...}
+ * payload as their text form.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public final class BinaryFrameCodec {
+
+    public static final byte SYNC = (byte) 0xA5;
+    public static final int HEADER_LENGTH = 4;
+    public static final int CRC_LENGTH = 2;
+    public static final int OVERHEAD = HEADER_LENGTH + CRC_LENGTH;
+    public static final int MAX_PAYLOAD = 4096;
+
+    // Command types, replies use the ResponseParser types ========================================
+
+    public static final int CMD_PING = 0x10;
+    public static final int CMD_SET_STATE = 0x11;
+    public static final int CMD_SEND_IR = 0x12;  // codeType, codeLen, codeValue
+    public static final int CMD_SEND_RAW = 0x13; // frequency in Hz, count, pulse durations in us
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            CRC_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private BinaryFrameCodec() {
+    }
+
+    /**
+     * CRC16-CCITT of data[offset, offset + length).
+     */
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        return crc;
+    }
+
+    /**
+     * True for the types of the commands and of the replies, any other type byte after SYNC is
+     * noise.
+     */
+    public static boolean isKnownType(int type) {
+        return (type >= ResponseParser.RECORDED && type <= ResponseParser.ERROR)
+                || (type >= CMD_PING && type <= CMD_SEND_RAW);
+    }
+
+    /**
+     * Length of the frame carrying a payload of the given length.
+     */
+    public static int frameLength(int payloadLength) {
+        return payloadLength + OVERHEAD;
+    }
+
+    /**
+     * Writes the frame of payload[offset, offset + length) into out at outOffset.
+     *
+     * @return the length of the frame.
+     */
+    public static int encode(int type, byte[] payload, int offset, int length, byte[] out, int outOffset) {
+        if (length > MAX_PAYLOAD)
+            throw new IllegalArgumentException("Payload too long: " + length + " bytes.");
+        out[outOffset] = SYNC;
+        out[outOffset + 1] = (byte) type;
+        out[outOffset + 2] = (byte) (length >>> 8);
+        out[outOffset + 3] = (byte) length;
+        System.arraycopy(payload, offset, out, outOffset + HEADER_LENGTH, length);
+        int crc = crc16(out, outOffset + 1, length + HEADER_LENGTH - 1);
+        int crcOffset = outOffset + HEADER_LENGTH + length;
+        out[crcOffset] = (byte) (crc >>> 8);
+        out[crcOffset + 1] = (byte) crc;
+        return frameLength(length);
+    }
+
+    public static byte[] encode(int type, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[frameLength(length)];
+        encode(type, payload, offset, length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * Frame sending a decoded IR code, ie.: codeType 3 (NEC), codeLen 32, codeValue 16689239.
+     */
+    public static byte[] encodeSendIr(int codeType, int codeLength, long codeValue) {
+        byte[] payload = new byte[3 * 10];
+        int length = writeVarint(codeType, payload, 0);
+        length += writeVarint(codeLength, payload, length);
+        length += writeVarint(codeValue, payload, length);
+        return encode(CMD_SEND_IR, payload, 0, length);
+    }
+
+    /**
+     * Frame sending a raw IR code: the carrier frequency and the alternating mark and space
+     * durations of durations[offset, offset + count), in microseconds.
+     */
+    public static byte[] encodeSendRaw(int frequency, int[] durations, int offset, int count) {
+        byte[] payload = new byte[(count + 2) * 5];
+        int length = writeVarint(frequency, payload, 0);
+        length += writeVarint(count, payload, length);
+        for (int i = offset; i < offset + count; i++)
+            length += writeVarint(durations[i], payload, length);
+        return encode(CMD_SEND_RAW, payload, 0, length);
+    }
+
+    /**
+     * Printable form of a command for the logs: hexadecimal for a binary frame, text otherwise.
+     */
+    public static String describe(byte[] data) {
+        if (data.length >= OVERHEAD && data[0] == SYNC)
+            return HexData.hexToString(data);
+        return new String(data);
+    }
+
+    // Varints =====================================================================================
+
+    /**
+     * Writes value as an unsigned varint at offset.
+     *
+     * @return the number of bytes written, up to 10.
+     */
+    public static int writeVarint(long value, byte[] out, int offset) {
+        int i = offset;
+        while ((value & ~0x7FL) != 0) {
+            out[i++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[i++] = (byte) value;
+        return i - offset;
+    }
+
+    /**
+     * Reads the unsigned varint at position[0] in data, moving position[0] after it.
+     *
+     * @throws IllegalArgumentException if the varint does not end before end.
+     */
+    public static long readVarint(byte[] data, int[] position, int end) {
+        long value = 0;
+        int shift = 0;
+        int i = position[0];
+        while (i < end && shift < 64) {
+            byte b = data[i++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                position[0] = i;
+                return value;
+            }
+            shift += 7;
+        }
+        throw new IllegalArgumentException("Truncated varint at " + position[0] + ".");
+    }
+}
@@ -0,0 +1,141 @@
+package ca.ergotera.remote_ir.serial_com;
+
+/**
+ * Incremental decoder of BinaryFrameCodec frames.
+ *
+ * Bytes are accepted one at a time, chunks splitting or coalescing frames do not matter. Every
+ * frame whose CRC matches is handed whole (header and CRC included) to the listener as a slice of
+ * a reusable buffer, the others are counted and dropped. A SYNC byte in the middle of noise may
+ * start a frame which is not one: a header with an unknown type or a length over the bound is
+ * dropped as soon as it is read, and the bytes following the SYNC of a dropped frame are scanned
+ * again (see nextReplayed()), so a valid frame among them is not lost. Nothing is allocated once
+ * the decoder is created.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class BinaryFrameDecoder {
+
+    private final byte[] buffer;
+    private final byte[] replay; // Bytes of dropped frames to scan again, from replayStart to replayEnd
+    private final int maxPayload;
+    private final FrameDecoder.OnFrameListener listener;
+
+    private int length;   // Bytes of the current frame held in the buffer, 0 when between frames
+    private int expected; // Length of the current frame, known once its header is complete
+    private int replayStart;
+    private int replayEnd;
+    private long corruptedFrames;
+
+    public BinaryFrameDecoder(FrameDecoder.OnFrameListener listener) {
+        this(BinaryFrameCodec.MAX_PAYLOAD, listener);
+    }
+
+    /**
+     * @param maxPayload longest payload accepted, up to BinaryFrameCodec.MAX_PAYLOAD.
+     */
+    public BinaryFrameDecoder(int maxPayload, FrameDecoder.OnFrameListener listener) {
+        this.maxPayload = Math.max(0, Math.min(maxPayload, BinaryFrameCodec.MAX_PAYLOAD));
+        this.buffer = new byte[BinaryFrameCodec.frameLength(this.maxPayload)];
+        this.replay = new byte[buffer.length];
+        this.listener = listener;
+    }
+
+    /**
+     * Consumes data[offset, offset + count), bytes outside of frames are skipped.
+     */
+    public void decode(byte[] data, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            scan(data[i]);
+            int replayed;
+            while ((replayed = nextReplayed()) >= 0)
+                scan((byte) replayed);
+        }
+    }
+
+    /**
+     * True once SYNC was accepted and until the frame it starts is complete.
+     */
+    public boolean isInFrame() {
+        return length > 0;
+    }
+
+    /**
+     * Accepts the next byte of a frame, starting with SYNC. When the frame is dropped, the bytes
+     * following its SYNC are queued to be scanned again before any new byte.
+     */
+    public void accept(byte b) {
+        buffer[length++] = b;
+        if (length == 2) {
+            if (!BinaryFrameCodec.isKnownType(b & 0xFF))
+                drop();
+        } else if (length == BinaryFrameCodec.HEADER_LENGTH) {
+            int payloadLength = (buffer[2] & 0xFF) << 8 | (buffer[3] & 0xFF);
+            if (payloadLength > maxPayload) {
+                drop();
+                return;
+            }
+            expected = BinaryFrameCodec.frameLength(payloadLength);
+        } else if (length > BinaryFrameCodec.HEADER_LENGTH && length == expected) {
+            int crcOffset = length - BinaryFrameCodec.CRC_LENGTH;
+            int crc = (buffer[crcOffset] & 0xFF) << 8 | (buffer[crcOffset + 1] & 0xFF);
+            if (crc != BinaryFrameCodec.crc16(buffer, 1, crcOffset - 1)) {
+                drop();
+                return;
+            }
+            int frameLength = length;
+            endFrame();
+            listener.onFrame(buffer, 0, frameLength);
+        }
+    }
+
+    /**
+     * Next byte of a dropped frame to scan again, as an unsigned value, or -1 if there is none.
+     * The caller must scan it like a received byte before taking the next one.
+     */
+    public int nextReplayed() {
+        return replayStart < replayEnd ? replay[replayStart++] & 0xFF : -1;
+    }
+
+    /**
+     * Drops the partial frame and the bytes waiting to be scanned again.
+     */
+    public void reset() {
+        endFrame();
+        replayStart = 0;
+        replayEnd = 0;
+    }
+
+    /**
+     * Frames dropped because their type, their length or their CRC was wrong.
+     */
+    public long getCorruptedFrames() {
+        return corruptedFrames;
+    }
+
+    private void scan(byte b) {
+        if (isInFrame() || b == BinaryFrameCodec.SYNC)
+            accept(b);
+    }
+
+    private void endFrame() {
+        length = 0;
+        expected = 0;
+    }
+
+    /*
+     * Queues the bytes after SYNC ahead of the ones still waiting. They never exceed the buffer:
+     * every byte waiting or held in the frame was received once, and new bytes are only accepted
+     * once the replay is empty.
+     */
+    private void drop() {
+        corruptedFrames++;
+        int count = length - 1;
+        int waiting = replayEnd - replayStart;
+        System.arraycopy(replay, replayStart, replay, count, waiting);
+        System.arraycopy(buffer, 1, replay, 0, count);
+        replayStart = 0;
+        replayEnd = count + waiting;
+        endFrame();
+    }
+}
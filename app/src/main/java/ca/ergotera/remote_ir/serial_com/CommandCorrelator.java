@@ -0,0 +1,315 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import android.os.Handler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeoutException;
+
+import ca.ergotera.remote_ir.misc.Logger;
+
+/**
+ * Matches the replies of the module with the commands waiting for them.
+ *
+ * Replies carry no identifier, but a module answers the commands of a kind in the order
+ * they were received: each reply resolves the oldest write to the device which sent it waiting
+ * for that kind of reply. Several commands can be outstanding at once, on several devices.
+ * Errors resolve the oldest command of their kind, or the oldest command at all when their
+ * kind is unknown, on that device as well.
+ *
+ * The timeout of a write starts once its frame leaves the PriorityWriter, so time spent queued
+ * behind other commands does not count. A write which timed out stays queued for another
+ * timeout: a late reply is consumed by it instead of resolving the next command waiting.
+ *
+ * Everything runs on the thread of the given handler, the command dispatch thread, so the
+ * queues need no locking and commands are registered before replies to them are parsed.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+class CommandCorrelator {
+
+    private static final String CLASS_ID = CommandCorrelator.class.getSimpleName();
+
+    interface Transport {
+        /**
+         * Writes a command to the module, in the given PriorityWriter lane.
+         *
+         * @param listener told when the frame leaves the lane.
+         * @return false if there is no device to write to.
+         */
+        boolean write(byte[] data, int lane, PriorityWriter.FrameListener listener);
+    }
+
+    /*
+     * One write of a command, waiting for its reply. Written attempts are only dropped by their
+     * reply or once expired, each one being answered by the module.
+     */
+    private final class Attempt implements PriorityWriter.FrameListener {
+        final PendingCommand command;
+        final long sequence;
+        Runnable timeoutTask;
+        // Guarded by this, the writer and the dispatch thread race for a cancelled command
+        private boolean writing;
+        private boolean dropped;
+        // Guarded by this, unknown while the frame is being written
+        private int deviceId = PriorityWriter.NO_DEVICE;
+
+        Attempt(PendingCommand command, long sequence) {
+            this.command = command;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return false if the writer took the frame already, it is then answered.
+         */
+        synchronized boolean drop() {
+            if (writing)
+                return false;
+            dropped = true;
+            return true;
+        }
+
+        @Override
+        public boolean shouldWrite() {
+            synchronized (this) {
+                if (!dropped && !command.isDone()) {
+                    writing = true;
+                    return true;
+                }
+                dropped = true;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    waiting[command.replyType].remove(Attempt.this);
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void onWritten(final int deviceId) {
+            synchronized (this) {
+                this.deviceId = deviceId;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (deviceId != PriorityWriter.NO_DEVICE) {
+                        startTimer(Attempt.this);
+                    } else if (waiting[command.replyType].remove(Attempt.this)) {
+                        command.fail(new IOException("No device connected."));
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return true if the frame was written to the device, or may be since it is being
+         * written: a quick reply can be parsed before the writer tells which device it went to.
+         */
+        synchronized boolean isWrittenTo(int deviceId) {
+            return this.deviceId == deviceId || (writing && this.deviceId == PriorityWriter.NO_DEVICE);
+        }
+
+        synchronized boolean isWrittenToExactly(int deviceId) {
+            return this.deviceId == deviceId;
+        }
+    }
+
+    private final Handler handler;
+    private final Transport transport;
+    private final ArrayDeque<Attempt>[] waiting; // By reply type
+    private long nextSequence;
+
+    @SuppressWarnings("unchecked")
+    CommandCorrelator(Handler handler, Transport transport) {
+        this.handler = handler;
+        this.transport = transport;
+        this.waiting = new ArrayDeque[ResponseParser.ERROR + 1];
+        for (int i = 0; i < waiting.length; i++)
+            waiting[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * Writes the command and waits for its reply, from the dispatch thread.
+     */
+    void send(final PendingCommand command) {
+        command.setCancelListener(new Runnable() {
+            @Override
+            public void run() {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        forget(command);
+                    }
+                });
+            }
+        });
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                attempt(command);
+            }
+        });
+    }
+
+    /**
+     * Resolves the oldest command written to the device waiting for a reply of this type.
+     */
+    void onReply(int deviceId, int type, String payload) {
+        Attempt attempt = poll(deviceId, type);
+        if (attempt != null)
+            attempt.command.complete(payload, deviceId); // Consumed anyway if cancelled or answered already
+    }
+
+    /**
+     * Fails the oldest command written to the device waiting for a reply of this type, or its
+     * oldest command at all.
+     */
+    void onError(int deviceId, int type, String error) {
+        Attempt attempt = poll(deviceId, type);
+        if (attempt == null)
+            attempt = pollOldest(deviceId);
+        if (attempt != null)
+            attempt.command.fail(new IOException("Module error: " + error));
+    }
+
+    /**
+     * Fails the commands written to a device and waiting for its reply, ie.: when it is
+     * detached. Commands not written yet go to the next device.
+     */
+    void failDevice(final int deviceId, final Exception failure) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ArrayDeque<Attempt> attempts : waiting) {
+                    Iterator<Attempt> iterator = attempts.iterator();
+                    while (iterator.hasNext()) {
+                        Attempt attempt = iterator.next();
+                        if (attempt.isWrittenToExactly(deviceId)) {
+                            iterator.remove();
+                            stopTimer(attempt);
+                            attempt.command.fail(failure);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Fails every outstanding command, ie.: when no device is left.
+     */
+    void failAll(final Exception failure) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ArrayDeque<Attempt> attempts : waiting) {
+                    Attempt attempt;
+                    while ((attempt = attempts.poll()) != null) {
+                        stopTimer(attempt);
+                        attempt.command.fail(failure);
+                    }
+                }
+            }
+        });
+    }
+
+    private void attempt(PendingCommand command) {
+        if (command.isDone())
+            return;
+        command.attempts++;
+        Attempt attempt = new Attempt(command, nextSequence++);
+        waiting[command.replyType].add(attempt);
+        if (!transport.write(command.data, command.lane, attempt)) {
+            waiting[command.replyType].remove(attempt);
+            command.fail(new IOException("No device connected."));
+        }
+    }
+
+    private void startTimer(final Attempt attempt) {
+        if (!waiting[attempt.command.replyType].contains(attempt))
+            return; // Answered or failed meanwhile
+        attempt.timeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(attempt);
+            }
+        };
+        handler.postDelayed(attempt.timeoutTask, attempt.command.timeoutMs);
+    }
+
+    private void onTimeout(final Attempt attempt) {
+        final PendingCommand command = attempt.command;
+        // The reply may still come, it must not resolve the next command waiting
+        attempt.timeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                attempt.timeoutTask = null;
+                waiting[command.replyType].remove(attempt);
+            }
+        };
+        handler.postDelayed(attempt.timeoutTask, command.timeoutMs);
+        if (command.isDone())
+            return;
+        if (command.attempts < command.maxAttempts) {
+            Logger.Warn(CLASS_ID, "No reply to '" + BinaryFrameCodec.describe(command.data) + "', retrying.");
+            attempt(command);
+        } else {
+            command.fail(new TimeoutException("No reply to '" + BinaryFrameCodec.describe(command.data) + "' after "
+                    + command.attempts + " attempt(s)."));
+        }
+    }
+
+    /*
+     * Drops the attempts of a cancelled command not written yet, the PriorityWriter skips them.
+     * Written ones wait for their reply, or expire.
+     */
+    private void forget(PendingCommand command) {
+        Iterator<Attempt> attempts = waiting[command.replyType].iterator();
+        while (attempts.hasNext()) {
+            Attempt attempt = attempts.next();
+            if (attempt.command == command && attempt.drop())
+                attempts.remove();
+        }
+    }
+
+    private Attempt poll(int deviceId, int type) {
+        if (type < 0 || type >= waiting.length)
+            return null;
+        Attempt attempt = peek(deviceId, type);
+        if (attempt != null) {
+            waiting[type].remove(attempt);
+            stopTimer(attempt);
+        }
+        return attempt;
+    }
+
+    private Attempt pollOldest(int deviceId) {
+        int oldest = -1;
+        for (int i = 0; i < waiting.length; i++) {
+            Attempt head = peek(deviceId, i);
+            if (head != null && (oldest < 0 || head.sequence < peek(deviceId, oldest).sequence))
+                oldest = i;
+        }
+        return oldest < 0 ? null : poll(deviceId, oldest);
+    }
+
+    // Oldest attempt of the type written to the device
+    private Attempt peek(int deviceId, int type) {
+        for (Attempt attempt : waiting[type]) {
+            if (attempt.isWrittenTo(deviceId))
+                return attempt;
+        }
+        return null;
+    }
+
+    private void stopTimer(Attempt attempt) {
+        if (attempt.timeoutTask != null) {
+            handler.removeCallbacks(attempt.timeoutTask);
+            attempt.timeoutTask = null;
+        }
+    }
+}
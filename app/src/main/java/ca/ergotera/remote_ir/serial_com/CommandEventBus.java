@@ -0,0 +1,208 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delivers the events of the module to every listener subscribed to their kind.
+ *
+ * Subscriptions are kept in copy-on-write arrays, one per event kind: publishing reads an array
+ * without locking nor allocating, subscribing and unsubscribing copy it. Listeners are called on
+ * the thread publishing the event (the command dispatch thread for module events), except
+ * UiThreadCommandListeners which are called on the main thread through pooled Messages.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class CommandEventBus {
+
+    // Event kinds, combined into a mask when subscribing =========================================
+
+    public static final int BUTTON_PRESSED = 1;
+    public static final int RECORDED = 1 << 1;
+    public static final int ERROR = 1 << 2;
+    public static final int PING = 1 << 3;
+    public static final int STATE_SET = 1 << 4;
+    public static final int IR_SENT = 1 << 5;
+    public static final int ALL_EVENTS = (1 << 6) - 1;
+
+    private static final int KINDS = 6;
+
+    /**
+     * Notified when the device is connected or disconnected.
+     */
+    public interface ConnectionListener {
+        void onConnectionStateChanged(boolean isDeviceConnected);
+    }
+
+    private static final CommandListener[] NO_LISTENERS = new CommandListener[0];
+
+    private final Object lock = new Object(); // Serializes the copies, not the deliveries
+    // Subscribers by kind, read with volatile semantics
+    private final AtomicReferenceArray<CommandListener[]> listeners = new AtomicReferenceArray<>(KINDS);
+    private final AtomicReferenceArray<CommandListener[]> uiListeners = new AtomicReferenceArray<>(KINDS);
+    private volatile ConnectionListener[] connectionListeners = new ConnectionListener[0];
+    private final Handler mainHandler;
+
+    public CommandEventBus() {
+        for (int kind = 0; kind < KINDS; kind++) {
+            listeners.set(kind, NO_LISTENERS);
+            uiListeners.set(kind, NO_LISTENERS);
+        }
+        mainHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                deliver(uiListeners.get(msg.what), msg.what, (String) msg.obj, msg.arg1);
+            }
+        };
+    }
+
+    /**
+     * Subscribes the listener to the given kinds of event, in addition to the ones it already
+     * receives.
+     *
+     * @param events mask of event kinds, ie.: BUTTON_PRESSED | ERROR.
+     */
+    public void subscribe(CommandListener listener, int events) {
+        AtomicReferenceArray<CommandListener[]> target = listener instanceof UiThreadCommandListener ? uiListeners : listeners;
+        synchronized (lock) {
+            for (int kind = 0; kind < KINDS; kind++) {
+                CommandListener[] current = target.get(kind);
+                if ((events & (1 << kind)) != 0 && indexOf(current, listener) < 0) {
+                    CommandListener[] copy = Arrays.copyOf(current, current.length + 1);
+                    copy[copy.length - 1] = listener;
+                    target.set(kind, copy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unsubscribes the listener from every kind of event.
+     */
+    public void unsubscribe(CommandListener listener) {
+        AtomicReferenceArray<CommandListener[]> target = listener instanceof UiThreadCommandListener ? uiListeners : listeners;
+        synchronized (lock) {
+            for (int kind = 0; kind < KINDS; kind++) {
+                int index = indexOf(target.get(kind), listener);
+                if (index >= 0)
+                    target.set(kind, remove(target.get(kind), index));
+            }
+        }
+    }
+
+    public void addConnectionListener(ConnectionListener listener) {
+        synchronized (lock) {
+            ConnectionListener[] current = connectionListeners;
+            if (indexOf(current, listener) >= 0)
+                return;
+            ConnectionListener[] copy = Arrays.copyOf(current, current.length + 1);
+            copy[copy.length - 1] = listener;
+            connectionListeners = copy;
+        }
+    }
+
+    public void removeConnectionListener(ConnectionListener listener) {
+        synchronized (lock) {
+            int index = indexOf(connectionListeners, listener);
+            if (index >= 0)
+                connectionListeners = remove(connectionListeners, index);
+        }
+    }
+
+    // Publishing =================================================================================
+
+    public void publishButtonPressed(int buttonId) {
+        publish(kindIndex(BUTTON_PRESSED), null, buttonId);
+    }
+
+    public void publishRecorded(String code) {
+        publish(kindIndex(RECORDED), code, 0);
+    }
+
+    public void publishError(String error) {
+        publish(kindIndex(ERROR), error, 0);
+    }
+
+    public void publishPing(String ping) {
+        publish(kindIndex(PING), ping, 0);
+    }
+
+    public void publishStateSet(String state) {
+        publish(kindIndex(STATE_SET), state, 0);
+    }
+
+    public void publishIrSent(String sent) {
+        publish(kindIndex(IR_SENT), sent, 0);
+    }
+
+    public void publishConnectionState(boolean isDeviceConnected) {
+        for (ConnectionListener listener : connectionListeners)
+            listener.onConnectionStateChanged(isDeviceConnected);
+    }
+
+    /**
+     * True if a listener is subscribed to one of the given kinds of event.
+     */
+    public boolean hasListeners(int events) {
+        for (int kind = 0; kind < KINDS; kind++) {
+            if ((events & (1 << kind)) != 0 && (listeners.get(kind).length > 0 || uiListeners.get(kind).length > 0))
+                return true;
+        }
+        return false;
+    }
+
+    private void publish(int kind, String text, int number) {
+        deliver(listeners.get(kind), kind, text, number);
+        if (uiListeners.get(kind).length > 0)
+            mainHandler.obtainMessage(kind, number, 0, text).sendToTarget();
+    }
+
+    private static void deliver(CommandListener[] subscribers, int kind, String text, int number) {
+        for (CommandListener listener : subscribers) {
+            switch (1 << kind) {
+                case BUTTON_PRESSED:
+                    listener.external_button_pressed(number);
+                    break;
+                case RECORDED:
+                    listener.recorded_IR_code(text);
+                    break;
+                case ERROR:
+                    listener.handle_error(text);
+                    break;
+                case PING:
+                    listener.ping_response(text);
+                    break;
+                case STATE_SET:
+                    listener.state_set_success(text);
+                    break;
+                case IR_SENT:
+                    listener.send_IR_success(text);
+                    break;
+            }
+        }
+    }
+
+    // Copy-on-write helpers ======================================================================
+
+    private static int kindIndex(int event) {
+        return Integer.numberOfTrailingZeros(event);
+    }
+
+    private static <T> int indexOf(T[] array, T element) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == element)
+                return i;
+        }
+        return -1;
+    }
+
+    private static <T> T[] remove(T[] array, int index) {
+        T[] copy = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, index + 1, copy, index, array.length - index - 1);
+        return copy;
+    }
+}
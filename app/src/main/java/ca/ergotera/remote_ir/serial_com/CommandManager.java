@@ -8,18 +8,23 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.widget.Toast;
 
 import com.felhr.services.UsbService;
 
-import java.util.Observable;
-import java.util.Observer;
+import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import ca.ergotera.remote_ir.app.R;
 import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.models.RawIrCode;
 import ca.ergotera.remote_ir.ui.activities.MainActivity;
 
 /**
@@ -29,7 +34,7 @@ import ca.ergotera.remote_ir.ui.activities.MainActivity;
  * @author Renaud Varin (renaud.varin.1@ens.etsmtl.ca)
  * Copyright 2018, Ergotera Technologies, All rights reserved.
  */
-public class CommandManager extends Observable {
+public class CommandManager {
 
     private static final String CLASS_ID = CommandManager.class.getSimpleName();
     private static final CommandManager ourInstance = new CommandManager();
@@ -40,12 +45,28 @@ public class CommandManager extends Observable {
     private static final String CMD_SET_STATE_BUTTON = "SET_STATE {STATE:BUT_STATE}";
     private static final String CMD_SET_STATE_RECORD = "SET_STATE {STATE:REC_STATE}";
     private static final String CMD_PING = "PING {}";
+    private static final String CMD_PING_BINARY = "PING {BIN:1}"; // Answered with BIN:1 if supported
     private static final String CMD_SEND_CODE = "SEND_IR ";
 
+    public static final long DEFAULT_COMMAND_TIMEOUT_MS = 1000;
+    // Retries of the commands which can safely be written twice (pings). Codes are not retried
+    // unless asked: the module may have sent a code whose reply was lost, and a toggle code
+    // (ie.: power) sent twice switches back.
+    public static final int DEFAULT_COMMAND_RETRIES = 2;
+
     // USB Service =================================================================================
-    private boolean deviceConnected = false;
-    private UsbService usbService;
+    private volatile UsbService usbService;
+    // Ports ready to be written by device id, each with whether its module accepted the binary
+    // protocol. Codes are sent as BinaryFrameCodec frames once the default port accepted it.
+    private final ConcurrentMap<Integer, Boolean> binaryModes = new ConcurrentHashMap<>();
     private UsbHandler mHandler;
+    // Serial messages are parsed and dispatched on this thread, not on the main looper
+    private final HandlerThread dispatchThread;
+    private final Handler dispatchHandler;
+    private final CommandCorrelator correlator;
+    // Commands are written through priority lanes, not straight to the serial port
+    private final PriorityWriter priorityWriter;
+    private final CommandEventBus eventBus = new CommandEventBus();
 
     // HANDLE TO MainActivity ======================================================================
     private MainActivity mainActivity;
@@ -54,21 +75,44 @@ public class CommandManager extends Observable {
 
     // Private constructor: class cannot be instantiated
     private CommandManager() {
+        dispatchThread = new HandlerThread("CommandDispatcher", Process.THREAD_PRIORITY_FOREGROUND);
+        dispatchThread.start();
+        dispatchHandler = new Handler(dispatchThread.getLooper());
+        priorityWriter = new PriorityWriter(new PriorityWriter.Sink() {
+            @Override
+            public int write(byte[] frame) {
+                UsbService service = usbService;
+                if (service == null)
+                    return PriorityWriter.NO_DEVICE;
+                return service.write(frame);
+            }
+
+            @Override
+            public void awaitBacklog(int maxPending) {
+                UsbService service = usbService;
+                if (service != null)
+                    service.awaitWriteBacklog(maxPending);
+            }
+        });
+        priorityWriter.start();
+        correlator = new CommandCorrelator(dispatchHandler, new CommandCorrelator.Transport() {
+            @Override
+            public boolean write(byte[] data, int lane, PriorityWriter.FrameListener listener) {
+                if (usbService == null)
+                    return false;
+                priorityWriter.write(lane, data, listener);
+                return true;
+            }
+        });
     }
 
     public static CommandManager getInstance() {
         return ourInstance;
     }
 
-    @Override
-    public void addObserver(Observer o){
-        super.addObserver(o);
-        Logger.Info(CLASS_ID, "Added observer: " + o.getClass().getSimpleName() + ".");
-    }
-
     public void setActivity(MainActivity mainActivity) {
         this.mainActivity = mainActivity;
-        mHandler = new UsbHandler();
+        mHandler = new UsbHandler(dispatchThread.getLooper(), correlator, eventBus);
     }
 
     private final ServiceConnection usbConnection = new ServiceConnection() {
@@ -104,6 +148,7 @@ public class CommandManager extends Observable {
     public void setFilters() {
         IntentFilter filter = new IntentFilter();
         filter.addAction(UsbService.ACTION_USB_PERMISSION_GRANTED);
+        filter.addAction(UsbService.ACTION_USB_READY);
         filter.addAction(UsbService.ACTION_NO_USB);
         filter.addAction(UsbService.ACTION_USB_DISCONNECTED);
         filter.addAction(UsbService.ACTION_USB_NOT_SUPPORTED);
@@ -118,8 +163,12 @@ public class CommandManager extends Observable {
 
             Logger.Debug(CLASS_ID, "Broadcast received");
 
-            switch (intent.getAction()) {
+            String action = intent.getAction();
+            switch (action) {
                 case UsbService.ACTION_USB_PERMISSION_GRANTED: // USB PERMISSION GRANTED
+                    Logger.Debug(CLASS_ID, "USB Permission granted");
+                    break;
+                case UsbService.ACTION_USB_READY: // SERIAL PORT OPENED
                     Toast.makeText(context, mainActivity.getResources().getString(R.string.usb_ready), Toast.LENGTH_SHORT).show();
                     Logger.Debug(CLASS_ID, "USB Ready");
                     break;
@@ -141,77 +190,268 @@ public class CommandManager extends Observable {
                     break;
             }
 
-            if(intent.getAction() == UsbService.ACTION_USB_PERMISSION_GRANTED) {
-                deviceConnected = true;
-            } else {
-                deviceConnected = false;
-                mHandler.setCommandListener(null);
+            // Missing when the broadcast is about every port, ie.: ACTION_NO_USB
+            int deviceId = intent.getIntExtra(UsbService.EXTRA_DEVICE_ID, PriorityWriter.NO_DEVICE);
+            if (UsbService.ACTION_USB_PERMISSION_GRANTED.equals(action)) {
+                return; // The port is being opened, ACTION_USB_READY follows once it can be written
+            } else if (UsbService.ACTION_USB_READY.equals(action)) {
+                // Codes only go to the default port, the others are negotiated once they become it
+                if (binaryModes.putIfAbsent(deviceId, false) == null && deviceId == getDefaultDeviceId())
+                    negotiateBinaryMode();
+            } else if (getDefaultDeviceId() == PriorityWriter.NO_DEVICE) {
+                // No port left, queued commands have nowhere to go
+                binaryModes.clear();
+                priorityWriter.clear();
+                correlator.failAll(new IOException("USB device disconnected."));
+            } else if (binaryModes.remove(deviceId) != null) {
+                // Commands written to the other ports still get their reply, the next ones go
+                // to the default port
+                correlator.failDevice(deviceId, new IOException("USB device disconnected."));
+                if (Boolean.FALSE.equals(binaryModes.get(getDefaultDeviceId())))
+                    negotiateBinaryMode();
             }
-            Logger.Info(CLASS_ID, "Notifying Command Manager Observers, Device connected: " + deviceConnected + ".");
-            notifyDeviceConnectionState(deviceConnected);
+            boolean deviceConnected = isDeviceConnectedAndReady();
+            Logger.Info(CLASS_ID, "Notifying connection listeners, Device connected: " + deviceConnected + ".");
+            eventBus.publishConnectionState(deviceConnected);
         }
     };
 
     public void set_idleState() {
-        usbService.write(CMD_SET_STATE_IDLE.getBytes());
+        set_idleStateAsync(DEFAULT_COMMAND_TIMEOUT_MS, 0);
     }
 
     public void set_buttonState() {
-        usbService.write(CMD_SET_STATE_BUTTON.getBytes());
+        set_buttonStateAsync(DEFAULT_COMMAND_TIMEOUT_MS, 0);
     }
 
     public void set_recordState() {
-        usbService.write(CMD_SET_STATE_RECORD.getBytes());
+        set_recordStateAsync(DEFAULT_COMMAND_TIMEOUT_MS, 0);
     }
 
     public void ping() {
-        usbService.write(CMD_PING.getBytes());
+        pingAsync(DEFAULT_COMMAND_TIMEOUT_MS, 0);
     }
 
     public void sendCode(String data) {
-        // data is expected to be : "{codeLen:32,codeType:3,codeValue:16689239}"
-        String s = CMD_SEND_CODE + data;
-        usbService.write(s.getBytes());
-        Logger.Debug(CLASS_ID, "Serial from Android: " + new String(data));
+        sendCodeAsync(data, DEFAULT_COMMAND_TIMEOUT_MS, 0);
+    }
+
+    public void sendRawCode(RawIrCode code) {
+        sendRawCodeAsync(code, PriorityWriter.LANE_INTERACTIVE, DEFAULT_COMMAND_TIMEOUT_MS, 0);
+    }
+
+    // Asynchronous commands ======================================================================
+    // The returned future is resolved by the reply of the module, commands can be pipelined.
+    // State changes and pings are written in the control lane, codes in the interactive lane
+    // unless another PriorityWriter lane is given.
+
+    public PendingCommand set_idleStateAsync(long timeoutMs, int retries) {
+        return send(ResponseParser.SET_STATE, CMD_SET_STATE_IDLE, PriorityWriter.LANE_CONTROL, timeoutMs, retries);
+    }
+
+    public PendingCommand set_buttonStateAsync(long timeoutMs, int retries) {
+        return send(ResponseParser.SET_STATE, CMD_SET_STATE_BUTTON, PriorityWriter.LANE_CONTROL, timeoutMs, retries);
+    }
+
+    public PendingCommand set_recordStateAsync(long timeoutMs, int retries) {
+        return send(ResponseParser.SET_STATE, CMD_SET_STATE_RECORD, PriorityWriter.LANE_CONTROL, timeoutMs, retries);
+    }
+
+    public PendingCommand pingAsync() {
+        return pingAsync(DEFAULT_COMMAND_TIMEOUT_MS, DEFAULT_COMMAND_RETRIES);
+    }
+
+    public PendingCommand pingAsync(long timeoutMs, int retries) {
+        return send(ResponseParser.PING, CMD_PING, PriorityWriter.LANE_CONTROL, timeoutMs, retries);
+    }
+
+    public PendingCommand sendCodeAsync(String data) {
+        return sendCodeAsync(data, DEFAULT_COMMAND_TIMEOUT_MS, 0);
+    }
+
+    public PendingCommand sendCodeAsync(String data, long timeoutMs, int retries) {
+        return sendCodeAsync(data, PriorityWriter.LANE_INTERACTIVE, timeoutMs, retries);
+    }
+
+    /**
+     * Sends an IR code, resolved by the SENT reply of the module.
+     *
+     * @param data      code, expected to be : "{codeLen:32,codeType:3,codeValue:16689239}"
+     * @param lane      PriorityWriter lane, ie.: LANE_BULK when replaying a long sequence.
+     * @param timeoutMs time to wait for the reply once the code is written, before retrying or failing.
+     * @param retries   number of times the code is sent again when no reply came, 0 for a code
+     *                  which must not be sent twice (ie.: a toggle).
+     * @return the pending command, resolved with the payload of the reply.
+     */
+    public PendingCommand sendCodeAsync(String data, int lane, long timeoutMs, int retries) {
+        Logger.Debug(CLASS_ID, "Serial from Android: " + data);
+        if (isBinaryMode()) {
+            byte[] frame = encodeSendIr(data);
+            if (frame != null)
+                return send(ResponseParser.SENT, frame, lane, timeoutMs, retries);
+        }
+        return send(ResponseParser.SENT, CMD_SEND_CODE + data, lane, timeoutMs, retries);
+    }
+
+    /**
+     * Sends a raw IR code, only supported by the binary protocol.
+     *
+     * @param frequency carrier frequency, in Hz.
+     * @param durations alternating mark and space durations, in microseconds.
+     * @throws IllegalStateException if the module did not accept the binary protocol.
+     */
+    public PendingCommand sendRawCodeAsync(RawIrCode code, int lane, long timeoutMs, int retries) {
+        return sendRawCodeAsync(code.getFrequency(), code.getDurations(), lane, timeoutMs, retries);
+    }
+
+    public PendingCommand sendRawCodeAsync(int frequency, int[] durations, int lane, long timeoutMs, int retries) {
+        if (!isBinaryMode())
+            throw new IllegalStateException("Raw IR codes need the binary protocol.");
+        byte[] frame = BinaryFrameCodec.encodeSendRaw(frequency, durations, 0, durations.length);
+        return send(ResponseParser.SENT, frame, lane, timeoutMs, retries);
+    }
+
+    /**
+     * Asks the module of the default port for the binary protocol, used for codes from its reply
+     * on.
+     */
+    public PendingCommand negotiateBinaryMode() {
+        PendingCommand pending = send(ResponseParser.PING, CMD_PING_BINARY, PriorityWriter.LANE_CONTROL,
+                DEFAULT_COMMAND_TIMEOUT_MS, DEFAULT_COMMAND_RETRIES);
+        pending.setCallback(new PendingCommand.Callback() {
+            @Override
+            public void onReply(PendingCommand command, String reply) {
+                ResponseParser.Response response = new ResponseParser.Response();
+                byte[] payload = reply.getBytes();
+                new ResponseParser().parse(payload, 0, payload.length, response);
+                boolean binaryMode = response.getInt("BIN", 0) == 1;
+                // Not added back if the port was detached meanwhile
+                binaryModes.replace(command.getDeviceId(), binaryMode);
+                Logger.Info(CLASS_ID, "Binary protocol " + (binaryMode ? "enabled" : "not supported")
+                        + " on device " + command.getDeviceId() + ".");
+            }
+
+            @Override
+            public void onFailure(PendingCommand command, Exception e) {
+                // The port stays in text mode
+            }
+        });
+        return pending;
+    }
+
+    /**
+     * @return true if the module of the default port accepted the binary protocol.
+     */
+    public boolean isBinaryMode() {
+        return Boolean.TRUE.equals(binaryModes.get(getDefaultDeviceId()));
+    }
+
+    private int getDefaultDeviceId() {
+        UsbService service = usbService;
+        return service != null ? service.getDefaultDeviceId() : PriorityWriter.NO_DEVICE;
+    }
+
+    // Frame of a "{codeLen:32,codeType:3,codeValue:16689239}" code, null if a field is missing
+    private static byte[] encodeSendIr(String data) {
+        ResponseParser.Response code = new ResponseParser.Response();
+        byte[] bytes = data.getBytes();
+        new ResponseParser().parse(bytes, 0, bytes.length, code);
+        int codeType = code.getInt("codeType", -1);
+        int codeLength = code.getInt("codeLen", -1);
+        long codeValue = code.getLong("codeValue", -1);
+        if (codeType < 0 || codeLength < 0 || codeValue < 0)
+            return null;
+        return BinaryFrameCodec.encodeSendIr(codeType, codeLength, codeValue);
+    }
+
+    private PendingCommand send(int replyType, String command, int lane, long timeoutMs, int retries) {
+        return send(replyType, command.getBytes(), lane, timeoutMs, retries);
+    }
+
+    private PendingCommand send(int replyType, byte[] command, int lane, long timeoutMs, int retries) {
+        PendingCommand pending = new PendingCommand(dispatchHandler, replyType, command, lane, timeoutMs, retries);
+        correlator.send(pending);
+        return pending;
+    }
+
+    /**
+     * Outbound queue of the commands, exposes queue depth and wait time per lane.
+     */
+    public PriorityWriter getPriorityWriter() {
+        return priorityWriter;
     }
 
     /*
-     * This handler will be passed to UsbService. Data received from serial port is displayed through this handler
+     * This handler will be passed to UsbService. Data received from serial port is parsed on the
+     * dispatch thread and published to the subscribers of the event bus.
      */
     private static class UsbHandler extends Handler {
 
         private static final String CLASS_ID = UsbHandler.class.getSimpleName();
 
-        public CommandListener commandListener;
-
-        private void parseResponse(String response) {
-            Logger.Debug(CLASS_ID, "Serial from module: " + response.toString());
-            Logger.Debug(CLASS_ID, "Current command listener: " + commandListener + ".");
-
-            // Makes the parser non-case sensitive.
-            String lowerCaseResponse = response.toLowerCase();
-
-            if(commandListener != null) {
-                if (!lowerCaseResponse.contains("error")) {
-                    if (lowerCaseResponse.contains("recorded {")) {
-                        commandListener.recorded_IR_code(response.substring(9));
-                    } else if (lowerCaseResponse.contains("ping {current_state:")) {
-                        commandListener.ping_response(response.substring(5));
-                    } else if (lowerCaseResponse.contains("btn_pressed {")) {
-                        String s = lowerCaseResponse.substring(13, 14);
-                        commandListener.external_button_pressed(Integer.parseInt(s));
-                    } else if (lowerCaseResponse.contains("set_state {succ:")) {
-                        commandListener.state_set_success(response.substring(10));
-                    } else if(lowerCaseResponse.contains("sent ")) {
-                        commandListener.send_IR_success(response.substring(5));
-                    } else {
-                        Logger.Warn(CLASS_ID, "Received unknown response from module: '" + response + "'.");
-                    }
-                } else {
-                    commandListener.handle_error(response);
-                }
-            } else {
-                Logger.Info(CLASS_ID, "No command listener, not parsing response.");
+        // Reused for every response, the handler only runs on the dispatch thread
+        private final ResponseParser parser = new ResponseParser();
+        private final ResponseParser.Response response = new ResponseParser.Response();
+
+        private final CommandCorrelator correlator;
+        private final CommandEventBus eventBus;
+
+        UsbHandler(Looper looper, CommandCorrelator correlator, CommandEventBus eventBus) {
+            super(looper);
+            this.correlator = correlator;
+            this.eventBus = eventBus;
+        }
+
+        private void parseResponse(int deviceId, byte[] data) {
+            parser.parse(data, 0, data.length, response);
+            int type = response.isError() ? ResponseParser.ERROR : response.getType();
+            correlate(deviceId, type);
+
+            switch (type) {
+                case ResponseParser.ERROR:
+                    if (eventBus.hasListeners(CommandEventBus.ERROR))
+                        eventBus.publishError(response.getText());
+                    break;
+                case ResponseParser.RECORDED:
+                    if (eventBus.hasListeners(CommandEventBus.RECORDED))
+                        eventBus.publishRecorded(response.getPayload());
+                    break;
+                case ResponseParser.PING:
+                    if (eventBus.hasListeners(CommandEventBus.PING))
+                        eventBus.publishPing(response.getPayload());
+                    break;
+                case ResponseParser.SET_STATE:
+                    if (eventBus.hasListeners(CommandEventBus.STATE_SET))
+                        eventBus.publishStateSet(response.getPayload());
+                    break;
+                case ResponseParser.SENT:
+                    if (eventBus.hasListeners(CommandEventBus.IR_SENT))
+                        eventBus.publishIrSent(response.getPayload());
+                    break;
+                case ResponseParser.BTN_PRESSED:
+                    int buttonId = response.getNumber(-1);
+                    if (buttonId >= 0)
+                        eventBus.publishButtonPressed(buttonId);
+                    else
+                        Logger.Warn(CLASS_ID, "Received button press without button from module: '" + response.getText() + "'.");
+                    break;
+                default:
+                    Logger.Warn(CLASS_ID, "Received unknown response from module: '" + response.getText() + "'.");
+                    break;
+            }
+        }
+
+        // Resolves the command written to the device waiting for this response, if any
+        private void correlate(int deviceId, int type) {
+            switch (type) {
+                case ResponseParser.ERROR:
+                    correlator.onError(deviceId, response.getType(), response.getText());
+                    break;
+                case ResponseParser.PING:
+                case ResponseParser.SET_STATE:
+                case ResponseParser.SENT:
+                    correlator.onReply(deviceId, type, response.getPayload());
+                    break;
             }
         }
 
@@ -219,8 +459,7 @@ public class CommandManager extends Observable {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case UsbService.MESSAGE_FROM_SERIAL_PORT:
-                    String data = (String) msg.obj;
-                    parseResponse(data);
+                    parseResponse(msg.arg1, (byte[]) msg.obj); // arg1 is the device id
                     break;
                 case UsbService.CTS_CHANGE:
                     Logger.Debug(CLASS_ID, "CTS_CHANGE");
@@ -233,11 +472,6 @@ public class CommandManager extends Observable {
                     break;
             }
         }
-
-        public void setCommandListener(CommandListener commandListener) {
-            Logger.Debug(CLASS_ID, "Set Command Listener to " + this.commandListener + ".");
-            this.commandListener = commandListener;
-        }
     }
 
     public UsbService getUsbService() {
@@ -253,25 +487,39 @@ public class CommandManager extends Observable {
     }
 
     /**
-     * Sets a new value for the command listener.
+     * Subscribes a listener to events of the module, several listeners can be subscribed.
      *
-     * @param listener new command listener.
+     * @param listener listener to subscribe.
+     * @param events   mask of CommandEventBus event kinds, ie.: CommandEventBus.BUTTON_PRESSED.
      */
-    public void setCommandListener(CommandListener listener) {
-        mHandler.setCommandListener(listener);
+    public void subscribe(CommandListener listener, int events) {
+        eventBus.subscribe(listener, events);
     }
 
     /**
-     * Notifies observers of the state of the device's connection.
+     * Unsubscribes a listener from every event of the module.
      *
-     * @param isDeviceConnected whether or not a device is connected.
+     * @param listener listener to unsubscribe.
      */
-    private void notifyDeviceConnectionState(boolean isDeviceConnected) {
-        setChanged();
-        notifyObservers(isDeviceConnected);
+    public void unsubscribe(CommandListener listener) {
+        eventBus.unsubscribe(listener);
+    }
+
+    /**
+     * Adds a listener notified when the device is connected or disconnected.
+     *
+     * @param listener listener to add.
+     */
+    public void addConnectionListener(CommandEventBus.ConnectionListener listener) {
+        eventBus.addConnectionListener(listener);
+        Logger.Info(CLASS_ID, "Added connection listener: " + listener.getClass().getSimpleName() + ".");
+    }
+
+    public void removeConnectionListener(CommandEventBus.ConnectionListener listener) {
+        eventBus.removeConnectionListener(listener);
     }
 
     public boolean isDeviceConnectedAndReady(){
-        return this.deviceConnected;
+        return !binaryModes.isEmpty();
     }
 }
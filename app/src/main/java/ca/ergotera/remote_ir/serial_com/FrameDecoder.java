@@ -0,0 +1,163 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder splitting the byte stream received from the module into responses.
+ *
+ * USB packets do not match responses: a long response (ie.: RECORDED {...}) can arrive in
+ * several chunks and several short ones can arrive in the same chunk. Chunks are appended to
+ * a reusable buffer in which frame boundaries are searched for in place, every complete frame
+ * being handed to the listener as a slice of that buffer. A frame ends with the '}' closing its
+ * first '{', or with a line end outside of braces. Line ends, spaces and control bytes between
+ * frames are skipped. Responses never span lines: a line end inside braces means a '}' was lost, the
+ * partial frame is dropped there so the next responses are not swallowed with it. A SYNC byte at
+ * a frame boundary starts a BinaryFrameCodec frame instead, which is handed to the listener whole
+ * once its CRC is checked; the bytes of a binary frame dropped are scanned again from the one
+ * after its SYNC. Nothing is allocated once the decoder is created.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class FrameDecoder {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Receives complete frames. The bytes are only valid during the call.
+     */
+    public interface OnFrameListener {
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    private final byte[] buffer;
+    private final OnFrameListener listener;
+    private final BinaryFrameDecoder binaryDecoder;
+
+    private int length;     // Bytes of the current frame held in the buffer
+    private int depth;      // Braces opened and not closed yet in the current frame
+    private boolean overflow; // The current frame did not fit, it is dropped up to its end
+    private long droppedFrames;
+
+    public FrameDecoder(OnFrameListener listener) {
+        this(DEFAULT_CAPACITY, listener);
+    }
+
+    public FrameDecoder(int capacity, OnFrameListener listener) {
+        this.buffer = new byte[capacity];
+        this.listener = listener;
+        this.binaryDecoder = new BinaryFrameDecoder(capacity - BinaryFrameCodec.OVERHEAD, listener);
+    }
+
+    /**
+     * Consumes the remaining bytes of data, emitting the frames they complete.
+     *
+     * @param data received bytes, its position is moved to its limit.
+     */
+    public void decode(ByteBuffer data) {
+        if (data.hasArray()) {
+            decode(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            while (data.hasRemaining())
+                accept(data.get());
+        }
+    }
+
+    /**
+     * Consumes data[offset, offset + count), emitting the frames they complete.
+     */
+    public void decode(byte[] data, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++)
+            accept(data[i]);
+    }
+
+    /**
+     * Drops the partial frame, ie.: after the port was reopened or its rate changed.
+     */
+    public void reset() {
+        clearFrame();
+        binaryDecoder.reset();
+    }
+
+    /**
+     * Frames dropped because they were longer than the capacity of the decoder, or cut by a line
+     * end before their braces were closed.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Binary frames dropped because their CRC or their length was wrong.
+     */
+    public long getCorruptedFrames() {
+        return binaryDecoder.getCorruptedFrames();
+    }
+
+    private void accept(byte b) {
+        scan(b);
+        int replayed;
+        while ((replayed = binaryDecoder.nextReplayed()) >= 0)
+            scan((byte) replayed);
+    }
+
+    private void scan(byte b) {
+        if (binaryDecoder.isInFrame() || (b == BinaryFrameCodec.SYNC && length == 0 && depth == 0 && !overflow)) {
+            binaryDecoder.accept(b);
+            return;
+        }
+        if (b == '\r' || b == '\n') {
+            if (depth > 0)
+                dropFrame(); // A '}' was lost, resynchronize on the line end
+            else
+                endFrame();
+            return;
+        }
+        if (length == 0 && depth == 0 && (b <= ' ' || b == 0x7F) && !overflow)
+            return; // Separator or noise between frames, responses start with their verb
+
+        if (b == '{') {
+            depth++;
+        } else if (b == '}' && depth > 0) {
+            depth--;
+            if (depth == 0) {
+                append(b);
+                endFrame();
+                return;
+            }
+        }
+        append(b);
+    }
+
+    private void append(byte b) {
+        if (overflow)
+            return;
+        if (length == buffer.length) {
+            // Dropped up to the next line end, whatever the braces of the rest are
+            overflow = true;
+            depth = 0;
+            return;
+        }
+        buffer[length++] = b;
+    }
+
+    private void endFrame() {
+        if (overflow)
+            droppedFrames++;
+        else if (length > 0)
+            listener.onFrame(buffer, 0, length);
+        clearFrame();
+    }
+
+    private void dropFrame() {
+        droppedFrames++;
+        clearFrame();
+    }
+
+    private void clearFrame() {
+        length = 0;
+        depth = 0;
+        overflow = false;
+    }
+}
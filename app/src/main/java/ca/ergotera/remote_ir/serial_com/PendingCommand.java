@@ -0,0 +1,180 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import android.os.Handler;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A command sent to the module, waiting for its reply.
+ *
+ * The future is resolved with the payload of the matching reply (SENT, SET_STATE or PING) or
+ * fails once every attempt timed out, the module reported an error or the device was
+ * disconnected. The callback, if any, is called on the command dispatch thread.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class PendingCommand implements Future<String> {
+
+    public interface Callback {
+        void onReply(PendingCommand command, String reply);
+
+        void onFailure(PendingCommand command, Exception e);
+    }
+
+    final int replyType; // ResponseParser type of the reply resolving this command
+    final byte[] data;
+    final int lane; // PriorityWriter lane the command is written in
+    final long timeoutMs;
+    final int maxAttempts;
+
+    // Written on the command dispatch thread only
+    volatile int attempts;
+
+    private final Handler dispatcher; // Of the command dispatch thread
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile String reply;
+    private volatile int deviceId = PriorityWriter.NO_DEVICE;
+    private volatile Exception failure;
+    private volatile boolean cancelled;
+    private Callback callback;
+    private Runnable cancelListener; // Lets the correlator forget the command
+
+    PendingCommand(Handler dispatcher, int replyType, byte[] data, int lane, long timeoutMs, int retries) {
+        this.dispatcher = dispatcher;
+        this.replyType = replyType;
+        this.data = data;
+        this.lane = lane;
+        this.timeoutMs = timeoutMs;
+        this.maxAttempts = retries + 1;
+    }
+
+    /**
+     * Sets the callback notified when the command completes. If the command already completed,
+     * it is posted to the command dispatch thread right away.
+     */
+    public void setCallback(final Callback callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                this.callback = callback;
+                return;
+            }
+        }
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                notifyCallback(callback);
+            }
+        });
+    }
+
+    /**
+     * Number of times the command was written, retries included.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Id of the device which sent the reply, PriorityWriter.NO_DEVICE until the command
+     * completes.
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Cancels the command: it is not written if it is still queued, and stops waiting for its
+     * reply.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable listener;
+        synchronized (this) {
+            if (isDone())
+                return false;
+            cancelled = true;
+            done.countDown();
+            listener = cancelListener;
+        }
+        if (listener != null)
+            listener.run();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public String get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException("No reply to '" + BinaryFrameCodec.describe(data) + "' yet.");
+        return result();
+    }
+
+    synchronized void setCancelListener(Runnable cancelListener) {
+        this.cancelListener = cancelListener;
+    }
+
+    boolean complete(String reply, int deviceId) {
+        Callback callback;
+        synchronized (this) {
+            if (isDone())
+                return false;
+            this.reply = reply;
+            this.deviceId = deviceId;
+            done.countDown();
+            callback = this.callback;
+        }
+        notifyCallback(callback);
+        return true;
+    }
+
+    boolean fail(Exception failure) {
+        Callback callback;
+        synchronized (this) {
+            if (isDone())
+                return false;
+            this.failure = failure;
+            done.countDown();
+            callback = this.callback;
+        }
+        notifyCallback(callback);
+        return true;
+    }
+
+    private void notifyCallback(Callback callback) {
+        if (callback == null || cancelled)
+            return;
+        if (failure != null)
+            callback.onFailure(this, failure);
+        else
+            callback.onReply(this, reply);
+    }
+
+    private String result() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return reply;
+    }
+}
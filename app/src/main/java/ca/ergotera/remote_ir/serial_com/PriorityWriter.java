@@ -0,0 +1,214 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import com.felhr.usbserial.SerialIoThread;
+
+import java.util.ArrayDeque;
+
+import ca.ergotera.remote_ir.misc.Logger;
+
+/**
+ * Outbound command queue with priority lanes.
+ *
+ * Commands are queued in the lane of their priority and written one frame at a time, always
+ * from the highest lane holding one. The serial write buffer is kept below MAX_BACKLOG bytes
+ * between frames, so a command of a higher lane jumps ahead of queued bulk traffic at the
+ * next frame boundary instead of waiting behind everything already written.
+ *
+ * Queue depth and time spent waiting in the queue are measured per lane.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class PriorityWriter {
+
+    private static final String CLASS_ID = PriorityWriter.class.getSimpleName();
+
+    // Lanes, from the highest priority ==========================================================
+
+    public static final int LANE_CONTROL = 0;     // State changes, pings, urgent stops
+    public static final int LANE_INTERACTIVE = 1; // Codes triggered by the user
+    public static final int LANE_BULK = 2;        // Long IR sequences
+    public static final int LANES = 3;
+
+    // Written bytes allowed to wait in the serial write buffer before the next frame is picked.
+    // Small enough to preempt at the next frame, large enough to let small frames coalesce.
+    public static final int MAX_BACKLOG = 64;
+
+    // Device id given for a frame which could not be written
+    public static final int NO_DEVICE = -1;
+
+    interface Sink {
+        /**
+         * Writes a frame.
+         *
+         * @return the id of the device written to, NO_DEVICE if there is no device to write to.
+         */
+        int write(byte[] frame);
+
+        /**
+         * Blocks until at most maxPending written bytes are waiting to be sent.
+         */
+        void awaitBacklog(int maxPending);
+    }
+
+    /**
+     * Follows a frame out of its lane, on the writer thread.
+     */
+    interface FrameListener {
+        /**
+         * @return false to drop the frame instead of writing it, ie.: its command was cancelled.
+         */
+        boolean shouldWrite();
+
+        /**
+         * Called once the frame was handed to the sink, or dropped because there was no device.
+         *
+         * @param deviceId id of the device written to, NO_DEVICE if dropped.
+         */
+        void onWritten(int deviceId);
+    }
+
+    private static class Frame {
+        final byte[] data;
+        final FrameListener listener;
+        final long queuedNanos;
+
+        Frame(byte[] data, FrameListener listener) {
+            this.data = data;
+            this.listener = listener;
+            this.queuedNanos = System.nanoTime();
+        }
+    }
+
+    private final Sink sink;
+    private final ArrayDeque<Frame>[] lanes;
+
+    // Metrics, guarded by this
+    private final long[] framesWritten = new long[LANES];
+    private final long[] totalWaitNanos = new long[LANES];
+    private final long[] maxWaitNanos = new long[LANES];
+
+    private final SerialIoThread thread = new SerialIoThread(CLASS_ID) {
+        @Override
+        protected void doWork() {
+            writeNext();
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    PriorityWriter(Sink sink) {
+        this.sink = sink;
+        this.lanes = new ArrayDeque[LANES];
+        for (int i = 0; i < LANES; i++)
+            lanes[i] = new ArrayDeque<>();
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        thread.stop();
+    }
+
+    /**
+     * Queues a frame in the given lane.
+     */
+    public void write(int lane, byte[] frame) {
+        write(lane, frame, null);
+    }
+
+    /**
+     * Queues a frame in the given lane, the listener is told when it leaves the lane.
+     */
+    synchronized void write(int lane, byte[] frame, FrameListener listener) {
+        if (lane < 0 || lane >= LANES)
+            throw new IllegalArgumentException("Unknown lane: " + lane);
+        lanes[lane].add(new Frame(frame, listener));
+        notifyAll();
+    }
+
+    /**
+     * Drops every queued frame of every lane.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Frame> lane : lanes)
+            lane.clear();
+    }
+
+    /**
+     * Number of frames waiting in the lane.
+     */
+    public synchronized int getQueueDepth(int lane) {
+        return lanes[lane].size();
+    }
+
+    /**
+     * Frames of the lane written so far.
+     */
+    public synchronized long getFramesWritten(int lane) {
+        return framesWritten[lane];
+    }
+
+    /**
+     * Average time the frames of the lane waited in the queue, in ms.
+     */
+    public synchronized double getAverageWaitMs(int lane) {
+        return framesWritten[lane] == 0 ? 0 : totalWaitNanos[lane] / (double) framesWritten[lane] / 1000000.0;
+    }
+
+    /**
+     * Longest time a frame of the lane waited in the queue, in ms.
+     */
+    public synchronized double getMaxWaitMs(int lane) {
+        return maxWaitNanos[lane] / 1000000.0;
+    }
+
+    public synchronized void resetMetrics() {
+        for (int i = 0; i < LANES; i++) {
+            framesWritten[i] = 0;
+            totalWaitNanos[i] = 0;
+            maxWaitNanos[i] = 0;
+        }
+    }
+
+    private void writeNext() {
+        Frame frame;
+        int lane;
+        synchronized (this) {
+            lane = nextLane();
+            while (lane < 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return; // Stopped
+                }
+                lane = nextLane();
+            }
+            frame = lanes[lane].poll();
+            long waitNanos = System.nanoTime() - frame.queuedNanos;
+            framesWritten[lane]++;
+            totalWaitNanos[lane] += waitNanos;
+            maxWaitNanos[lane] = Math.max(maxWaitNanos[lane], waitNanos);
+        }
+
+        if (frame.listener != null && !frame.listener.shouldWrite())
+            return;
+        int deviceId = sink.write(frame.data);
+        if (frame.listener != null)
+            frame.listener.onWritten(deviceId);
+        if (deviceId == NO_DEVICE) {
+            Logger.Warn(CLASS_ID, "No device connected, dropped '" + BinaryFrameCodec.describe(frame.data) + "'.");
+            return;
+        }
+        sink.awaitBacklog(MAX_BACKLOG);
+    }
+
+    // Must be called holding the lock
+    private int nextLane() {
+        for (int i = 0; i < LANES; i++) {
+            if (!lanes[i].isEmpty())
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,248 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import java.nio.charset.Charset;
+
+/**
+ * Parser for the responses of the module, following the grammar VERB {key:value,...}.
+ *
+ * The parser works on the bytes of a frame: the verb is matched case insensitively through a
+ * switch on its length, and typed fields are read in place. Results are written into a Response
+ * which can be reused from one frame to another, so parsing a response allocates nothing until
+ * one of its fields is asked for as a String.
+ *
+ * Binary frames (see BinaryFrameCodec) are parsed too: their type byte gives the type of the
+ * response and their payload is read like the payload of a text response.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class ResponseParser {
+
+    // Response types ==============================================================================
+
+    public static final int UNKNOWN = 0;
+    public static final int RECORDED = 1;
+    public static final int PING = 2;
+    public static final int BTN_PRESSED = 3;
+    public static final int SET_STATE = 4;
+    public static final int SENT = 5;
+    public static final int ERROR = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] VERB_PING = bytes("PING");
+    private static final byte[] VERB_SENT = bytes("SENT");
+    private static final byte[] VERB_ERROR = bytes("ERROR");
+    private static final byte[] VERB_RECORDED = bytes("RECORDED");
+    private static final byte[] VERB_SET_STATE = bytes("SET_STATE");
+    private static final byte[] VERB_BTN_PRESSED = bytes("BTN_PRESSED");
+
+    /**
+     * A parsed response. The bytes of the frame are referenced, not copied: the fields are
+     * only valid until the buffer of the frame is reused.
+     */
+    public static final class Response {
+        private int type;
+        private byte[] buffer;
+        private int offset;
+        private int length;
+        private int payloadOffset;
+        private int payloadLength;
+        private boolean error;
+
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * True if the module reported an error, whatever the verb is.
+         */
+        public boolean isError() {
+            return error;
+        }
+
+        /**
+         * Everything after the verb and its separator, ie.: {key:value,...}
+         */
+        public String getPayload() {
+            return new String(buffer, payloadOffset, payloadLength, UTF_8);
+        }
+
+        /**
+         * The whole response as received, only the payload for a binary frame.
+         */
+        public String getText() {
+            return new String(buffer, offset, length, UTF_8);
+        }
+
+        /**
+         * First number of the payload, ie.: the button of BTN_PRESSED {12}
+         *
+         * @param defaultValue value returned when the payload holds no number.
+         */
+        public int getNumber(int defaultValue) {
+            int end = payloadOffset + payloadLength;
+            for (int i = payloadOffset; i < end; i++) {
+                if (isDigit(buffer[i]))
+                    return (int) parseLong(buffer, i, end);
+            }
+            return defaultValue;
+        }
+
+        /**
+         * Numeric value of a key of the payload, ie.: getInt("ID", -1) on {ID:12,STATE:1}
+         *
+         * @param defaultValue value returned when the key is missing or its value not a number.
+         */
+        public int getInt(String key, int defaultValue) {
+            return (int) getLong(key, defaultValue);
+        }
+
+        /**
+         * Numeric value of a key of the payload, ie.: getLong("codeValue", -1) on a 32 bits code.
+         *
+         * @param defaultValue value returned when the key is missing or its value not a number.
+         */
+        public long getLong(String key, long defaultValue) {
+            int start = findValue(key);
+            if (start < 0 || start >= payloadOffset + payloadLength || !isDigit(buffer[start]))
+                return defaultValue;
+            return parseLong(buffer, start, payloadOffset + payloadLength);
+        }
+
+        /**
+         * Value of a key of the payload, null if the key is missing.
+         */
+        public String getString(String key) {
+            int start = findValue(key);
+            if (start < 0)
+                return null;
+            int end = start;
+            int payloadEnd = payloadOffset + payloadLength;
+            while (end < payloadEnd && buffer[end] != ',' && buffer[end] != '}')
+                end++;
+            return new String(buffer, start, end - start, UTF_8);
+        }
+
+        // Index of the value following key:, -1 if the key is not in the payload
+        private int findValue(String key) {
+            int keyLength = key.length();
+            int end = payloadOffset + payloadLength - keyLength;
+            for (int i = payloadOffset; i < end; i++) {
+                byte before = i == payloadOffset ? (byte) '{' : buffer[i - 1];
+                if ((before == '{' || before == ',' || before == ' ') && buffer[i + keyLength] == ':'
+                        && regionMatches(buffer, i, key))
+                    return i + keyLength + 1;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Parses buffer[offset, offset + length) into response.
+     *
+     * @return false if the verb is unknown, the response is still filled in.
+     */
+    public boolean parse(byte[] buffer, int offset, int length, Response response) {
+        if (length >= BinaryFrameCodec.OVERHEAD && buffer[offset] == BinaryFrameCodec.SYNC)
+            return parseBinary(buffer, offset, length, response);
+
+        int end = offset + length;
+        int verbEnd = offset;
+        while (verbEnd < end && buffer[verbEnd] != ' ' && buffer[verbEnd] != '{')
+            verbEnd++;
+        int payloadStart = verbEnd;
+        if (payloadStart < end && buffer[payloadStart] == ' ')
+            payloadStart++;
+
+        response.buffer = buffer;
+        response.offset = offset;
+        response.length = length;
+        response.payloadOffset = payloadStart;
+        response.payloadLength = end - payloadStart;
+        response.type = verb(buffer, offset, verbEnd - offset);
+        response.error = response.type == ERROR || containsError(buffer, offset, end);
+        return response.type != UNKNOWN;
+    }
+
+    private boolean parseBinary(byte[] buffer, int offset, int length, Response response) {
+        int type = buffer[offset + 1];
+        int payloadStart = offset + BinaryFrameCodec.HEADER_LENGTH;
+        int payloadLength = length - BinaryFrameCodec.OVERHEAD;
+
+        response.buffer = buffer;
+        response.offset = payloadStart;
+        response.length = payloadLength;
+        response.payloadOffset = payloadStart;
+        response.payloadLength = payloadLength;
+        response.type = type >= RECORDED && type <= ERROR ? type : UNKNOWN;
+        response.error = response.type == ERROR || containsError(buffer, payloadStart, payloadStart + payloadLength);
+        return response.type != UNKNOWN;
+    }
+
+    private static int verb(byte[] buffer, int offset, int length) {
+        switch (length) {
+            case 4:
+                if (matches(buffer, offset, VERB_PING))
+                    return PING;
+                if (matches(buffer, offset, VERB_SENT))
+                    return SENT;
+                return UNKNOWN;
+            case 5:
+                return matches(buffer, offset, VERB_ERROR) ? ERROR : UNKNOWN;
+            case 8:
+                return matches(buffer, offset, VERB_RECORDED) ? RECORDED : UNKNOWN;
+            case 9:
+                return matches(buffer, offset, VERB_SET_STATE) ? SET_STATE : UNKNOWN;
+            case 11:
+                return matches(buffer, offset, VERB_BTN_PRESSED) ? BTN_PRESSED : UNKNOWN;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    // The module reports errors inside the payload of any verb, ie.: SET_STATE {ERROR:...}
+    private static boolean containsError(byte[] buffer, int offset, int end) {
+        for (int i = offset; i <= end - VERB_ERROR.length; i++) {
+            if ((buffer[i] | 0x20) == 'e' && matches(buffer, i, VERB_ERROR))
+                return true;
+        }
+        return false;
+    }
+
+    // Case insensitive comparison with an upper case ASCII word
+    private static boolean matches(byte[] buffer, int offset, byte[] word) {
+        for (int i = 0; i < word.length; i++) {
+            byte b = buffer[offset + i];
+            if (b >= 'a' && b <= 'z')
+                b -= 'a' - 'A';
+            if (b != word[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean regionMatches(byte[] buffer, int offset, String key) {
+        for (int i = 0; i < key.length(); i++) {
+            int b = buffer[offset + i];
+            int c = key.charAt(i);
+            if (b != c && ((b | 0x20) != (c | 0x20) || (c | 0x20) < 'a' || (c | 0x20) > 'z'))
+                return false;
+        }
+        return true;
+    }
+
+    private static long parseLong(byte[] buffer, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end && isDigit(buffer[i]); i++)
+            value = value * 10 + (buffer[i] - '0');
+        return value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF_8);
+    }
+}
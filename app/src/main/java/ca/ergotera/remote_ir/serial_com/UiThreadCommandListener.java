@@ -0,0 +1,10 @@
+package ca.ergotera.remote_ir.serial_com;
+
+/**
+ * A command listener which has to be called on the UI thread, ie.: because it updates views
+ * or shows Toasts. Other command listeners are called on the command dispatch thread.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public interface UiThreadCommandListener extends CommandListener {
+}
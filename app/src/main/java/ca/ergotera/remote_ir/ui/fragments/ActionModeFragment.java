@@ -20,16 +20,15 @@ import android.widget.LinearLayout;
 import android.widget.Toast;
 
 import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
 
 import ca.ergotera.remote_ir.app.R;
-import ca.ergotera.remote_ir.db.DatabaseManager;
+import ca.ergotera.remote_ir.db.Repository;
 import ca.ergotera.remote_ir.misc.Logger;
 import ca.ergotera.remote_ir.models.VirtualButton;
 import ca.ergotera.remote_ir.models.VirtualInterface;
-import ca.ergotera.remote_ir.serial_com.CommandListener;
+import ca.ergotera.remote_ir.serial_com.CommandEventBus;
 import ca.ergotera.remote_ir.serial_com.CommandManager;
+import ca.ergotera.remote_ir.serial_com.UiThreadCommandListener;
 import ca.ergotera.remote_ir.ui.activities.MainActivity;
 
 import static ca.ergotera.remote_ir.models.VirtualInterface.INTERFACE_ID;
@@ -41,11 +40,10 @@ import static ca.ergotera.remote_ir.models.VirtualInterface.INTERFACE_ID;
  * @author Dominic Fournier (dominicfournier@outlook.com)
  * Copyright 2018, Ergotera Technologies, All rights reserved.
  */
-public class ActionModeFragment extends android.app.Fragment implements CommandListener, Observer {
+public class ActionModeFragment extends android.app.Fragment implements UiThreadCommandListener, CommandEventBus.ConnectionListener {
 
     private static final String CLASS_ID = ActionModeFragment.class.getSimpleName();
     private static final String UI_CONFIGURED = "UI_CONFIGURED";
-    private static final String INTERFACE_MODEL = "INTERFACE_MODEL";
     private static final String CURSOR_POSITION = "CURSOR_POSITION";
     private static final String NUMBER_OF_BUTTONS = "NUMBER_OF_BUTTONS";
     private static final String VIEW_BUTTONS = "VIEW_BUTTONS";
@@ -59,7 +57,9 @@ public class ActionModeFragment extends android.app.Fragment implements CommandL
     private LinearLayout container;
 
     private boolean uiConfigured = false;
+    private int interfaceId = NO_ID;
     private VirtualInterface interfaceModel;
+    private Repository.Request loadRequest;
 
     private ArrayList<View> buttons;
     private int cursorPos = 0;
@@ -92,8 +92,8 @@ public class ActionModeFragment extends android.app.Fragment implements CommandL
         view = inflater.inflate(R.layout.frag_action_mode, container, false);
         if (savedInstanceState != null) {
             // Read values from the "savedInstanceState"-object and put them in your textview
-            this.interfaceModel = (VirtualInterface) savedInstanceState.getParcelable(INTERFACE_MODEL);
-            ArrayList<View> UIButtons = createInterfaceButtons(this.interfaceModel);
+            // Only the id is kept, the interface and its buttons come back from the repository's cache
+            this.interfaceId = savedInstanceState.getInt(INTERFACE_ID, NO_ID);
         }
         return view;
     }
@@ -105,9 +105,7 @@ public class ActionModeFragment extends android.app.Fragment implements CommandL
             int id = NO_ID;
             id = getArguments().getInt(INTERFACE_ID);
             if (id != NO_ID) {
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
-                this.interfaceModel = dbMgr.getInterface(id);
-                dbMgr.close();
+                this.interfaceId = id; // Loaded in onStart()
             } else {
                 Toast.makeText(getActivity(), getResources().getString(R.string.error_database_get_button), Toast.LENGTH_SHORT).show();
                 Logger.Error(CLASS_ID, "The button doesn't exist.");
@@ -125,28 +123,71 @@ public class ActionModeFragment extends android.app.Fragment implements CommandL
     public void onStart() {
         super.onStart();
         CommandManager cmdMgr = CommandManager.getInstance();
-        cmdMgr.addObserver(this);
+        cmdMgr.addConnectionListener(this);
+        cmdMgr.subscribe(this, CommandEventBus.BUTTON_PRESSED);
         if(cmdMgr.isDeviceConnectedAndReady()) {
-            Logger.Debug(CLASS_ID, "Device is connected and ready, setting fragment as command listener and setting device to button state.");
-            cmdMgr.setCommandListener(this);
+            Logger.Debug(CLASS_ID, "Device is connected and ready, setting device to button state.");
             cmdMgr.set_buttonState();
         } else {
             Logger.Debug(CLASS_ID, "Device is not connected.");
         }
-        initializeComponents();
-        moveCursorToNext(true);
+        loadButtons();
     }
 
     @Override
-    public void update(Observable o, Object arg) {
+    public void onStop() {
+        super.onStop();
+        CommandManager cmdMgr = CommandManager.getInstance();
+        cmdMgr.removeConnectionListener(this);
+        cmdMgr.unsubscribe(this);
+        if (loadRequest != null) {
+            loadRequest.cancel();
+            loadRequest = null;
+        }
+    }
+
+    /**
+     * Loads the interface if it is not known yet, then its buttons, and builds the layout once
+     * they are loaded.
+     */
+    private void loadButtons() {
+        Repository repository = Repository.getInstance(getActivity());
+        if (this.interfaceModel == null) {
+            if (this.interfaceId == NO_ID) {
+                return;
+            }
+            loadRequest = repository.getInterface(this.interfaceId, new Repository.Callback<VirtualInterface>() {
+                @Override
+                public void onResult(VirtualInterface vinterface) {
+                    loadRequest = null;
+                    if (vinterface != null) {
+                        interfaceModel = vinterface;
+                        loadButtons();
+                    } else {
+                        Toast.makeText(getActivity(), getResources().getString(R.string.error_database_get_interface), Toast.LENGTH_SHORT).show();
+                        Logger.Error(CLASS_ID, "The interface doesn't exist.");
+                    }
+                }
+            });
+        } else {
+            loadRequest = repository.getButtons(this.interfaceModel.getButtonIds(), new Repository.Callback<VirtualButton[]>() {
+                @Override
+                public void onResult(VirtualButton[] btnModels) {
+                    loadRequest = null;
+                    initializeComponents(btnModels);
+                    moveCursorToNext(true);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onConnectionStateChanged(boolean isDeviceConnected) {
         // The fragment listens to the command manager to be notified of changes
         // to the USB service (ie.: device connected / disconnected).
-        boolean isDeviceConnected = (boolean) arg;
-        CommandManager cmdMgr = CommandManager.getInstance();
         if(isDeviceConnected) {
-            Logger.Debug(CLASS_ID, "Device is connected and ready, setting fragment as command listener and setting device to button state.");
-            cmdMgr.set_buttonState();
-            CommandManager.getInstance().setCommandListener(this);
+            Logger.Debug(CLASS_ID, "Device is connected and ready, setting device to button state.");
+            CommandManager.getInstance().set_buttonState();
         }
     }
 
@@ -160,6 +201,9 @@ public class ActionModeFragment extends android.app.Fragment implements CommandL
     public void external_button_pressed(int button_id) {
         Toast.makeText(getActivity(), "Received button: " + button_id,Toast.LENGTH_SHORT).show();
         Logger.Info(CLASS_ID, "Received 'External button pressed': " + button_id);
+        if (buttons == null) {
+            return; // Not loaded yet
+        }
         if(button_id == 1) {
             moveCursorToNext(false);
         } else {
@@ -193,23 +237,23 @@ public class ActionModeFragment extends android.app.Fragment implements CommandL
         // Save the values you need from your textview into "outState"-object
         super.onSaveInstanceState(outState);
         outState.putBoolean(UI_CONFIGURED, uiConfigured);
-        outState.putParcelable(INTERFACE_MODEL, this.interfaceModel);
+        outState.putInt(INTERFACE_ID, this.interfaceId);
         outState.putInt(CURSOR_POSITION, cursorPos);
         outState.putInt(NUMBER_OF_BUTTONS, numberOfButtons);
     }
 
 
-    private void initializeComponents() {
+    private void initializeComponents(VirtualButton[] btnModels) {
         findComponents();
-        setupComponents();
+        setupComponents(btnModels);
     }
 
     private void findComponents() {
         container = (LinearLayout) view.findViewById(R.id.frag_action_mode_container);
     }
 
-    private void setupComponents() {
-        this.buttons = createInterfaceButtons(this.interfaceModel);
+    private void setupComponents(VirtualButton[] btnModels) {
+        this.buttons = createInterfaceButtons(btnModels);
         // Build the layout
         float screenRatio = getScreenRatio();
         double numberOfRowNotRounded = Math.sqrt(this.buttons.size());
@@ -259,24 +303,27 @@ public class ActionModeFragment extends android.app.Fragment implements CommandL
     }
 
     /**
-     * Creates a list of UI buttons from the button IDs of the given interface Model.
+     * Creates a list of UI buttons from the button models of the interface, in the order of its
+     * button IDs.
      *
      * @return a list of Views containing both Buttons and ImageButtons.
      */
-    private ArrayList<View> createInterfaceButtons(VirtualInterface interfaceModel) {
+    private ArrayList<View> createInterfaceButtons(VirtualButton[] btnModels) {
         ArrayList<View> viButtons = new ArrayList<>();
-        int[] viBtnIds = interfaceModel.getButtonIds();
-        DatabaseManager dbMgr = new DatabaseManager(getActivity());
+        int[] viBtnIds = this.interfaceModel.getButtonIds();
 
-        for (int b = 0; b < viBtnIds.length; b++) {
-            VirtualButton btnModel = dbMgr.getButton(viBtnIds[b]);
+        for (int b = 0; b < btnModels.length; b++) {
+            VirtualButton btnModel = btnModels[b];
+            if (btnModel == null) {
+                Logger.Error(CLASS_ID, "Unable to find button with id '" + viBtnIds[b] + "'.");
+                continue;
+            }
             if (btnModel.getImagePath() == null) {
                 viButtons.add(this.createButtonWithModel(btnModel));
             } else {
                 viButtons.add(this.createImageButtonWithModel(btnModel));
             }
         }
-        dbMgr.close();
 
         return viButtons;
     }
@@ -346,7 +393,10 @@ public class ActionModeFragment extends android.app.Fragment implements CommandL
         CommandManager cmdMgr = CommandManager.getInstance();
         if (cmdMgr.getUsbService() != null) {
             if (btnModel.getId() != VirtualButton.NO_ID) {
-                if (btnModel.getSignal() != null) {
+                if (btnModel.getRawSignal() != null && cmdMgr.isBinaryMode()) {
+                    cmdMgr.sendRawCode(btnModel.getRawSignal());
+                    return true;
+                } else if (btnModel.getSignal() != null) {
                     cmdMgr.sendCode(btnModel.getSignal());
                     return true;
                 } else {
@@ -11,6 +11,8 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import ca.ergotera.remote_ir.app.R;
+import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.models.RawIrCode;
 import ca.ergotera.remote_ir.models.VirtualButton;
 
 /**
@@ -71,7 +73,12 @@ public class ButtonListElementFragment extends android.app.Fragment {
      */
     public static ButtonListElementFragment newInstance(VirtualButton virtualButton) {
         ButtonListElementFragment frag = new ButtonListElementFragment();
-        Bundle bundle = new Bundle(5);
+        frag.setArguments(toArguments(virtualButton));
+        return frag;
+    }
+
+    private static Bundle toArguments(VirtualButton virtualButton) {
+        Bundle bundle = new Bundle(8);
         bundle.putInt(VirtualButton.BTN_ID, virtualButton.getId());
         bundle.putString(VirtualButton.BTN_CREATION_DATE, virtualButton.getCreationDate());
         bundle.putString(VirtualButton.BTN_MODIFICATION_DATE, virtualButton.getModificationDate());
@@ -79,8 +86,24 @@ public class ButtonListElementFragment extends android.app.Fragment {
         bundle.putParcelable(VirtualButton.BTN_IMG_PATH, virtualButton.getImagePath());
         bundle.putParcelable(VirtualButton.BTN_AUDIO_PATH, virtualButton.getAudioPath());
         bundle.putString(VirtualButton.BTN_SIGNAL, virtualButton.getSignal());
-        frag.setArguments(bundle);
-        return frag;
+        if (virtualButton.getRawSignal() != null)
+            bundle.putByteArray(VirtualButton.BTN_RAW_SIGNAL, virtualButton.getRawSignal().toBlob());
+        return bundle;
+    }
+
+    /**
+     * Shows the button as modified, in place in the list.
+     *
+     * @param virtualButton new state of the button represented.
+     */
+    public void setButton(VirtualButton virtualButton) {
+        this.btnModel = new VirtualButton(virtualButton);
+        if (getArguments() != null) {
+            getArguments().putAll(toArguments(virtualButton));
+        }
+        if (view != null) {
+            setListElementImage();
+        }
     }
 
     @Override
@@ -95,6 +118,14 @@ public class ButtonListElementFragment extends android.app.Fragment {
             this.btnModel.setImagePath((Uri) getArguments().getParcelable(VirtualButton.BTN_IMG_PATH));
             this.btnModel.setAudioPath((Uri) getArguments().getParcelable(VirtualButton.BTN_AUDIO_PATH));
             this.btnModel.setSignal(getArguments().getString(VirtualButton.BTN_SIGNAL));
+            byte[] rawSignal = getArguments().getByteArray(VirtualButton.BTN_RAW_SIGNAL);
+            if (rawSignal != null) {
+                try {
+                    this.btnModel.setRawSignal(RawIrCode.fromBlob(rawSignal));
+                } catch (IllegalArgumentException e) {
+                    Logger.Error(CLASS_ID, "Ignored the raw signal of button " + this.btnModel.getId() + ": " + e.getMessage());
+                }
+            }
         }
     }
 
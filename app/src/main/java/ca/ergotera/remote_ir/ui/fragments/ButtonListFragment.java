@@ -1,7 +1,5 @@
 package ca.ergotera.remote_ir.ui.fragments;
 
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
@@ -12,8 +10,10 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import ca.ergotera.remote_ir.app.R;
-import ca.ergotera.remote_ir.db.DatabaseManager;
+import ca.ergotera.remote_ir.db.Repository;
 import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.models.VirtualButton;
+import ca.ergotera.remote_ir.models.VirtualInterface;
 import ca.ergotera.remote_ir.ui.activities.MainActivity;
 
 /**
@@ -24,7 +24,7 @@ import ca.ergotera.remote_ir.ui.activities.MainActivity;
  * @author Dominic Fournier (dominicfournier@outlook.com)
  * Copyright 2018, Ergotera Technologies, All rights reserved.
  */
-public class ButtonListFragment extends android.app.Fragment {
+public class ButtonListFragment extends android.app.Fragment implements Repository.ChangeListener {
 
     private static final String CLASS_ID = ButtonListFragment.class.getSimpleName();
 
@@ -33,6 +33,8 @@ public class ButtonListFragment extends android.app.Fragment {
     private View view;
 
     private boolean uiConfigured;
+    private Repository.Request loadRequest;
+    private TextView emptyListNotice;
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
@@ -65,48 +67,85 @@ public class ButtonListFragment extends android.app.Fragment {
             }
         });
 
+        Repository repository = Repository.getInstance(getActivity());
+        repository.addChangeListener(this);
+        if (!this.uiConfigured && loadRequest == null) {
+            loadRequest = repository.getAllButtons(new Repository.Callback<VirtualButton[]>() {
+                @Override
+                public void onResult(VirtualButton[] buttons) {
+                    loadRequest = null;
+                    showButtons(buttons);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        Repository.getInstance(getActivity()).removeChangeListener(this);
+        if (loadRequest != null) {
+            loadRequest.cancel();
+            loadRequest = null;
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        ((MainActivity)getActivity()).getToolbar().setTitle(getResources().getString(R.string.nav_menu_nav_section_button_list));
+    }
+
+    /**
+     * Adds an element to the list for every button, once loaded.
+     */
+    private void showButtons(VirtualButton[] buttons) {
         android.app.FragmentManager fragMgr = getFragmentManager();
         LinearLayout linlayout = (LinearLayout) getActivity().findViewById(R.id.frag_button_list_scrollable_linlayout);
 
-        DatabaseManager dbMgr = new DatabaseManager(getActivity());
-        Cursor response = dbMgr.getAllDataFromTable(DatabaseManager.BTN_TABLE_NAME);
+        if (buttons.length == 0) {
+            emptyListNotice = new TextView(getActivity());
+            emptyListNotice.setText(getResources().getString(R.string.empty_button_list));
+            emptyListNotice.setTextSize(24);
+            linlayout.addView(emptyListNotice);
+        } else {
+            for (VirtualButton btn : buttons) {
+                fragMgr.beginTransaction().add(R.id.frag_button_list_scrollable_linlayout, ButtonListElementFragment.newInstance(btn), elementTag(btn.getId())).commit();
+            }
+        }
+        this.uiConfigured = true;
+    }
 
-            if (response == null || response.getCount() == 0) {
-                TextView emptyListNotice = new TextView(getActivity());
-                emptyListNotice.setText(getResources().getString(R.string.empty_button_list));
-                emptyListNotice.setTextSize(24);
-                linlayout.addView(emptyListNotice);
+    /**
+     * Adds, updates or removes the element of the button changed, the rest of the list is kept.
+     */
+    @Override
+    public void onButtonChanged(int change, int id, VirtualButton button) {
+        if (!this.uiConfigured) {
+            return; // Not loaded yet, the list is loaded with the change
+        }
+        android.app.FragmentManager fragMgr = getFragmentManager();
+        ButtonListElementFragment btnListElem = (ButtonListElementFragment) fragMgr.findFragmentByTag(elementTag(id));
+        if (change == Repository.ADDED) {
+            if (emptyListNotice != null) {
+                ((ViewGroup) emptyListNotice.getParent()).removeView(emptyListNotice);
+                emptyListNotice = null;
+            }
+            fragMgr.beginTransaction().add(R.id.frag_button_list_scrollable_linlayout, ButtonListElementFragment.newInstance(button), elementTag(id)).commit();
+        } else if (btnListElem != null) {
+            if (change == Repository.UPDATED) {
+                btnListElem.setButton(button);
             } else {
-                if (!this.uiConfigured) {
-                while (response.moveToNext()) {
-                    int btnId = response.getInt(0);
-                    String btnCreationDate = response.getString(1);
-                    String btnModificationDate = response.getString(2);
-                    String btnName = response.getString(3);
-                    String btnStrImgPath = response.getString(4);
-                    String btnStrAudioPath = response.getString(5);
-                    Uri btnImgPath = null;
-                    if (btnStrImgPath != null) {
-                        btnImgPath = Uri.parse(btnStrImgPath);
-                    }
-                    Uri btnAudioPath = null;
-                    if (btnStrAudioPath != null) {
-                        btnAudioPath = Uri.parse(btnStrAudioPath);
-                    }
-                    String btnSignal = response.getString(6);
-                    ButtonListElementFragment btnListElem = ButtonListElementFragment.newInstance(btnId, btnCreationDate, btnModificationDate, btnName, btnImgPath, btnAudioPath, btnSignal);
-                    fragMgr.beginTransaction().add(R.id.frag_button_list_scrollable_linlayout, btnListElem).commit();
-                }
+                fragMgr.beginTransaction().remove(btnListElem).commit();
             }
-            dbMgr.close();
         }
-        this.uiConfigured = true;
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-        ((MainActivity)getActivity()).getToolbar().setTitle(getResources().getString(R.string.nav_menu_nav_section_button_list));
+    public void onInterfaceChanged(int change, int id, VirtualInterface vinterface) {}
+
+    private static String elementTag(int btnId) {
+        return CLASS_ID + ":" + btnId;
     }
 
     @Override
@@ -12,6 +12,8 @@ import android.widget.RadioButton;
 import android.widget.TextView;
 
 import ca.ergotera.remote_ir.app.R;
+import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.models.RawIrCode;
 import ca.ergotera.remote_ir.models.VirtualButton;
 
 /**
@@ -114,6 +116,8 @@ public class ButtonListSelectableElementFragment extends android.app.Fragment {
         bundle.putParcelable(VirtualButton.BTN_IMG_PATH, virtualButton.getImagePath());
         bundle.putParcelable(VirtualButton.BTN_AUDIO_PATH, virtualButton.getAudioPath());
         bundle.putString(VirtualButton.BTN_SIGNAL, virtualButton.getSignal());
+        if (virtualButton.getRawSignal() != null)
+            bundle.putByteArray(VirtualButton.BTN_RAW_SIGNAL, virtualButton.getRawSignal().toBlob());
         frag.setArguments(bundle);
         return frag;
     }
@@ -133,6 +137,14 @@ public class ButtonListSelectableElementFragment extends android.app.Fragment {
             this.btnModel.setImagePath((Uri) getArguments().getParcelable(VirtualButton.BTN_IMG_PATH));
             this.btnModel.setAudioPath((Uri) getArguments().getParcelable(VirtualButton.BTN_AUDIO_PATH));
             this.btnModel.setSignal(getArguments().getString(VirtualButton.BTN_SIGNAL));
+            byte[] rawSignal = getArguments().getByteArray(VirtualButton.BTN_RAW_SIGNAL);
+            if (rawSignal != null) {
+                try {
+                    this.btnModel.setRawSignal(RawIrCode.fromBlob(rawSignal));
+                } catch (IllegalArgumentException e) {
+                    Logger.Error(CLASS_ID, "Ignored the raw signal of button " + this.btnModel.getId() + ": " + e.getMessage());
+                }
+            }
             if (getArguments().size() == 7) {
                 isSelected = getArguments().getBoolean(SELECTABLE_BTN_SELECTED);
             }
@@ -24,15 +24,14 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.Observable;
-import java.util.Observer;
 
 import ca.ergotera.remote_ir.app.R;
-import ca.ergotera.remote_ir.db.DatabaseManager;
+import ca.ergotera.remote_ir.db.Repository;
 import ca.ergotera.remote_ir.misc.Logger;
 import ca.ergotera.remote_ir.models.VirtualButton;
-import ca.ergotera.remote_ir.serial_com.CommandListener;
+import ca.ergotera.remote_ir.serial_com.CommandEventBus;
 import ca.ergotera.remote_ir.serial_com.CommandManager;
+import ca.ergotera.remote_ir.serial_com.UiThreadCommandListener;
 import ca.ergotera.remote_ir.ui.activities.MainActivity;
 
 /**
@@ -42,7 +41,7 @@ import ca.ergotera.remote_ir.ui.activities.MainActivity;
  * @author Dominic Fournier (dominicfournier@outlook.com)
  * Copyright 2018, Ergotera Technologies, All rights reserved.
  */
-public class CreateButtonFragment extends android.app.Fragment implements CommandListener, Observer {
+public class CreateButtonFragment extends android.app.Fragment implements UiThreadCommandListener, CommandEventBus.ConnectionListener {
 
     private static String CLASS_ID = CreateButtonFragment.class.getSimpleName();
 
@@ -61,6 +60,11 @@ public class CreateButtonFragment extends android.app.Fragment implements Comman
     private boolean isNewButton = true;
     private VirtualButton btnModel;
 
+    // Database requests whose result is still expected
+    private Repository.Request loadRequest;
+    private Repository.Request saveRequest;
+    private boolean started;
+
     // UI elements
     private LinearLayout scrollLinLayout;
     private EditText buttonNameEditText;
@@ -110,32 +114,62 @@ public class CreateButtonFragment extends android.app.Fragment implements Comman
             if (id != VirtualButton.NO_ID) {
                 // If the fragment was instantiated with an id, we must load a button model from
                 // the database to modify it instead of creating a new button.
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
-                this.btnModel = dbMgr.getButton(id);
-                dbMgr.close();
+                isNewButton = false;
+                loadButton(id);
+            }
+        } else {
+            this.btnModel = new VirtualButton();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (loadRequest != null) {
+            loadRequest.cancel();
+            loadRequest = null;
+        }
+    }
+
+    /**
+     * Loads the button to modify, the UI is set up once it is loaded.
+     */
+    private void loadButton(int id) {
+        loadRequest = Repository.getInstance(getActivity()).getButton(id, new Repository.Callback<VirtualButton>() {
+            @Override
+            public void onResult(VirtualButton button) {
+                loadRequest = null;
+                if (btnModel != null) {
+                    return; // Restored from the saved instance state
+                }
                 // If we successfully retrieve the button model with the given id from the database,
                 // we proceed to change the UI to a 'modification' menu.
-                if (this.btnModel != null) {
-                    isNewButton = false;
+                if (button != null) {
+                    btnModel = button;
                 } else {
                     Toast.makeText(getActivity(), getResources().getString(R.string.error_database_get_button), Toast.LENGTH_SHORT).show();
                     Logger.Error(CLASS_ID, "The button doesn't exist.");
+                    isNewButton = true;
+                    btnModel = new VirtualButton();
+                }
+                if (started) {
+                    initializeComponents();
                 }
             }
-        } else {
-            this.btnModel = new VirtualButton();
-        }
+        });
     }
 
     @Override
     public void onStart() {
         super.onStart();
         CommandManager cmdMgr = CommandManager.getInstance();
-        cmdMgr.addObserver(this);
-        if(cmdMgr.isDeviceConnectedAndReady()) {
-            cmdMgr.setCommandListener(this);
+        cmdMgr.addConnectionListener(this);
+        cmdMgr.subscribe(this, CommandEventBus.RECORDED | CommandEventBus.ERROR
+                | CommandEventBus.STATE_SET | CommandEventBus.IR_SENT);
+        started = true;
+        if (btnModel != null) {
+            initializeComponents();
         }
-        initializeComponents();
     }
 
     @Override
@@ -145,14 +179,23 @@ public class CreateButtonFragment extends android.app.Fragment implements Comman
     }
 
     @Override
-    public void update(Observable o, Object arg) {
+    public void onStop() {
+        super.onStop();
+        CommandManager cmdMgr = CommandManager.getInstance();
+        cmdMgr.removeConnectionListener(this);
+        cmdMgr.unsubscribe(this);
+        started = false;
+        if (saveRequest != null) {
+            saveRequest.cancel();
+            saveRequest = null;
+        }
+    }
+
+    @Override
+    public void onConnectionStateChanged(boolean isDeviceConnected) {
         // The fragment listens to the command manager to be notified of changes
         // to the USB service (ie.: device connected / disconnected).
-        boolean isDeviceConnected = (boolean) arg;
         recordIRBtn.setEnabled(isDeviceConnected);
-        if(isDeviceConnected) {
-            CommandManager.getInstance().setCommandListener(this);
-        }
     }
 
     @Override
@@ -414,7 +457,6 @@ public class CreateButtonFragment extends android.app.Fragment implements Comman
         CommandManager cmdMgr = CommandManager.getInstance();
         if(cmdMgr.isDeviceConnectedAndReady()) {
             recordIRBtn.setEnabled(true);
-            cmdMgr.setCommandListener(this);
         }
         this.recordIRBtn.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -431,20 +473,23 @@ public class CreateButtonFragment extends android.app.Fragment implements Comman
         this.saveButtonBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
-                try {
-                    dbMgr.addButton(btnModel);
-                    dbMgr.close();
-                    stopSound();
-                    Toast.makeText(getActivity(), getResources().getString(R.string.button_successfully_created), Toast.LENGTH_SHORT).show();
-                    CommandManager.getInstance().setCommandListener(null);
-                    android.app.FragmentManager fragMgr = getFragmentManager();
-                    fragMgr.beginTransaction().replace(R.id.content_frame, new ButtonListFragment()).addToBackStack(null).commit();
-                } catch (SQLiteException e) {
-                    handleSQLiteDatabaseException(e);
-                } finally {
-                    dbMgr.close();
-                }
+                saveRequest = Repository.getInstance(getActivity()).addButton(btnModel, new Repository.WriteCallback() {
+                    @Override
+                    public void onSuccess() {
+                        saveRequest = null;
+                        stopSound();
+                        Toast.makeText(getActivity(), getResources().getString(R.string.button_successfully_created), Toast.LENGTH_SHORT).show();
+                        CommandManager.getInstance().unsubscribe(CreateButtonFragment.this);
+                        android.app.FragmentManager fragMgr = getFragmentManager();
+                        fragMgr.beginTransaction().replace(R.id.content_frame, new ButtonListFragment()).addToBackStack(null).commit();
+                    }
+
+                    @Override
+                    public void onError(SQLiteException e) {
+                        saveRequest = null;
+                        handleSQLiteDatabaseException(e);
+                    }
+                });
             }
         });
     }
@@ -456,20 +501,23 @@ public class CreateButtonFragment extends android.app.Fragment implements Comman
         this.saveButtonBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
-                try {
-                    dbMgr.updateButton(btnModel);
-                    dbMgr.close();
-                    stopSound();
-                    Toast.makeText(getActivity(), getResources().getString(R.string.modifications_saved), Toast.LENGTH_SHORT).show();
-                    CommandManager.getInstance().setCommandListener(null);
-                    android.app.FragmentManager fragMgr = getFragmentManager();
-                    fragMgr.beginTransaction().replace(R.id.content_frame, new ButtonListFragment()).addToBackStack(null).commit();
-                } catch (SQLiteException e) {
-                    handleSQLiteDatabaseException(e);
-                } finally {
-                    dbMgr.close();
-                }
+                saveRequest = Repository.getInstance(getActivity()).updateButton(btnModel, new Repository.WriteCallback() {
+                    @Override
+                    public void onSuccess() {
+                        saveRequest = null;
+                        stopSound();
+                        Toast.makeText(getActivity(), getResources().getString(R.string.modifications_saved), Toast.LENGTH_SHORT).show();
+                        CommandManager.getInstance().unsubscribe(CreateButtonFragment.this);
+                        android.app.FragmentManager fragMgr = getFragmentManager();
+                        fragMgr.beginTransaction().replace(R.id.content_frame, new ButtonListFragment()).addToBackStack(null).commit();
+                    }
+
+                    @Override
+                    public void onError(SQLiteException e) {
+                        saveRequest = null;
+                        handleSQLiteDatabaseException(e);
+                    }
+                });
             }
         });
     }
@@ -561,15 +609,20 @@ public class CreateButtonFragment extends android.app.Fragment implements Comman
         builder.setPositiveButton(getResources().getString(R.string.yes), new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
-                if (dbMgr.removeButton(btnModel.getId())) {
-                    Toast.makeText(getActivity(), getResources().getString(R.string.button_deleted), Toast.LENGTH_SHORT).show();
-                    android.app.FragmentManager fragMgr = getFragmentManager();
-                    fragMgr.beginTransaction().replace(R.id.content_frame, new ButtonListFragment()).addToBackStack(null).commit();
-                } else {
-                    Logger.Error(CLASS_ID, "An error occured while trying to delete the button of the database.");
-                }
-                dbMgr.close();
+                saveRequest = Repository.getInstance(getActivity()).removeButton(btnModel.getId(), new Repository.Callback<Boolean>() {
+                    @Override
+                    public void onResult(Boolean removed) {
+                        saveRequest = null;
+                        if (removed) {
+                            Toast.makeText(getActivity(), getResources().getString(R.string.button_deleted), Toast.LENGTH_SHORT).show();
+                            android.app.FragmentManager fragMgr = getFragmentManager();
+                            fragMgr.beginTransaction().replace(R.id.content_frame, new ButtonListFragment()).addToBackStack(null).commit();
+                        } else {
+                            Toast.makeText(getActivity(), getResources().getString(R.string.error_database_remove_button), Toast.LENGTH_LONG).show();
+                            Logger.Error(CLASS_ID, "An error occured while trying to delete the button of the database.");
+                        }
+                    }
+                });
             }
         });
         builder.setNegativeButton(getResources().getString(R.string.no), null);
@@ -614,7 +667,10 @@ public class CreateButtonFragment extends android.app.Fragment implements Comman
         CommandManager cmdMgr = CommandManager.getInstance();
         if (cmdMgr.getUsbService() != null) {
             if (btnModel.getId() != VirtualButton.NO_ID) {
-                if (btnModel.getSignal() != null) {
+                if (btnModel.getRawSignal() != null && cmdMgr.isBinaryMode()) {
+                    cmdMgr.sendRawCode(btnModel.getRawSignal());
+                    return true;
+                } else if (btnModel.getSignal() != null) {
                     cmdMgr.sendCode(btnModel.getSignal());
                     return true;
                 } else {
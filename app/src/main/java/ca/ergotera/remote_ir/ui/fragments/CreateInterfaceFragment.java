@@ -17,7 +17,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import ca.ergotera.remote_ir.app.R;
-import ca.ergotera.remote_ir.db.DatabaseManager;
+import ca.ergotera.remote_ir.db.Repository;
 import ca.ergotera.remote_ir.misc.Logger;
 import ca.ergotera.remote_ir.models.VirtualButton;
 import ca.ergotera.remote_ir.models.VirtualInterface;
@@ -54,6 +54,11 @@ public class CreateInterfaceFragment extends android.app.Fragment {
     private boolean uiConfigured = false;
     private boolean isNewInterface = true;
 
+    // Database requests whose result is still expected
+    private Repository.Request loadRequest;
+    private Repository.Request saveRequest;
+    private boolean started;
+
     public static android.app.Fragment newInstance(int interfaceId) {
         CreateInterfaceFragment frag = new CreateInterfaceFragment();
         Bundle bundle = new Bundle(1);
@@ -95,21 +100,49 @@ public class CreateInterfaceFragment extends android.app.Fragment {
             if (id != VirtualButton.NO_ID) {
                 // If the fragment was instantiated with an id, we must load a button model from
                 // the database to modify it instead of creating a new button.
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
-                this.interfaceModel = dbMgr.getInterface(id);
-                dbMgr.close();
-                // If we successfully retrieve the button model with the given id from the database,
+                this.isNewInterface = false;
+                loadInterface(id);
+            }
+        } else {
+            interfaceModel = new VirtualInterface();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (loadRequest != null) {
+            loadRequest.cancel();
+            loadRequest = null;
+        }
+    }
+
+    /**
+     * Loads the interface to modify, the UI is set up once it is loaded.
+     */
+    private void loadInterface(int id) {
+        loadRequest = Repository.getInstance(getActivity()).getInterface(id, new Repository.Callback<VirtualInterface>() {
+            @Override
+            public void onResult(VirtualInterface vinterface) {
+                loadRequest = null;
+                if (interfaceModel != null) {
+                    return; // Restored from the saved instance state
+                }
+                // If we successfully retrieve the interface model with the given id from the database,
                 // we proceed to change the UI to a 'modification' menu.
-                if (this.interfaceModel != null) {
-                    this.isNewInterface = false;
+                if (vinterface != null) {
+                    interfaceModel = vinterface;
                 } else {
                     Toast.makeText(getActivity(), getResources().getString(R.string.error_database_get_interface), Toast.LENGTH_SHORT).show();
                     Logger.Error(CLASS_ID, "The interface doesn't exist.");
+                    isNewInterface = true;
+                    interfaceModel = new VirtualInterface();
+                }
+                if (started) {
+                    setupScreen();
                 }
             }
-        } else {
-            interfaceModel = new VirtualInterface();
-        }
+        });
     }
 
     @Override
@@ -123,7 +156,23 @@ public class CreateInterfaceFragment extends android.app.Fragment {
     @Override
     public void onStart() {
         super.onStart();
+        started = true;
+        if (interfaceModel != null) {
+            setupScreen();
+        }
+    }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+        started = false;
+        if (saveRequest != null) {
+            saveRequest.cancel();
+            saveRequest = null;
+        }
+    }
+
+    private void setupScreen() {
         initializeComponents();
 
         if (!this.uiConfigured) {
@@ -203,18 +252,22 @@ public class CreateInterfaceFragment extends android.app.Fragment {
         this.saveInterfaceBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
                 interfaceModel.setButtonIds(selectableBtnList.getSelectedButtons());
-                try {
-                    dbMgr.addInterface(interfaceModel);
-                    Toast.makeText(getActivity(), getResources().getString(R.string.interface_successfully_created), Toast.LENGTH_SHORT).show();
-                    android.app.FragmentManager fragMgr = getFragmentManager();
-                    fragMgr.beginTransaction().replace(R.id.content_frame, new InterfaceListFragment()).addToBackStack(null).commit();
-                } catch(SQLiteException e) {
-                    handleSQLiteDatabaseException(e);
-                } finally {
-                    dbMgr.close();
-                }
+                saveRequest = Repository.getInstance(getActivity()).addInterface(interfaceModel, new Repository.WriteCallback() {
+                    @Override
+                    public void onSuccess() {
+                        saveRequest = null;
+                        Toast.makeText(getActivity(), getResources().getString(R.string.interface_successfully_created), Toast.LENGTH_SHORT).show();
+                        android.app.FragmentManager fragMgr = getFragmentManager();
+                        fragMgr.beginTransaction().replace(R.id.content_frame, new InterfaceListFragment()).addToBackStack(null).commit();
+                    }
+
+                    @Override
+                    public void onError(SQLiteException e) {
+                        saveRequest = null;
+                        handleSQLiteDatabaseException(e);
+                    }
+                });
             }
         });
     }
@@ -223,18 +276,22 @@ public class CreateInterfaceFragment extends android.app.Fragment {
         this.saveInterfaceBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
                 interfaceModel.setButtonIds(selectableBtnList.getSelectedButtons());
-                try {
-                    dbMgr.updateInterface(interfaceModel);
-                    Toast.makeText(getActivity(), getResources().getString(R.string.modifications_saved), Toast.LENGTH_SHORT).show();
-                    android.app.FragmentManager fragMgr = getFragmentManager();
-                    fragMgr.beginTransaction().replace(R.id.content_frame, new InterfaceListFragment()).addToBackStack(null).commit();
-                } catch (SQLiteException e) {
-                    handleSQLiteDatabaseException(e);
-                } finally {
-                    dbMgr.close();
-                }
+                saveRequest = Repository.getInstance(getActivity()).updateInterface(interfaceModel, new Repository.WriteCallback() {
+                    @Override
+                    public void onSuccess() {
+                        saveRequest = null;
+                        Toast.makeText(getActivity(), getResources().getString(R.string.modifications_saved), Toast.LENGTH_SHORT).show();
+                        android.app.FragmentManager fragMgr = getFragmentManager();
+                        fragMgr.beginTransaction().replace(R.id.content_frame, new InterfaceListFragment()).addToBackStack(null).commit();
+                    }
+
+                    @Override
+                    public void onError(SQLiteException e) {
+                        saveRequest = null;
+                        handleSQLiteDatabaseException(e);
+                    }
+                });
             }
         });
     }
@@ -326,15 +383,20 @@ public class CreateInterfaceFragment extends android.app.Fragment {
         builder.setPositiveButton(getResources().getString(R.string.yes), new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                DatabaseManager dbMgr = new DatabaseManager(getActivity());
-                if (dbMgr.removeInterface(interfaceModel.getId())) {
-                    Toast.makeText(getActivity(), getResources().getString(R.string.interface_deleted), Toast.LENGTH_SHORT).show();
-                    android.app.FragmentManager fragMgr = getFragmentManager();
-                    fragMgr.beginTransaction().replace(R.id.content_frame, new InterfaceListFragment()).addToBackStack(null).commit();
-                } else {
-                    Logger.Error(CLASS_ID, "An error occured while trying to delete the interface of the database.");
-                }
-                dbMgr.close();
+                saveRequest = Repository.getInstance(getActivity()).removeInterface(interfaceModel.getId(), new Repository.Callback<Boolean>() {
+                    @Override
+                    public void onResult(Boolean removed) {
+                        saveRequest = null;
+                        if (removed) {
+                            Toast.makeText(getActivity(), getResources().getString(R.string.interface_deleted), Toast.LENGTH_SHORT).show();
+                            android.app.FragmentManager fragMgr = getFragmentManager();
+                            fragMgr.beginTransaction().replace(R.id.content_frame, new InterfaceListFragment()).addToBackStack(null).commit();
+                        } else {
+                            Toast.makeText(getActivity(), getResources().getString(R.string.error_database_remove_interface), Toast.LENGTH_LONG).show();
+                            Logger.Error(CLASS_ID, "An error occured while trying to delete the interface of the database.");
+                        }
+                    }
+                });
             }
         });
         builder.setNegativeButton(getResources().getString(R.string.no), null);
@@ -68,14 +68,33 @@ public class InterfaceListElementFragment extends android.app.Fragment {
      */
     public static InterfaceListElementFragment newInstance(VirtualInterface virtualInterface) {
         InterfaceListElementFragment frag = new InterfaceListElementFragment();
+        frag.setArguments(toArguments(virtualInterface));
+        return frag;
+    }
+
+    private static Bundle toArguments(VirtualInterface virtualInterface) {
         Bundle bundle = new Bundle(5);
         bundle.putInt(VirtualInterface.INTERFACE_ID, virtualInterface.getId());
         bundle.putString(VirtualInterface.INTERFACE_CREATION_DATE, virtualInterface.getCreationDate());
         bundle.putString(VirtualInterface.INTERFACE_MODIFICATION_DATE, virtualInterface.getModificationDate());
         bundle.putString(VirtualInterface.INTERFACE_NAME, virtualInterface.getName());
         bundle.putIntArray(VirtualInterface.INTERFACE_BUTTONS, virtualInterface.getButtonIds());
-        frag.setArguments(bundle);
-        return frag;
+        return bundle;
+    }
+
+    /**
+     * Shows the interface as modified, in place in the list.
+     *
+     * @param virtualInterface new state of the interface represented.
+     */
+    public void setInterface(VirtualInterface virtualInterface) {
+        this.interfaceModel = new VirtualInterface(virtualInterface);
+        if (getArguments() != null) {
+            getArguments().putAll(toArguments(virtualInterface));
+        }
+        if (this.interfaceNameTextView != null) {
+            setupListElementText();
+        }
     }
 
     @Override
@@ -1,6 +1,5 @@
 package ca.ergotera.remote_ir.ui.fragments;
 
-import android.database.Cursor;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
@@ -11,10 +10,11 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import ca.ergotera.remote_ir.app.R;
-import ca.ergotera.remote_ir.db.DatabaseManager;
+import ca.ergotera.remote_ir.db.Repository;
 import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.models.VirtualButton;
+import ca.ergotera.remote_ir.models.VirtualInterface;
 import ca.ergotera.remote_ir.ui.activities.MainActivity;
-import ca.ergotera.remote_ir.utils.Utils;
 
 /**
  * Fragment (UI and behaviour) allowing users to see a list of their
@@ -24,7 +24,7 @@ import ca.ergotera.remote_ir.utils.Utils;
  * @author Dominic Fournier (dominicfournier@outlook.com)
  * Copyright 2018, Ergotera Technologies, All rights reserved.
  */
-public class InterfaceListFragment extends android.app.Fragment {
+public class InterfaceListFragment extends android.app.Fragment implements Repository.ChangeListener {
 
     private static final String CLASS_ID = InterfaceListFragment.class.getSimpleName();
 
@@ -33,6 +33,8 @@ public class InterfaceListFragment extends android.app.Fragment {
     private View view;
 
     private boolean uiConfigured;
+    private Repository.Request loadRequest;
+    private TextView emptyListNotice;
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
@@ -66,43 +68,89 @@ public class InterfaceListFragment extends android.app.Fragment {
         });
 
 
+        Repository repository = Repository.getInstance(getActivity());
+        repository.addChangeListener(this);
+        if (!this.uiConfigured) {
+            if (loadRequest == null) {
+                loadRequest = repository.getAllInterfaces(new Repository.Callback<VirtualInterface[]>() {
+                    @Override
+                    public void onResult(VirtualInterface[] interfaces) {
+                        loadRequest = null;
+                        showInterfaces(interfaces);
+                    }
+                });
+            }
+        } else {
+            Logger.Debug(CLASS_ID, "List was already created, not recreating.");
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        Repository.getInstance(getActivity()).removeChangeListener(this);
+        if (loadRequest != null) {
+            loadRequest.cancel();
+            loadRequest = null;
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        ((MainActivity)getActivity()).getToolbar().setTitle(getResources().getString(R.string.nav_menu_nav_section_interface_list));
+    }
+
+    /**
+     * Adds an element to the list for every interface, once loaded.
+     */
+    private void showInterfaces(VirtualInterface[] interfaces) {
         android.app.FragmentManager fragMgr = getFragmentManager();
         LinearLayout linlayout = (LinearLayout) getActivity().findViewById(R.id.frag_interface_list_scrollable_linlayout);
 
-        DatabaseManager dbMgr = new DatabaseManager(getActivity());
-        Cursor response = dbMgr.getAllDataFromTable(DatabaseManager.INTERFACE_TABLE_NAME);
-
-        if (response == null || response.getCount() == 0) {
-            TextView emptyListNotice = new TextView(getActivity());
+        if (interfaces.length == 0) {
+            emptyListNotice = new TextView(getActivity());
             emptyListNotice.setText(getResources().getString(R.string.empty_interface_list));
             emptyListNotice.setTextSize(24);
             linlayout.addView(emptyListNotice);
         } else {
-            if (!this.uiConfigured) {
-                while (response.moveToNext()) {
-                    int interfaceId = response.getInt(0);
-                    String interfaceCreationDate = response.getString(1);
-                    String interfaceModificationDate = response.getString(2);
-                    String interfaceName = response.getString(3);
-                    String strBtnIds = response.getString(4);
-                    int[] interfaceBtnIds = null;
-                    if (strBtnIds != null && !strBtnIds.equals(""))
-                        interfaceBtnIds = Utils.convertStrArrayToIntArray(strBtnIds);
-                    InterfaceListElementFragment btnListElem = InterfaceListElementFragment.newInstance(interfaceId, interfaceCreationDate, interfaceModificationDate, interfaceName, interfaceBtnIds);
-                    fragMgr.beginTransaction().add(R.id.frag_interface_list_scrollable_linlayout, btnListElem).commit();
-                }
-            } else {
-                Logger.Debug(CLASS_ID, "List was already created, not recreating.");
+            for (VirtualInterface vinterface : interfaces) {
+                fragMgr.beginTransaction().add(R.id.frag_interface_list_scrollable_linlayout, InterfaceListElementFragment.newInstance(vinterface), elementTag(vinterface.getId())).commit();
             }
-            dbMgr.close();
-            this.uiConfigured = true;
         }
+        this.uiConfigured = true;
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-        ((MainActivity)getActivity()).getToolbar().setTitle(getResources().getString(R.string.nav_menu_nav_section_interface_list));
+    public void onButtonChanged(int change, int id, VirtualButton button) {}
+
+    /**
+     * Adds, updates or removes the element of the interface changed, the rest of the list is kept.
+     */
+    @Override
+    public void onInterfaceChanged(int change, int id, VirtualInterface vinterface) {
+        if (!this.uiConfigured) {
+            return; // Not loaded yet, the list is loaded with the change
+        }
+        android.app.FragmentManager fragMgr = getFragmentManager();
+        InterfaceListElementFragment interfaceListElem = (InterfaceListElementFragment) fragMgr.findFragmentByTag(elementTag(id));
+        if (change == Repository.ADDED) {
+            if (emptyListNotice != null) {
+                ((ViewGroup) emptyListNotice.getParent()).removeView(emptyListNotice);
+                emptyListNotice = null;
+            }
+            fragMgr.beginTransaction().add(R.id.frag_interface_list_scrollable_linlayout, InterfaceListElementFragment.newInstance(vinterface), elementTag(id)).commit();
+        } else if (interfaceListElem != null) {
+            if (change == Repository.UPDATED) {
+                interfaceListElem.setInterface(vinterface);
+            } else {
+                fragMgr.beginTransaction().remove(interfaceListElem).commit();
+            }
+        }
+    }
+
+    private static String elementTag(int interfaceId) {
+        return CLASS_ID + ":" + interfaceId;
     }
 
     @Override
@@ -1,7 +1,5 @@
 package ca.ergotera.remote_ir.ui.fragments;
 
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.view.LayoutInflater;
@@ -13,8 +11,9 @@ import android.widget.TextView;
 import java.util.ArrayList;
 
 import ca.ergotera.remote_ir.app.R;
-import ca.ergotera.remote_ir.db.DatabaseManager;
+import ca.ergotera.remote_ir.db.Repository;
 import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.models.VirtualButton;
 import ca.ergotera.remote_ir.models.VirtualInterface;
 
 /**
@@ -35,6 +34,7 @@ public class SelectableButtonListFragment extends android.app.Fragment {
     private View view;
 
     private boolean uiConfigured;
+    private Repository.Request loadRequest;
     private ArrayList<ButtonListSelectableElementFragment> selectedBtnsList = new ArrayList<>();
 
     private int[] buttonids;
@@ -85,52 +85,57 @@ public class SelectableButtonListFragment extends android.app.Fragment {
         super.onStart();
 
         if (!this.uiConfigured) {
-            android.app.FragmentManager fragMgr = getFragmentManager();
-            LinearLayout linlayout = (LinearLayout) getActivity().findViewById(R.id.frag_create_interface_selectable_btns_scrollable_linlayout);
-
-            DatabaseManager dbMgr = new DatabaseManager(getActivity());
-            Cursor response = dbMgr.getAllDataFromTable(DatabaseManager.BTN_TABLE_NAME);
-
-            if (response.getCount() == 0) {
-                TextView emptyListNotice = new TextView(getActivity());
-                emptyListNotice.setText(getResources().getString(R.string.empty_button_list));
-                emptyListNotice.setTextSize(24);
-                emptyListNotice.setPadding(20, 20, 20, 20);
-                linlayout.addView(emptyListNotice);
-            } else {
-                while (response.moveToNext()) {
-                    int btnId = response.getInt(0);
-                    String btnCreationDate = response.getString(1);
-                    String btnModificationDate = response.getString(2);
-                    String btnName = response.getString(3);
-                    String btnStrImgPath = response.getString(4);
-                    String btnStrAudioPath = response.getString(5);
-                    String btnSignal = response.getString(6);
-                    Uri btnImgPath = null;
-                    if (btnStrImgPath != null) {
-                        btnImgPath = Uri.parse(btnStrImgPath);
+            if (loadRequest == null) {
+                loadRequest = Repository.getInstance(getActivity()).getAllButtons(new Repository.Callback<VirtualButton[]>() {
+                    @Override
+                    public void onResult(VirtualButton[] buttons) {
+                        loadRequest = null;
+                        showButtons(buttons);
                     }
-                    Uri btnAudioPath = null;
-                    if (btnStrAudioPath != null) {
-                        btnAudioPath = Uri.parse(btnStrAudioPath);
-                    }
-                    ButtonListSelectableElementFragment btnListElem;
-                    if (getArguments() != null) {
-                        btnListElem = ButtonListSelectableElementFragment.newInstance(btnId, btnCreationDate, btnModificationDate, btnName, btnImgPath, btnAudioPath, btnSignal, idContainedInInterfaceBtnIds(btnId));
-                    } else {
-                        btnListElem = ButtonListSelectableElementFragment.newInstance(btnId, btnCreationDate, btnModificationDate, btnName, btnImgPath, btnAudioPath, btnSignal);
-                    }
-                    selectedBtnsList.add(btnListElem);
-                    fragMgr.beginTransaction().add(R.id.frag_create_interface_selectable_btns_scrollable_linlayout, btnListElem).commit();
-                }
+                });
             }
-            dbMgr.close();
-            this.uiConfigured = true;
         } else {
             Logger.Debug(CLASS_ID, "List was already created, not recreating.");
         }
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+        if (loadRequest != null) {
+            loadRequest.cancel();
+            loadRequest = null;
+        }
+    }
+
+    /**
+     * Adds a selectable element to the list for every button, once loaded.
+     */
+    private void showButtons(VirtualButton[] buttons) {
+        android.app.FragmentManager fragMgr = getFragmentManager();
+        LinearLayout linlayout = (LinearLayout) getActivity().findViewById(R.id.frag_create_interface_selectable_btns_scrollable_linlayout);
+
+        if (buttons.length == 0) {
+            TextView emptyListNotice = new TextView(getActivity());
+            emptyListNotice.setText(getResources().getString(R.string.empty_button_list));
+            emptyListNotice.setTextSize(24);
+            emptyListNotice.setPadding(20, 20, 20, 20);
+            linlayout.addView(emptyListNotice);
+        } else {
+            for (VirtualButton btn : buttons) {
+                ButtonListSelectableElementFragment btnListElem;
+                if (getArguments() != null) {
+                    btnListElem = ButtonListSelectableElementFragment.newInstance(btn.getId(), btn.getCreationDate(), btn.getModificationDate(), btn.getName(), btn.getImagePath(), btn.getAudioPath(), btn.getSignal(), idContainedInInterfaceBtnIds(btn.getId()));
+                } else {
+                    btnListElem = ButtonListSelectableElementFragment.newInstance(btn.getId(), btn.getCreationDate(), btn.getModificationDate(), btn.getName(), btn.getImagePath(), btn.getAudioPath(), btn.getSignal());
+                }
+                selectedBtnsList.add(btnListElem);
+                fragMgr.beginTransaction().add(R.id.frag_create_interface_selectable_btns_scrollable_linlayout, btnListElem).commit();
+            }
+        }
+        this.uiConfigured = true;
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         // Save the values you need from your textview into "outState"-object
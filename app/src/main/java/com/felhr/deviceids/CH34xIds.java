@@ -15,14 +15,27 @@ public class CH34xIds
                     new ConcreteDevice(0x1a86, 0x0445)
             };
 
+    private static final DeviceIdTable<Boolean> supportedDevices = new DeviceIdTable<>();
+
+    static
+    {
+        supportedDevices.putAllAbsent(getPackedIds(), Boolean.TRUE);
+    }
+
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return supportedDevices.contains(vendorId, productId);
+    }
+
+    /**
+     * Ids of the devices of the family, packed by {@link DeviceIdTable#pack(int, int)}.
+     */
+    public static int[] getPackedIds()
+    {
+        int[] ids = new int[ch34xDevices.length];
         for(int i=0;i<=ch34xDevices.length-1;i++)
-        {
-            if(ch34xDevices[i].vendorId == vendorId &&ch34xDevices[i].productId == productId )
-                return true;
-        }
-        return false;
+            ids[i] = DeviceIdTable.pack(ch34xDevices[i].vendorId, ch34xDevices[i].productId);
+        return ids;
     }
 
     private static class ConcreteDevice
@@ -141,16 +141,27 @@ public class CP210xIds
                     new ConcreteDevice(0x413C, 0x9500)
             };
 
+    private static final DeviceIdTable<Boolean> supportedDevices = new DeviceIdTable<>();
+
+    static
+    {
+        supportedDevices.putAllAbsent(getPackedIds(), Boolean.TRUE);
+    }
+
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return supportedDevices.contains(vendorId, productId);
+    }
+
+    /**
+     * Ids of the devices of the family, packed by {@link DeviceIdTable#pack(int, int)}.
+     */
+    public static int[] getPackedIds()
+    {
+        int[] ids = new int[cp210xDevices.length];
         for(int i=0;i<=cp210xDevices.length-1;i++)
-        {
-            if(cp210xDevices[i].vendorId == vendorId && cp210xDevices[i].productId == productId )
-            {
-                return true;
-            }
-        }
-        return false;
+            ids[i] = DeviceIdTable.pack(cp210xDevices[i].vendorId, cp210xDevices[i].productId);
+        return ids;
     }
 
     private static class ConcreteDevice
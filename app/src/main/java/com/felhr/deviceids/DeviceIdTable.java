@@ -0,0 +1,118 @@
+package com.felhr.deviceids;
+
+/**
+ * Open addressing hash table keyed by the vendor and product ids of a USB device, packed in an
+ * int as (vid << 16) | pid. Looking a device up is a few int comparisons, without boxing or
+ * scanning every known device.
+ *
+ * Lookups do not lock: every change builds a new table, published when complete. Changes are
+ * rare (startup and ids registered by the user), lookups happen on every attach.
+ */
+public final class DeviceIdTable<V>
+{
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Table
+    {
+        final int[] keys;
+        final Object[] values; // null for empty slots
+        final int mask;
+        int size; // Only changed before the table is published
+
+        Table(int capacity)
+        {
+            keys = new int[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+
+    public static int pack(int vendorId, int productId)
+    {
+        return (vendorId << 16) | (productId & 0xFFFF);
+    }
+
+    /**
+     * @return the value of the device, or null if it is unknown.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int vendorId, int productId)
+    {
+        Table t = table;
+        int key = pack(vendorId, productId);
+        for(int i = slot(key, t.mask); ; i = (i + 1) & t.mask)
+        {
+            Object value = t.values[i];
+            if(value == null || t.keys[i] == key)
+                return (V) value;
+        }
+    }
+
+    public boolean contains(int vendorId, int productId)
+    {
+        return get(vendorId, productId) != null;
+    }
+
+    public int size()
+    {
+        return table.size;
+    }
+
+    /**
+     * Maps the device to value, replacing its previous value.
+     */
+    public synchronized void put(int vendorId, int productId, V value)
+    {
+        putAll(new int[]{pack(vendorId, productId)}, value, true);
+    }
+
+    /**
+     * Maps every device of packedIds to value, keeping the devices already known.
+     */
+    public synchronized void putAllAbsent(int[] packedIds, V value)
+    {
+        putAll(packedIds, value, false);
+    }
+
+    private void putAll(int[] packedIds, Object value, boolean replace)
+    {
+        if(value == null)
+            throw new NullPointerException("value");
+        Table old = table;
+        int size = old.size + packedIds.length;
+        int capacity = MIN_CAPACITY;
+        while(capacity < size * 2) // Load factor of 1/2 at most
+            capacity <<= 1;
+
+        Table t = new Table(capacity);
+        for(int i = 0; i < old.keys.length; i++)
+        {
+            if(old.values[i] != null)
+                insert(t, old.keys[i], old.values[i], false);
+        }
+        for(int key : packedIds)
+            insert(t, key, value, replace);
+        table = t;
+    }
+
+    private static void insert(Table t, int key, Object value, boolean replace)
+    {
+        int i = slot(key, t.mask);
+        while(t.values[i] != null && t.keys[i] != key)
+            i = (i + 1) & t.mask;
+        if(t.values[i] == null)
+            t.size++;
+        else if(!replace)
+            return;
+        t.keys[i] = key;
+        t.values[i] = value;
+    }
+
+    private static int slot(int key, int mask)
+    {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -558,16 +558,27 @@ public class FTDISioIds
                     new ConcreteDevice(0x0403, 0x0), //fake FTDI reprogrammed by driver
             };
 
+    private static final DeviceIdTable<Boolean> supportedDevices = new DeviceIdTable<>();
+
+    static
+    {
+        supportedDevices.putAllAbsent(getPackedIds(), Boolean.TRUE);
+    }
+
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return supportedDevices.contains(vendorId, productId);
+    }
+
+    /**
+     * Ids of the devices of the family, packed by {@link DeviceIdTable#pack(int, int)}.
+     */
+    public static int[] getPackedIds()
+    {
+        int[] ids = new int[ftdiDevices.length];
         for(int i=0;i<=ftdiDevices.length-1;i++)
-        {
-            if(ftdiDevices[i].vendorId == vendorId && ftdiDevices[i].productId == productId )
-            {
-                return true;
-            }
-        }
-        return false;
+            ids[i] = DeviceIdTable.pack(ftdiDevices[i].vendorId, ftdiDevices[i].productId);
+        return ids;
     }
 
 
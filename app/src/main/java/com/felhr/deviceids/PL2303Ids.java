@@ -68,14 +68,27 @@ public class PL2303Ids
                     new ConcreteDevice (0x0557, 0x2008)
             };
 
+    private static final DeviceIdTable<Boolean> supportedDevices = new DeviceIdTable<>();
+
+    static
+    {
+        supportedDevices.putAllAbsent(getPackedIds(), Boolean.TRUE);
+    }
+
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return supportedDevices.contains(vendorId, productId);
+    }
+
+    /**
+     * Ids of the devices of the family, packed by {@link DeviceIdTable#pack(int, int)}.
+     */
+    public static int[] getPackedIds()
+    {
+        int[] ids = new int[pl2303Devices.length];
         for(int i=0;i<=pl2303Devices.length-1;i++)
-        {
-            if(pl2303Devices[i].vendorId == vendorId && pl2303Devices[i].productId == productId )
-                return true;
-        }
-        return false;
+            ids[i] = DeviceIdTable.pack(pl2303Devices[i].vendorId, pl2303Devices[i].productId);
+        return ids;
     }
 
 
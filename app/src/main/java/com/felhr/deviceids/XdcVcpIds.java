@@ -15,16 +15,27 @@ public class XdcVcpIds
                     new ConcreteDevice(0x0483, 0x5740) //CC3D (STM)
             };
 
+    private static final DeviceIdTable<Boolean> supportedDevices = new DeviceIdTable<>();
+
+    static
+    {
+        supportedDevices.putAllAbsent(getPackedIds(), Boolean.TRUE);
+    }
+
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return supportedDevices.contains(vendorId, productId);
+    }
+
+    /**
+     * Ids of the devices of the family, packed by {@link DeviceIdTable#pack(int, int)}.
+     */
+    public static int[] getPackedIds()
+    {
+        int[] ids = new int[xdcvcpDevices.length];
         for(int i=0;i<=xdcvcpDevices.length-1;i++)
-        {
-            if(xdcvcpDevices[i].vendorId == vendorId && xdcvcpDevices[i].productId == productId )
-            {
-                return true;
-            }
-        }
-        return false;
+            ids[i] = DeviceIdTable.pack(xdcvcpDevices[i].vendorId, xdcvcpDevices[i].productId);
+        return ids;
     }
 
     private static class ConcreteDevice
@@ -0,0 +1,151 @@
+package com.felhr.services;
+
+import java.util.Arrays;
+
+import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.serial_com.ResponseParser;
+
+/**
+ * Finds the highest baud rate a port and the module at its end both support: the port is set to
+ * every rate of a profile in increasing order and a PING is sent at each one, until one is not
+ * answered. Replies are handed to {@link #onFrame(byte[], int, int)} while probing.
+ *
+ * Also gives the rate to fall back to when the line reports framing or parity errors.
+ */
+public class BaudNegotiator {
+
+    private static final String CLASS_ID = BaudNegotiator.class.getSimpleName();
+
+    // Rates tried when no profile was given for a device, the first one is the rate of the module
+    public static final int[] DEFAULT_BAUD_RATES = {115200, 230400, 460800, 921600};
+
+    public static final long DEFAULT_PING_TIMEOUT_MS = 250;
+    public static final int DEFAULT_PING_ATTEMPTS = 2;
+
+    private static final byte[] CMD_PING = "PING {}".getBytes();
+
+    /**
+     * The port being negotiated.
+     */
+    public interface Link {
+        void setBaudRate(int baudRate);
+
+        void write(byte[] data);
+    }
+
+    private final Link link;
+    private final long timeoutMs;
+    private final int attempts;
+    private final ResponseParser parser = new ResponseParser();
+    private final ResponseParser.Response response = new ResponseParser.Response();
+    private boolean probing; // Guarded by this
+    private boolean answered;
+
+    public BaudNegotiator(Link link) {
+        this(link, DEFAULT_PING_TIMEOUT_MS, DEFAULT_PING_ATTEMPTS);
+    }
+
+    public BaudNegotiator(Link link, long timeoutMs, int attempts) {
+        this.link = link;
+        this.timeoutMs = timeoutMs;
+        this.attempts = attempts;
+    }
+
+    /**
+     * Takes the frames received while probing, PING replies end the current probe.
+     *
+     * @return true if the frame was consumed, false when not probing.
+     */
+    public synchronized boolean onFrame(byte[] buffer, int offset, int length) {
+        if (!probing)
+            return false;
+        if (parser.parse(buffer, offset, length, response) && response.getType() == ResponseParser.PING) {
+            answered = true;
+            notifyAll();
+        }
+        return true; // Anything else is noise of a wrong rate
+    }
+
+    /**
+     * Sets the port to baudRate and pings the module, waiting for the reply.
+     *
+     * @return true if the module answered at that rate.
+     */
+    public boolean probe(int baudRate) {
+        link.setBaudRate(baudRate);
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            synchronized (this) {
+                probing = true;
+                answered = false;
+            }
+            link.write(CMD_PING);
+            try {
+                if (awaitAnswer())
+                    return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                synchronized (this) {
+                    probing = false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Probes the rates of the profile in increasing order, and leaves the port at the highest
+     * one answered below the first one which is not.
+     *
+     * @return the rate the port is left at, or -1 if none was answered (the port is then left
+     * at the last rate probed).
+     */
+    public int negotiate(int[] baudRates) {
+        int[] rates = sorted(baudRates);
+        int best = -1;
+        int last = -1;
+        for (int rate : rates) {
+            last = rate;
+            if (probe(rate)) {
+                best = rate;
+            } else if (best > 0) {
+                break;
+            }
+            if (Thread.currentThread().isInterrupted())
+                break;
+        }
+        if (best > 0 && best != last)
+            link.setBaudRate(best);
+        Logger.Info(CLASS_ID, best > 0 ? "Negotiated " + best + " bauds." : "No rate answered.");
+        return best;
+    }
+
+    /**
+     * @return the highest rate of the profile below baudRate, or -1 if there is none.
+     */
+    public static int lowerRate(int[] baudRates, int baudRate) {
+        int lower = -1;
+        for (int rate : baudRates) {
+            if (rate < baudRate && rate > lower)
+                lower = rate;
+        }
+        return lower;
+    }
+
+    private synchronized boolean awaitAnswer() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long left = timeoutMs;
+        while (!answered && left > 0) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return answered;
+    }
+
+    private static int[] sorted(int[] baudRates) {
+        int[] rates = baudRates.clone();
+        Arrays.sort(rates);
+        return rates;
+    }
+}
@@ -0,0 +1,120 @@
+package com.felhr.services;
+
+import android.hardware.usb.UsbDevice;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.felhr.usbserial.SerialLineConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.ergotera.remote_ir.misc.Logger;
+
+/**
+ * Remembers the last device a serial port was opened on, by vendor id, product id and serial
+ * number, with the line configuration it was using. When the same device is attached again
+ * (ie.: a loose cable), UsbService opens it right away with that configuration, without looking
+ * for a device or asking for a permission still granted.
+ *
+ * Also remembers the rate the module of each device answered at, so the baud negotiation of a
+ * device seen before starts from it instead of probing every rate again.
+ */
+public class ReconnectManager {
+
+    private static final String CLASS_ID = ReconnectManager.class.getSimpleName();
+
+    private SerialLineConfig lineConfig;
+    private boolean known;
+    private int vendorId;
+    private int productId;
+    private String serialNumber; // null if it could not be read
+    private long detachedAt; // SystemClock.elapsedRealtime(), 0 while attached
+    private int reconnects;
+    private final Map<String, Integer> baudRates = new HashMap<>(); // Answered rate by device
+
+    public ReconnectManager(SerialLineConfig lineConfig) {
+        this.lineConfig = lineConfig;
+    }
+
+    /**
+     * Line configuration applied to the next port opened.
+     */
+    public synchronized SerialLineConfig getLineConfig() {
+        return lineConfig;
+    }
+
+    public synchronized void setLineConfig(SerialLineConfig lineConfig) {
+        this.lineConfig = lineConfig;
+    }
+
+    /**
+     * Records the device of a port opened and configured.
+     */
+    public synchronized void onConnected(UsbDevice device) {
+        if (detachedAt != 0 && isLastDevice(device)) {
+            reconnects++;
+            Logger.Info(CLASS_ID, "Reconnected in " + (SystemClock.elapsedRealtime() - detachedAt) + " ms.");
+        }
+        known = true;
+        vendorId = device.getVendorId();
+        productId = device.getProductId();
+        serialNumber = readSerialNumber(device);
+        detachedAt = 0;
+    }
+
+    public synchronized void onDetached(UsbDevice device) {
+        if (device == null || isLastDevice(device))
+            detachedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return true if device is the last device connected. Devices whose serial number cannot be
+     * read (no permission yet on recent Android versions) are compared by ids only.
+     */
+    public synchronized boolean isLastDevice(UsbDevice device) {
+        if (!known || device.getVendorId() != vendorId || device.getProductId() != productId)
+            return false;
+        String serial = readSerialNumber(device);
+        return serial == null || serialNumber == null || serial.equals(serialNumber);
+    }
+
+    /**
+     * @return the rate the module of this device answered at last, -1 if unknown.
+     */
+    public synchronized int getBaudRate(UsbDevice device) {
+        Integer baudRate = baudRates.get(deviceKey(device));
+        return baudRate != null ? baudRate : -1;
+    }
+
+    public synchronized void setBaudRate(UsbDevice device, int baudRate) {
+        baudRates.put(deviceKey(device), baudRate);
+    }
+
+    public synchronized int getReconnects() {
+        return reconnects;
+    }
+
+    public synchronized void forget() {
+        known = false;
+        serialNumber = null;
+        detachedAt = 0;
+    }
+
+    // Devices whose serial number cannot be read share the entry of their ids
+    private static String deviceKey(UsbDevice device) {
+        String serial = readSerialNumber(device);
+        String ids = device.getVendorId() + ":" + device.getProductId();
+        return serial != null ? ids + ":" + serial : ids;
+    }
+
+    private static String readSerialNumber(UsbDevice device) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return null;
+        try {
+            return device.getSerialNumber();
+        } catch (SecurityException e) {
+            return null; // Needs the permission on recent Android versions
+        }
+    }
+}
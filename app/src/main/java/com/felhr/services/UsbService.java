@@ -11,17 +11,28 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 
+import com.felhr.deviceids.DeviceIdTable;
 import com.felhr.usbserial.CDCSerialDevice;
+import com.felhr.usbserial.PooledReadBuffer;
+import com.felhr.usbserial.SerialIoLoop;
+import com.felhr.usbserial.SerialLineConfig;
 import com.felhr.usbserial.UsbSerialDevice;
 import com.felhr.usbserial.UsbSerialInterface;
 
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import ca.ergotera.remote_ir.misc.Logger;
+import ca.ergotera.remote_ir.serial_com.FrameDecoder;
 
 public class UsbService extends Service {
 
@@ -37,12 +48,17 @@ public class UsbService extends Service {
     public static final String ACTION_USB_DISCONNECTED = "com.felhr.usbservice.USB_DISCONNECTED";
     public static final String ACTION_CDC_DRIVER_NOT_WORKING = "com.felhr.connectivityservices.ACTION_CDC_DRIVER_NOT_WORKING";
     public static final String ACTION_USB_DEVICE_NOT_WORKING = "com.felhr.connectivityservices.ACTION_USB_DEVICE_NOT_WORKING";
+    // UsbDevice id of the port a broadcast is about, missing when it is about every port
+    public static final String EXTRA_DEVICE_ID = "com.felhr.usbservice.DEVICE_ID";
     public static final int MESSAGE_FROM_SERIAL_PORT = 0;
     public static final int CTS_CHANGE = 1;
     public static final int DSR_CHANGE = 2;
     public static final int SYNC_READ = 3;
     private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
-    private static final int BAUD_RATE = 115200; // BaudRate. Change this value if you need
+    private static final int BAUD_RATE = BaudNegotiator.DEFAULT_BAUD_RATES[0]; // Rate of the module until negotiated
+    // Framing or parity errors in this window make the port fall back to a lower rate
+    private static final int LINE_ERRORS_BEFORE_FALLBACK = 4;
+    private static final long LINE_ERROR_WINDOW_MS = 1000;
     public static boolean SERVICE_CONNECTED = false;
 
     private IBinder binder = new UsbBinder();
@@ -50,50 +66,256 @@ public class UsbService extends Service {
     private Context context;
     private Handler mHandler;
     private UsbManager usbManager;
-    private UsbDevice device;
-    private UsbDeviceConnection connection;
-    private UsbSerialDevice serialPort;
 
-    private boolean serialPortConnected;
     /*
-     *  Data received from serial port will be received here. Just populate onReceivedData with your code
-     *  In this particular example. byte stream is converted to String and send to UI thread to
-     *  be treated there.
+     * Serial ports by UsbDevice id, in the order they were found. Only one is opened unless the
+     * multi-device mode is enabled, the first connected one is the default port for write().
      */
-    private UsbSerialInterface.UsbReadCallback mCallback = new UsbSerialInterface.UsbReadCallback() {
-        @Override
-        public void onReceivedData(byte[] arg0) {
-            try {
-                String data = new String(arg0, "UTF-8");
-                if (mHandler != null)
-                    mHandler.obtainMessage(MESSAGE_FROM_SERIAL_PORT, data).sendToTarget();
-            } catch (UnsupportedEncodingException e) {
-                Logger.Error(CLASS_ID, e.getMessage());
-            }
-        }
-    };
+    private final Map<Integer, SerialPort> ports = new LinkedHashMap<>();
+    private final ArrayDeque<UsbDevice> permissionQueue = new ArrayDeque<>(); // One request at a time
+    private UsbDevice permissionPending;
+    private boolean multiDeviceMode;
+    private SerialIoLoop ioLoop; // I/O threads shared by every port in multi-device mode
+    // Opens the ports and changes their rates, one port at a time and out of the read threads
+    private HandlerThread portThread;
+    private Handler portHandler;
+
+    private int writeMaxLatencyMs = 0; // Write coalescing deadline, 0 sends every write right away
+
+    // Last device connected and the line configuration applied to every port
+    private final ReconnectManager reconnectManager = new ReconnectManager(SerialLineConfig.of8N1(BAUD_RATE));
+    private final DeviceIdTable<int[]> baudProfiles = new DeviceIdTable<>(); // Rates by vid/pid
 
     /*
-     * State changes in the CTS line will be received here
+     * A serial port opened on one USB device. Messages sent to the handler carry the id of the
+     * device in arg1.
      */
-    private UsbSerialInterface.UsbCTSCallback ctsCallback = new UsbSerialInterface.UsbCTSCallback() {
-        @Override
-        public void onCTSChanged(boolean state) {
-            if(mHandler != null)
-                mHandler.obtainMessage(CTS_CHANGE).sendToTarget();
+    private class SerialPort {
+        private final UsbDevice device;
+        private UsbDeviceConnection connection;
+        private volatile UsbSerialDevice serialPort;
+        private volatile boolean connected;
+        // Guarded by this, a port closed while its ConnectionTask runs is never marked connected
+        private boolean opened;
+        private boolean closed;
+        private volatile int baudRate; // Rate the port is set at, its own whatever the other ports use
+        private int[] baudRates; // Profile of the device
+        private long lineErrorsSince;
+        private int lineErrors;
+        private boolean fallingBack;
+        // Set when the port opens, closes or changes its rate, the read thread then resets the decoder
+        private volatile boolean decoderStale;
+
+        SerialPort(UsbDevice device) {
+            this.device = device;
         }
-    };
 
-    /*
-     * State changes in the DSR line will be received here
-     */
-    private UsbSerialInterface.UsbDSRCallback dsrCallback = new UsbSerialInterface.UsbDSRCallback() {
-        @Override
-        public void onDSRChanged(boolean state) {
-            if(mHandler != null)
-                mHandler.obtainMessage(DSR_CHANGE).sendToTarget();
+        private final BaudNegotiator negotiator = new BaudNegotiator(new BaudNegotiator.Link() {
+            @Override
+            public void setBaudRate(int baudRate) {
+                applyBaudRate(baudRate);
+            }
+
+            @Override
+            public void write(byte[] data) {
+                serialPort.write(data);
+            }
+        });
+
+        /*
+         * Complete responses from the module are received here. Each one is copied out of the
+         * decoder and sent to the UI thread to be parsed there.
+         */
+        private final FrameDecoder frameDecoder = new FrameDecoder(new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                if (negotiator.onFrame(buffer, offset, length))
+                    return; // Reply to a probe of the baud negotiation
+                if (mHandler != null) {
+                    byte[] data = Arrays.copyOfRange(buffer, offset, offset + length);
+                    mHandler.obtainMessage(MESSAGE_FROM_SERIAL_PORT, device.getDeviceId(), 0, data).sendToTarget();
+                }
+            }
+        });
+
+        /*
+         *  Data received from serial port will be received here, in chunks that do not match
+         *  responses. They are split into responses by the frame decoder.
+         */
+        private UsbSerialInterface.UsbReadBufferCallback mCallback = new UsbSerialInterface.UsbReadBufferCallback() {
+            @Override
+            public void onReceivedData(PooledReadBuffer data) {
+                try {
+                    if (decoderStale) {
+                        // The partial frame was received at another rate or on the previous connection
+                        decoderStale = false;
+                        frameDecoder.reset();
+                    }
+                    frameDecoder.decode(data.data());
+                } finally {
+                    data.release();
+                }
+            }
+        };
+
+        /*
+         * State changes in the CTS line will be received here
+         */
+        private UsbSerialInterface.UsbCTSCallback ctsCallback = new UsbSerialInterface.UsbCTSCallback() {
+            @Override
+            public void onCTSChanged(boolean state) {
+                if(mHandler != null)
+                    mHandler.obtainMessage(CTS_CHANGE, device.getDeviceId(), 0).sendToTarget();
+            }
+        };
+
+        /*
+         * State changes in the DSR line will be received here
+         */
+        private UsbSerialInterface.UsbDSRCallback dsrCallback = new UsbSerialInterface.UsbDSRCallback() {
+            @Override
+            public void onDSRChanged(boolean state) {
+                if(mHandler != null)
+                    mHandler.obtainMessage(DSR_CHANGE, device.getDeviceId(), 0).sendToTarget();
+            }
+        };
+
+        /*
+         * Framing and parity errors (FTDI only) are counted here, too many of them and the port
+         * falls back to a lower rate of its profile.
+         */
+        private UsbSerialInterface.UsbFrameCallback frameCallback = new UsbSerialInterface.UsbFrameCallback() {
+            @Override
+            public void onFramingError() {
+                onLineError();
+            }
+        };
+
+        private UsbSerialInterface.UsbParityCallback parityCallback = new UsbSerialInterface.UsbParityCallback() {
+            @Override
+            public void onParityError() {
+                onLineError();
+            }
+        };
+
+        /*
+         * Rate the port is opened at: the rate the device was answered at last, else the rate of
+         * the line configuration if in the profile of the device, else the lowest of its profile.
+         */
+        private int openingBaudRate() {
+            baudRates = getBaudProfile(device);
+            int known = reconnectManager.getBaudRate(device);
+            if (contains(baudRates, known))
+                return known;
+            int configured = reconnectManager.getLineConfig().baudRate;
+            if (contains(baudRates, configured))
+                return configured;
+            int lowest = baudRates[0];
+            for (int rate : baudRates)
+                lowest = Math.min(lowest, rate);
+            return lowest;
         }
-    };
+
+        /*
+         * Sets the port to the rate of its profile, or negotiates the highest rate of the profile
+         * the module answers at. A device seen before keeps the rate it was answered at if still
+         * answered, without probing the rates above it again. Runs on the port thread, once the
+         * port is opened at openingBaudRate().
+         */
+        private void negotiateBaudRate() {
+            int current = baudRate;
+            int known = reconnectManager.getBaudRate(device);
+            int rate;
+            if (baudRates.length == 1) {
+                rate = baudRates[0];
+                if (rate != current)
+                    applyBaudRate(rate);
+            } else if (contains(baudRates, known) && negotiator.probe(known)) {
+                rate = known;
+            } else {
+                rate = negotiator.negotiate(baudRates);
+                if (rate < 0) { // The module did not answer, keep the rate it was configured at
+                    applyBaudRate(current);
+                    setBaudRate(current);
+                    return;
+                }
+            }
+            setBaudRate(rate);
+            reconnectManager.setBaudRate(device, rate);
+        }
+
+        private void applyBaudRate(int rate) {
+            serialPort.setBaudRate(rate);
+            decoderStale = true;
+        }
+
+        private void setBaudRate(int rate) {
+            baudRate = rate;
+        }
+
+        private synchronized void onLineError() {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lineErrorsSince > LINE_ERROR_WINDOW_MS) {
+                lineErrorsSince = now;
+                lineErrors = 0;
+            }
+            if (++lineErrors < LINE_ERRORS_BEFORE_FALLBACK || fallingBack || !connected)
+                return;
+            lineErrors = 0;
+            // On the port thread, changing the rate is a control transfer. One fallback at a time.
+            fallingBack = portHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    int lower = BaudNegotiator.lowerRate(baudRates, baudRate);
+                    if (connected && lower > 0) {
+                        Logger.Warn(CLASS_ID, "Line errors at " + baudRate + " bauds, falling back to " + lower + ".");
+                        applyBaudRate(lower);
+                        setBaudRate(lower);
+                        reconnectManager.setBaudRate(device, lower);
+                    }
+                    synchronized (SerialPort.this) {
+                        fallingBack = false;
+                    }
+                }
+            });
+        }
+
+        /*
+         * Called by ConnectionTask once the serial port is opened.
+         * Returns false if the port was closed meanwhile, the caller then closes the serial port.
+         */
+        private synchronized boolean onOpened() {
+            if (closed)
+                return false;
+            opened = true;
+            return true;
+        }
+
+        /*
+         * Called by ConnectionTask once the rate is negotiated.
+         * Returns false if the port was closed meanwhile, the serial port is then closed already.
+         */
+        private synchronized boolean onConnected() {
+            if (closed)
+                return false;
+            connected = true;
+            return true;
+        }
+
+        private void close() {
+            boolean wasOpened;
+            synchronized (this) {
+                wasOpened = opened;
+                opened = false;
+                closed = true;
+                connected = false;
+            }
+            if (wasOpened) // Even while negotiating, before being connected
+                serialPort.close();
+            decoderStale = true;
+        }
+    }
+
     /*
      * Different notifications from OS will be received here (USB attached, detached, permission responses...)
      * About BroadcastReceiver: http://developer.android.com/reference/android/content/BroadcastReceiver.html
@@ -101,30 +323,45 @@ public class UsbService extends Service {
     private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context arg0, Intent arg1) {
+            UsbDevice device = arg1.getParcelableExtra(UsbManager.EXTRA_DEVICE);
             if (arg1.getAction().equals(ACTION_USB_PERMISSION)) {
                 boolean granted = arg1.getExtras().getBoolean(UsbManager.EXTRA_PERMISSION_GRANTED);
-                if (granted) // User accepted our USB connection. Try to open the device as a serial port
+                SerialPort port = getPort(device);
+                if (granted && port != null) // User accepted our USB connection. Try to open the device as a serial port
                 {
-                    Intent intent = new Intent(ACTION_USB_PERMISSION_GRANTED);
-                    arg0.sendBroadcast(intent);
-                    connection = usbManager.openDevice(device);
-                    new ConnectionThread().start();
+                    openPort(port);
                 } else // User not accepted our USB connection. Send an Intent to the Main Activity
                 {
+                    removePort(device);
                     Intent intent = new Intent(ACTION_USB_PERMISSION_NOT_GRANTED);
+                    if (device != null)
+                        intent.putExtra(EXTRA_DEVICE_ID, device.getDeviceId());
                     arg0.sendBroadcast(intent);
                 }
+                permissionPending = null;
+                requestNextPermission();
             } else if (arg1.getAction().equals(ACTION_USB_ATTACHED)) {
-                if (!serialPortConnected)
-                    findSerialPortDevice(); // A USB device has been attached. Try to open it as a Serial port
+                if (multiDeviceMode || !isConnected()) {
+                    if (device != null && getPort(device) == null && reconnectManager.isLastDevice(device))
+                        reconnect(device); // The last device is back, ie.: a loose cable
+                    else
+                        findSerialPortDevice(); // A USB device has been attached. Try to open it as a Serial port
+                }
             } else if (arg1.getAction().equals(ACTION_USB_DETACHED)) {
-                // Usb device was disconnected. send an intent to the Main Activity
+                reconnectManager.onDetached(device);
+                if (device != null) {
+                    SerialPort port = removePort(device);
+                    if (port != null)
+                        port.close();
+                } else {
+                    for (SerialPort port : removeAllPorts())
+                        port.close();
+                }
+                // Usb device was disconnected. send an intent to the Main Activity, once its port is removed
                 Intent intent = new Intent(ACTION_USB_DISCONNECTED);
+                if (device != null)
+                    intent.putExtra(EXTRA_DEVICE_ID, device.getDeviceId());
                 arg0.sendBroadcast(intent);
-                if (serialPortConnected) {
-                    serialPort.close();
-                }
-                serialPortConnected = false;
             }
         }
     };
@@ -136,9 +373,11 @@ public class UsbService extends Service {
     @Override
     public void onCreate() {
         this.context = this;
-        serialPortConnected = false;
         UsbService.SERVICE_CONNECTED = true;
         setFilter();
+        portThread = new HandlerThread("UsbPortControl");
+        portThread.start();
+        portHandler = new Handler(portThread.getLooper());
         usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
         findSerialPortDevice();
     }
@@ -161,55 +400,249 @@ public class UsbService extends Service {
     public void onDestroy() {
         super.onDestroy();
         UsbService.SERVICE_CONNECTED = false;
+        if (ioLoop != null) {
+            ioLoop.stop();
+            ioLoop = null;
+            multiDeviceMode = false;
+        }
+        portThread.quit();
     }
 
     /*
      * This function will be called from MainActivity to write data through Serial Port
+     * Returns the id of the device written to, -1 if no port is connected.
+     */
+    public int write(byte[] data) {
+        SerialPort port = getDefaultPort();
+        if (port == null)
+            return -1;
+        port.serialPort.write(data);
+        return port.device.getDeviceId();
+    }
+
+    /*
+     * Writes to the serial port of the given device, ie.: the transceiver of one room zone.
+     * The device id is the arg1 of the messages sent to the handler.
+     */
+    public void write(int deviceId, byte[] data) {
+        SerialPort port;
+        synchronized (ports) {
+            port = ports.get(deviceId);
+        }
+        if (port != null && port.connected)
+            port.serialPort.write(data);
+    }
+
+    /*
+     * Holds small writes back up to maxLatencyMs so they are sent together in one USB transfer.
+     * Call flush() at the end of a burst (ie.: a macro of IR codes) to send it right away.
+     */
+    public void setWriteCoalescing(int maxLatencyMs) {
+        writeMaxLatencyMs = maxLatencyMs;
+        for (SerialPort port : getConnectedPorts())
+            port.serialPort.setWriteCoalescing(maxLatencyMs);
+    }
+
+    public void flush() {
+        for (SerialPort port : getConnectedPorts())
+            port.serialPort.flush();
+    }
+
+    /*
+     * Blocks until at most maxPending bytes written to the default port are waiting to be sent.
+     * Returns false if there is no port or the calling thread was interrupted.
+     */
+    public boolean awaitWriteBacklog(int maxPending) {
+        SerialPort port = getDefaultPort();
+        return port != null && port.serialPort.awaitWriteBacklog(maxPending);
+    }
+
+    /*
+     * Line configuration of the ports opened from now on, and kept for the next reconnections.
+     * Ports already opened keep theirs. Its rate is only the starting rate of the devices whose
+     * rate is not known yet, every port keeps its own negotiated rate (see getBaudRate).
      */
-    public void write(byte[] data) {
-        if (serialPort != null)
-            serialPort.write(data);
+    public void setLineConfig(SerialLineConfig lineConfig) {
+        reconnectManager.setLineConfig(lineConfig);
+    }
+
+    public SerialLineConfig getLineConfig() {
+        return reconnectManager.getLineConfig();
+    }
+
+    /*
+     * Rates tried for a device, from the lowest to the highest the module may answer at. A single
+     * rate is set without negotiation. Devices without a profile try DEFAULT_BAUD_RATES.
+     */
+    public void setBaudProfile(int vendorId, int productId, int... baudRates) {
+        if (baudRates.length == 0)
+            throw new IllegalArgumentException("At least one baud rate is needed");
+        baudProfiles.put(vendorId, productId, baudRates.clone());
+    }
+
+    /*
+     * Current rate of the port of the given device, 0 if it is not connected.
+     */
+    public int getBaudRate(int deviceId) {
+        SerialPort port;
+        synchronized (ports) {
+            port = ports.get(deviceId);
+        }
+        return port != null && port.connected ? port.baudRate : 0;
     }
 
     public void setHandler(Handler mHandler) {
         this.mHandler = mHandler;
     }
 
+    /*
+     * Opens every supported device instead of the first one, so several IR transceivers can be
+     * driven at once. Their I/O is handled by a fixed set of threads shared by all the ports.
+     * Ports already opened keep their own threads.
+     */
+    public void enableMultiDeviceMode() {
+        if (multiDeviceMode)
+            return;
+        ioLoop = new SerialIoLoop();
+        ioLoop.start();
+        multiDeviceMode = true;
+        findSerialPortDevice();
+    }
+
+    /*
+     * Id of the device of the default port, -1 if no port is connected.
+     */
+    public int getDefaultDeviceId() {
+        SerialPort port = getDefaultPort();
+        return port != null ? port.device.getDeviceId() : -1;
+    }
+
+    /*
+     * Ids of the devices whose serial port is open, the first one is the default port.
+     */
+    public int[] getConnectedDeviceIds() {
+        List<SerialPort> connected = getConnectedPorts();
+        int[] ids = new int[connected.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = connected.get(i).device.getDeviceId();
+        return ids;
+    }
+
     private void findSerialPortDevice() {
-        // This snippet will try to open the first encountered usb device connected, excluding usb root hubs
+        // This snippet will try to open the first encountered usb device connected, excluding usb root hubs.
+        // In multi-device mode every one of them is opened.
         HashMap<String, UsbDevice> usbDevices = usbManager.getDeviceList();
-        if (!usbDevices.isEmpty()) {
-            boolean keep = true;
-            for (Map.Entry<String, UsbDevice> entry : usbDevices.entrySet()) {
-                device = entry.getValue();
-                int deviceVID = device.getVendorId();
-                int devicePID = device.getProductId();
-
-                if (deviceVID != 0x1d6b && (devicePID != 0x0001 && devicePID != 0x0002 && devicePID != 0x0003) && deviceVID != 0x5c6 && devicePID != 0x904c) {
-
-                    // There is a device connected to our Android device. Try to open it as a Serial Port.
-                    requestUserPermission();
-                    keep = false;
-                } else {
-                    connection = null;
-                    device = null;
-                }
+        boolean found = false;
+        for (Map.Entry<String, UsbDevice> entry : usbDevices.entrySet()) {
+            UsbDevice device = entry.getValue();
+            int deviceVID = device.getVendorId();
+            int devicePID = device.getProductId();
 
-                if (!keep)
+            if (deviceVID != 0x1d6b && (devicePID != 0x0001 && devicePID != 0x0002 && devicePID != 0x0003) && deviceVID != 0x5c6 && devicePID != 0x904c) {
+                if (getPort(device) != null) // Already opened or waiting for permission
+                    continue;
+
+                // There is a device connected to our Android device. Try to open it as a Serial Port.
+                synchronized (ports) {
+                    ports.put(device.getDeviceId(), new SerialPort(device));
+                }
+                requestUserPermission(device);
+                found = true;
+                if (!multiDeviceMode)
                     break;
             }
-            if (!keep) {
-                // There is no USB devices connected (but usb host were listed). Send an intent to MainActivity.
-                Intent intent = new Intent(ACTION_NO_USB);
-                sendBroadcast(intent);
-            }
-        } else {
-            // There is no USB devices connected. Send an intent to MainActivity
+        }
+        if (!found && !isConnected()) {
+            // There is no USB devices connected (or only usb hosts). Send an intent to MainActivity.
             Intent intent = new Intent(ACTION_NO_USB);
             sendBroadcast(intent);
         }
     }
 
+    /*
+     * Opens the last device again. The permission dialog is skipped while the permission is still
+     * granted, the handler and the callbacks are subscribed to the new port by ConnectionTask.
+     */
+    private void reconnect(UsbDevice device) {
+        SerialPort port = new SerialPort(device);
+        synchronized (ports) {
+            ports.put(device.getDeviceId(), port);
+        }
+        if (usbManager.hasPermission(device))
+            openPort(port);
+        else
+            requestUserPermission(device);
+    }
+
+    private void openPort(SerialPort port) {
+        Intent intent = new Intent(ACTION_USB_PERMISSION_GRANTED);
+        context.sendBroadcast(intent);
+        port.connection = usbManager.openDevice(port.device);
+        portHandler.post(new ConnectionTask(port));
+    }
+
+    private int[] getBaudProfile(UsbDevice device) {
+        int[] baudRates = baudProfiles.get(device.getVendorId(), device.getProductId());
+        return baudRates != null ? baudRates : BaudNegotiator.DEFAULT_BAUD_RATES;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value)
+                return true;
+        }
+        return false;
+    }
+
+    private SerialPort getPort(UsbDevice device) {
+        if (device == null)
+            return null;
+        synchronized (ports) {
+            return ports.get(device.getDeviceId());
+        }
+    }
+
+    private SerialPort removePort(UsbDevice device) {
+        if (device == null)
+            return null;
+        synchronized (ports) {
+            return ports.remove(device.getDeviceId());
+        }
+    }
+
+    private List<SerialPort> removeAllPorts() {
+        synchronized (ports) {
+            List<SerialPort> removed = new ArrayList<>(ports.values());
+            ports.clear();
+            return removed;
+        }
+    }
+
+    private SerialPort getDefaultPort() {
+        synchronized (ports) {
+            for (SerialPort port : ports.values()) {
+                if (port.connected)
+                    return port;
+            }
+        }
+        return null;
+    }
+
+    private List<SerialPort> getConnectedPorts() {
+        List<SerialPort> connected = new ArrayList<>();
+        synchronized (ports) {
+            for (SerialPort port : ports.values()) {
+                if (port.connected)
+                    connected.add(port);
+            }
+        }
+        return connected;
+    }
+
+    private boolean isConnected() {
+        return getDefaultPort() != null;
+    }
+
     private void setFilter() {
         IntentFilter filter = new IntentFilter();
         filter.addAction(ACTION_USB_PERMISSION);
@@ -219,11 +652,20 @@ public class UsbService extends Service {
     }
 
     /*
-     * Request user permission. The response will be received in the BroadcastReceiver
+     * Request user permission. The response will be received in the BroadcastReceiver.
+     * Requests are queued so only one permission dialog is shown at a time.
      */
-    private void requestUserPermission() {
+    private void requestUserPermission(UsbDevice device) {
+        permissionQueue.add(device);
+        requestNextPermission();
+    }
+
+    private void requestNextPermission() {
+        if (permissionPending != null || permissionQueue.isEmpty())
+            return;
+        permissionPending = permissionQueue.poll();
         PendingIntent mPendingIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), 0);
-        usbManager.requestPermission(device, mPendingIntent);
+        usbManager.requestPermission(permissionPending, mPendingIntent);
     }
 
     public class UsbBinder extends Binder {
@@ -233,30 +675,48 @@ public class UsbService extends Service {
     }
 
     /*
-     * A simple thread to open a serial port.
+     * Opens a serial port and negotiates its rate, on the port thread.
      * Although it should be a fast operation. moving usb operations away from UI thread is a good thing.
      */
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
+        private final SerialPort port;
+
+        ConnectionTask(SerialPort port) {
+            this.port = port;
+        }
+
         @Override
         public void run() {
-            serialPort = UsbSerialDevice.createUsbSerialDevice(device, connection);
+            UsbSerialDevice serialPort = UsbSerialDevice.createUsbSerialDevice(port.device, port.connection);
+            port.serialPort = serialPort;
             if (serialPort != null) {
+                if (ioLoop != null)
+                    serialPort.setIoLoop(ioLoop);
                 if (serialPort.open()) {
-                    serialPortConnected = true;
-                    serialPort.setBaudRate(BAUD_RATE);
-                    serialPort.setDataBits(UsbSerialInterface.DATA_BITS_8);
-                    serialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
-                    serialPort.setParity(UsbSerialInterface.PARITY_NONE);
+                    if (!port.onOpened()) { // Detached while opening
+                        serialPort.close();
+                        return;
+                    }
                     /**
+                     * Baud rate, data bits, stop bits, parity and flow control, at once.
                      * Current flow control Options:
                      * UsbSerialInterface.FLOW_CONTROL_OFF
                      * UsbSerialInterface.FLOW_CONTROL_RTS_CTS only for CP2102 and FT232
                      * UsbSerialInterface.FLOW_CONTROL_DSR_DTR only for CP2102 and FT232
                      */
-                    serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
-                    serialPort.read(mCallback);
-                    serialPort.getCTS(ctsCallback);
-                    serialPort.getDSR(dsrCallback);
+                    port.baudRate = port.openingBaudRate();
+                    serialPort.setLineConfig(reconnectManager.getLineConfig().withBaudRate(port.baudRate));
+                    serialPort.setWriteCoalescing(writeMaxLatencyMs);
+                    port.decoderStale = true;
+                    serialPort.read(port.mCallback);
+                    serialPort.getCTS(port.ctsCallback);
+                    serialPort.getDSR(port.dsrCallback);
+                    serialPort.getFrame(port.frameCallback);
+                    serialPort.getParity(port.parityCallback);
+                    port.negotiateBaudRate();
+                    if (!port.onConnected())
+                        return; // Detached while negotiating, closed by then
+                    reconnectManager.onConnected(port.device);
 
                     //
                     // Some Arduinos would need some sleep because firmware wait some time to know whether a new sketch is going
@@ -265,21 +725,27 @@ public class UsbService extends Service {
 
                     // Everything went as expected. Send an intent to MainActivity
                     Intent intent = new Intent(ACTION_USB_READY);
+                    intent.putExtra(EXTRA_DEVICE_ID, port.device.getDeviceId());
                     context.sendBroadcast(intent);
                 } else {
+                    removePort(port.device);
                     // Serial port could not be opened, maybe an I/O error or if CDC driver was chosen, it does not really fit
                     // Send an Intent to Main Activity
                     if (serialPort instanceof CDCSerialDevice) {
                         Intent intent = new Intent(ACTION_CDC_DRIVER_NOT_WORKING);
+                        intent.putExtra(EXTRA_DEVICE_ID, port.device.getDeviceId());
                         context.sendBroadcast(intent);
                     } else {
                         Intent intent = new Intent(ACTION_USB_DEVICE_NOT_WORKING);
+                        intent.putExtra(EXTRA_DEVICE_ID, port.device.getDeviceId());
                         context.sendBroadcast(intent);
                     }
                 }
             } else {
+                removePort(port.device);
                 // No driver for given device, even generic CDC driver could not be loaded
                 Intent intent = new Intent(ACTION_USB_NOT_SUPPORTED);
+                intent.putExtra(EXTRA_DEVICE_ID, port.device.getDeviceId());
                 context.sendBroadcast(intent);
             }
         }
@@ -229,6 +229,23 @@ public class CDCSerialDevice extends UsbSerialDevice
 
     }
 
+    /*
+     * The whole line coding is sent in one SET_LINE_CODING, without reading it back first as
+     * every setter does.
+     */
+    @Override
+    public void setLineConfig(SerialLineConfig config)
+    {
+        byte[] data = toLineCoding(config);
+        if(data == null)
+        {
+            super.setLineConfig(config);
+            return;
+        }
+        setControlCommand(CDC_SET_LINE_CODING, 0, data);
+        setFlowControl(config.flowControl);
+    }
+
     @Override
     public void setRTS(boolean state)
     {
@@ -354,6 +371,38 @@ public class CDCSerialDevice extends UsbSerialDevice
         return data;
     }
 
+    // Line coding of the config, null if one of its settings is not supported by CDC
+    private static byte[] toLineCoding(SerialLineConfig config)
+    {
+        byte[] data = new byte[7];
+        for(int i = 0; i < 4; i++)
+            data[i] = (byte) (config.baudRate >> i*8 & 0xFF);
+
+        switch(config.stopBits)
+        {
+            case UsbSerialInterface.STOP_BITS_1:
+                data[4] = 0x00;
+                break;
+            case UsbSerialInterface.STOP_BITS_15:
+                data[4] = 0x01;
+                break;
+            case UsbSerialInterface.STOP_BITS_2:
+                data[4] = 0x02;
+                break;
+            default:
+                return null;
+        }
+
+        if(config.parity < UsbSerialInterface.PARITY_NONE || config.parity > UsbSerialInterface.PARITY_SPACE)
+            return null;
+        data[5] = (byte) config.parity; // Same values as bParityType
+
+        if(config.dataBits < UsbSerialInterface.DATA_BITS_5 || config.dataBits > UsbSerialInterface.DATA_BITS_8)
+            return null;
+        data[6] = (byte) config.dataBits;
+        return data;
+    }
+
     private static int findFirstCDC(UsbDevice device)
     {
         int interfaceCount = device.getInterfaceCount();
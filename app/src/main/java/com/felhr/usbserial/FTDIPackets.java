@@ -0,0 +1,105 @@
+package com.felhr.usbserial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removal of the two modem and line status bytes starting every 64 bytes packet read from a
+ * FTDI device. Kept free of Android classes so it can be benchmarked on the JVM.
+ */
+public final class FTDIPackets
+{
+    public static final int PACKET_SIZE = 64;
+    public static final int STATUS_LENGTH = 2;
+    public static final int PAYLOAD_SIZE = PACKET_SIZE - STATUS_LENGTH;
+
+    private FTDIPackets()
+    {
+
+    }
+
+    /**
+     * Length of the read holding payloadLength bytes of data, status bytes included.
+     */
+    public static int readLength(int payloadLength)
+    {
+        int packets = (payloadLength + PAYLOAD_SIZE - 1) / PAYLOAD_SIZE;
+        return payloadLength + packets * STATUS_LENGTH;
+    }
+
+    /**
+     * Removes, in place, the two status bytes starting every 64 bytes packet of the read of
+     * length bytes at offset. The payload is moved to offset.
+     *
+     * @return the length of the payload.
+     */
+    public static int compact(byte[] data, int offset, int length)
+    {
+        int j = offset; // dst index
+        for(int packet = offset; packet < offset + length; packet += PACKET_SIZE)
+        {
+            int count = Math.min(PAYLOAD_SIZE, offset + length - packet - STATUS_LENGTH);
+            if(count > 0)
+            {
+                System.arraycopy(data, packet + STATUS_LENGTH, data, j, count);
+                j += count;
+            }
+        }
+        return j - offset;
+    }
+
+    /**
+     * Removes, in place, the status bytes from the first length bytes of buffer, as
+     * {@link #compact(byte[], int, int)}. Buffers without an accessible array (direct buffers of
+     * UsbRequest) are moved a packet at a time through scratch, of at least
+     * {@link #PAYLOAD_SIZE} bytes. The position and limit of buffer are left unchanged.
+     *
+     * @return the length of the payload.
+     */
+    public static int compact(ByteBuffer buffer, int length, byte[] scratch)
+    {
+        if(buffer.hasArray())
+            return compact(buffer.array(), buffer.arrayOffset(), length);
+
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(buffer.capacity());
+        int j = 0; // dst index
+        for(int packet = 0; packet < length; packet += PACKET_SIZE)
+        {
+            int count = Math.min(PAYLOAD_SIZE, length - packet - STATUS_LENGTH);
+            if(count > 0)
+            {
+                buffer.position(packet + STATUS_LENGTH);
+                buffer.get(scratch, 0, count);
+                buffer.position(j);
+                buffer.put(scratch, 0, count);
+                j += count;
+            }
+        }
+        buffer.limit(limit);
+        buffer.position(position);
+        return j;
+    }
+
+    /**
+     * Copy of the payload of a read, status bytes removed. Allocates the copy, see compact() for
+     * the receive paths.
+     */
+    public static byte[] adaptArray(byte[] ftdiData)
+    {
+        int length = ftdiData.length;
+        int lastPacket = length % PACKET_SIZE;
+        byte[] data = new byte[length / PACKET_SIZE * PAYLOAD_SIZE + Math.max(0, lastPacket - STATUS_LENGTH)];
+        int j = 0; // dst index
+        for(int packet = 0; packet < length; packet += PACKET_SIZE)
+        {
+            int count = Math.min(PAYLOAD_SIZE, length - packet - STATUS_LENGTH);
+            if(count > 0)
+            {
+                System.arraycopy(ftdiData, packet + STATUS_LENGTH, data, j, count);
+                j += count;
+            }
+        }
+        return data;
+    }
+}
@@ -1,6 +1,6 @@
 package com.felhr.usbserial;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
@@ -83,6 +83,7 @@ public class FTDISerialDevice extends UsbSerialDevice
     private UsbEndpoint inEndpoint;
     private UsbEndpoint outEndpoint;
     private UsbRequest requestIN;
+    private byte[] syncReadBuffer;
 
     public FTDIUtilities ftdiUtilities;
 
@@ -168,6 +169,7 @@ public class FTDISerialDevice extends UsbSerialDevice
         setControlCommand(FTDI_SIO_MODEM_CTRL, FTDI_SET_MODEM_CTRL_DEFAULT3, 0, null);
         setControlCommand(FTDI_SIO_MODEM_CTRL, FTDI_SET_MODEM_CTRL_DEFAULT4, 0, null);
         currentSioSetData = 0x0000;
+        syncReadBuffer = null;
         connection.releaseInterface(mInterface);
     }
 
@@ -210,6 +212,42 @@ public class FTDISerialDevice extends UsbSerialDevice
 
     @Override
     public void setDataBits(int dataBits)
+    {
+        updateDataBits(dataBits);
+        setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
+    }
+
+    @Override
+    public void setStopBits(int stopBits)
+    {
+        updateStopBits(stopBits);
+        setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
+    }
+
+    @Override
+    public void setParity(int parity)
+    {
+        updateParity(parity);
+        setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
+    }
+
+    /*
+     * Data bits, stop bits and parity share the SET_DATA value, they are sent in one control
+     * transfer instead of one each.
+     */
+    @Override
+    public void setLineConfig(SerialLineConfig config)
+    {
+        setBaudRate(config.baudRate);
+        updateDataBits(config.dataBits);
+        updateStopBits(config.stopBits);
+        updateParity(config.parity);
+        setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
+        setFlowControl(config.flowControl);
+    }
+
+    // Sets the data bits, stop bits or parity in currentSioSetData, without sending it
+    private void updateDataBits(int dataBits)
     {
         switch(dataBits)
         {
@@ -218,42 +256,36 @@ public class FTDISerialDevice extends UsbSerialDevice
                 currentSioSetData &= ~(1 << 1);
                 currentSioSetData |= (1 << 2);
                 currentSioSetData &= ~(1 << 3);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.DATA_BITS_6:
                 currentSioSetData &= ~1;
                 currentSioSetData |= (1 << 1);
                 currentSioSetData |= (1 << 2);
                 currentSioSetData &= ~(1 << 3);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.DATA_BITS_7:
                 currentSioSetData |= 1;
                 currentSioSetData |= (1 << 1);
                 currentSioSetData |= (1 << 2);
                 currentSioSetData &= ~(1 << 3);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.DATA_BITS_8:
                 currentSioSetData &= ~1;
                 currentSioSetData &= ~(1 << 1);
                 currentSioSetData &= ~(1 << 2);
                 currentSioSetData |= (1 << 3);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             default:
                 currentSioSetData &= ~1;
                 currentSioSetData &= ~(1 << 1);
                 currentSioSetData &= ~(1 << 2);
                 currentSioSetData |= (1 << 3);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
         }
 
     }
 
-    @Override
-    public void setStopBits(int stopBits)
+    private void updateStopBits(int stopBits)
     {
         switch(stopBits)
         {
@@ -261,31 +293,26 @@ public class FTDISerialDevice extends UsbSerialDevice
                 currentSioSetData &= ~(1 << 11);
                 currentSioSetData &= ~(1 << 12);
                 currentSioSetData &= ~(1 << 13);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.STOP_BITS_15:
                 currentSioSetData |= (1 << 11);
                 currentSioSetData &= ~(1 << 12);
                 currentSioSetData &= ~(1 << 13);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.STOP_BITS_2:
                 currentSioSetData &= ~(1 << 11);
                 currentSioSetData |= (1 << 12);
                 currentSioSetData &= ~(1 << 13);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             default:
                 currentSioSetData &= ~(1 << 11);
                 currentSioSetData &= ~(1 << 12);
                 currentSioSetData &= ~(1 << 13);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
         }
 
     }
 
-    @Override
-    public void setParity(int parity)
+    private void updateParity(int parity)
     {
         switch(parity)
         {
@@ -293,37 +320,31 @@ public class FTDISerialDevice extends UsbSerialDevice
                 currentSioSetData &= ~(1 << 8);
                 currentSioSetData &= ~(1 << 9);
                 currentSioSetData &= ~(1 << 10);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.PARITY_ODD:
                 currentSioSetData |= (1 << 8);
                 currentSioSetData &= ~(1 << 9);
                 currentSioSetData &= ~(1 << 10);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.PARITY_EVEN:
                 currentSioSetData &= ~(1 << 8);
                 currentSioSetData |= (1 << 9);
                 currentSioSetData &= ~(1 << 10);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.PARITY_MARK:
                 currentSioSetData |= (1 << 8);
                 currentSioSetData |= (1 << 9);
                 currentSioSetData &= ~(1 << 10);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             case UsbSerialInterface.PARITY_SPACE:
                 currentSioSetData &= ~(1 << 8);
                 currentSioSetData &= ~(1 << 9);
                 currentSioSetData |= (1 << 10);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
             default:
                 currentSioSetData &= ~(1 << 8);
                 currentSioSetData &= ~(1 << 9);
                 currentSioSetData &= ~(1 << 10);
-                setControlCommand(FTDI_SIO_SET_DATA, currentSioSetData, 0, null);
                 break;
         }
 
@@ -485,37 +506,38 @@ public class FTDISerialDevice extends UsbSerialDevice
 
     public class FTDIUtilities
     {
-        // Special treatment needed to FTDI devices
+        private final byte[] packetScratch = new byte[FTDIPackets.PAYLOAD_SIZE]; // Read thread only
+
+        // Special treatment needed to FTDI devices, see FTDIPackets
         public byte[] adaptArray(byte[] ftdiData)
         {
-            int length = ftdiData.length;
-            if(length > 64)
-            {
-                int n = 1;
-                int p = 64;
-                // Precalculate length without FTDI headers
-                while(p < length)
-                {
-                    n++;
-                    p = n*64;
-                }
-                int realLength = length - n*2;
-                byte[] data = new byte[realLength];
-                copyData(ftdiData, data);
-                return data;
-            }else
-            {
-                return Arrays.copyOfRange(ftdiData, 2, length);
-            }
+            return FTDIPackets.adaptArray(ftdiData);
+        }
+
+        // Removes the status bytes in place, called from the read thread
+        public int adaptBuffer(ByteBuffer buffer, int length)
+        {
+            return FTDIPackets.compact(buffer, length, packetScratch);
+        }
+
+        public void checkModemStatus(ByteBuffer buffer, int length)
+        {
+            if(length < 2) // Safeguard for buffers without status
+                return;
+            checkModemStatus(buffer.get(0), buffer.get(1));
         }
 
         public void checkModemStatus(byte[] data)
         {
-            if(data.length == 0) // Safeguard for zero length arrays
+            if(data.length < 2) // Safeguard for arrays without status
                 return;
+            checkModemStatus(data[0], data[1]);
+        }
 
-            boolean cts = (data[0] & 0x10) == 0x10;
-            boolean dsr = (data[0] & 0x20) == 0x20;
+        private void checkModemStatus(byte modemStatus, byte lineStatus)
+        {
+            boolean cts = (modemStatus & 0x10) == 0x10;
+            boolean dsr = (modemStatus & 0x20) == 0x20;
 
             if(firstTime) // First modem status received
             {
@@ -548,7 +570,7 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(parityCallback != null) // Parity error checking
             {
-                if((data[1] & 0x04) == 0x04)
+                if((lineStatus & 0x04) == 0x04)
                 {
                     parityCallback.onParityError();
                 }
@@ -556,7 +578,7 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(frameCallback != null) // Frame error checking
             {
-                if((data[1] & 0x08) == 0x08)
+                if((lineStatus & 0x08) == 0x08)
                 {
                     frameCallback.onFramingError();
                 }
@@ -564,7 +586,7 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(overrunCallback != null) // Overrun error checking
             {
-                if((data[1] & 0x02) == 0x02)
+                if((lineStatus & 0x02) == 0x02)
                 {
                     overrunCallback.onOverrunError();
                 }
@@ -572,37 +594,12 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(breakCallback != null) // Break interrupt checking
             {
-                if((data[1] & 0x10) == 0x10)
+                if((lineStatus & 0x10) == 0x10)
                 {
                     breakCallback.onBreakInterrupt();
                 }
             }
         }
-
-        // Copy data without FTDI headers
-        private void copyData(byte[] src, byte[] dst)
-        {
-            int i = 0; // src index
-            int j = 0; // dst index
-            while(i <= src.length-1)
-            {
-                if(i != 0 && i != 1)
-                {
-                    if(i % 64 == 0 && i >= 64)
-                    {
-                        i += 2;
-                    }else
-                    {
-                        dst[j] = src[i];
-                        i++;
-                        j++;
-                    }
-                }else
-                {
-                    i++;
-                }
-            }
-        }
     }
 
     @Override
@@ -621,14 +618,13 @@ public class FTDISerialDevice extends UsbSerialDevice
             return 0;
         }
 
-        int n = buffer.length / 62;
-        if(buffer.length % 62 != 0)
+        // Reused between calls, status bytes included
+        int readLength = FTDIPackets.readLength(buffer.length);
+        if(syncReadBuffer == null || syncReadBuffer.length < readLength)
         {
-            n++;
+            syncReadBuffer = new byte[readLength];
         }
 
-        byte[] tempBuffer = new byte[buffer.length + n * 2];
-
         int readen = 0;
 
         do
@@ -643,19 +639,12 @@ public class FTDISerialDevice extends UsbSerialDevice
                 }
             }
 
-            int numberBytes = connection.bulkTransfer(inEndpoint, tempBuffer, tempBuffer.length, timeLeft);
+            int numberBytes = connection.bulkTransfer(inEndpoint, syncReadBuffer, readLength, timeLeft);
 
             if(numberBytes > 2) // Data received
             {
-                byte[] newBuffer = this.ftdiUtilities.adaptArray(tempBuffer);
-                System.arraycopy(newBuffer, 0, buffer, 0, buffer.length);
-
-                int p = numberBytes / 64;
-                if(numberBytes % 64 != 0)
-                {
-                    p++;
-                }
-                readen = numberBytes - p * 2;
+                readen = FTDIPackets.compact(syncReadBuffer, 0, numberBytes);
+                System.arraycopy(syncReadBuffer, 0, buffer, 0, readen);
             }
         }while(readen <= 0);
 
@@ -0,0 +1,55 @@
+package com.felhr.usbserial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Buffer holding data received from a serial device. It belongs to a {@link ReadBufferPool}
+ * and must be given back with {@link #release()} once its data has been consumed.
+ */
+public final class PooledReadBuffer
+{
+    private final ReadBufferPool pool;
+    private final ByteBuffer buffer; // Written by the USB layer
+    private final ByteBuffer view; // Read-only view handed to the callbacks
+    boolean inPool;
+
+    PooledReadBuffer(ReadBufferPool pool, ByteBuffer buffer)
+    {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.view = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Read-only view of the received bytes, from position 0 to its limit.
+     * It must not be used anymore after {@link #release()}.
+     */
+    public ByteBuffer data()
+    {
+        return view;
+    }
+
+    public int length()
+    {
+        return view.limit();
+    }
+
+    /**
+     * Gives the buffer back to its pool so it can receive new data.
+     */
+    public void release()
+    {
+        pool.release(this);
+    }
+
+    ByteBuffer backingBuffer()
+    {
+        return buffer;
+    }
+
+    void setLength(int length)
+    {
+        view.clear();
+        view.limit(length);
+    }
+}
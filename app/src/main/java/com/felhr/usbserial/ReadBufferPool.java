@@ -0,0 +1,84 @@
+package com.felhr.usbserial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed set of preallocated read buffers. Buffers are handed to the read callbacks and
+ * recycled when released, so receiving data does not allocate.
+ */
+public class ReadBufferPool
+{
+    interface OnBufferAvailableListener
+    {
+        void onBufferAvailable();
+    }
+
+    private final PooledReadBuffer[] free;
+    private int freeCount;
+    private OnBufferAvailableListener listener;
+
+    /**
+     * @param count number of buffers of the pool
+     * @param bufferSize size of every buffer
+     * @param direct true for direct buffers (UsbRequest), false for array backed buffers (bulkTransfer)
+     */
+    public ReadBufferPool(int count, int bufferSize, boolean direct)
+    {
+        free = new PooledReadBuffer[count];
+        for(int i=0;i<=count-1;i++)
+        {
+            ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            PooledReadBuffer pooled = new PooledReadBuffer(this, buffer);
+            pooled.inPool = true;
+            free[i] = pooled;
+        }
+        freeCount = count;
+    }
+
+    void setOnBufferAvailableListener(OnBufferAvailableListener listener)
+    {
+        synchronized(this)
+        {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * @return a free buffer or null if every buffer is in use
+     */
+    public synchronized PooledReadBuffer acquire()
+    {
+        if(freeCount == 0)
+            return null;
+        PooledReadBuffer buffer = free[--freeCount];
+        free[freeCount] = null;
+        buffer.inPool = false;
+        return buffer;
+    }
+
+    /**
+     * Waits until a buffer is free.
+     */
+    public synchronized PooledReadBuffer acquireBlocking() throws InterruptedException
+    {
+        while(freeCount == 0)
+            wait();
+        return acquire();
+    }
+
+    void release(PooledReadBuffer buffer)
+    {
+        OnBufferAvailableListener listener;
+        synchronized(this)
+        {
+            if(buffer.inPool)
+                throw new IllegalStateException("Read buffer released twice");
+            buffer.inPool = true;
+            free[freeCount++] = buffer;
+            listener = this.listener;
+            notifyAll();
+        }
+        if(listener != null)
+            listener.onBufferAvailable();
+    }
+}
@@ -1,33 +1,23 @@
 package com.felhr.usbserial;
 
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import ca.ergotera.remote_ir.misc.Logger;
-
 public class SerialBuffer
 {
-    private static final String CLASS_ID = SerialBuffer.class.getSimpleName();
-
     public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
     public static final int DEFAULT_WRITE_BUFFER_SIZE = 16 * 1024;
-    private ByteBuffer readBuffer;
-    private SynchronizedBuffer writeBuffer;
-    private byte[] readBuffer_compatible; // Read buffer for android < 4.2
+    private WriteRingBuffer writeBuffer;
     private boolean debugging = false;
 
-    public SerialBuffer(boolean version)
-    {
-        writeBuffer = new SynchronizedBuffer();
-        if(version)
-        {
-            readBuffer = ByteBuffer.allocate(DEFAULT_READ_BUFFER_SIZE);
+    // Write coalescing, see setWriteMaxLatency
+    private volatile int writePacketSize = 1;
+    private volatile long writeMaxLatencyNanos = 0;
 
-        }else
-        {
-            readBuffer_compatible = new byte[DEFAULT_READ_BUFFER_SIZE];
-        }
+    public SerialBuffer()
+    {
+        // Read buffers are pooled by the reading threads, see ReadBufferPool
+        writeBuffer = new WriteRingBuffer(DEFAULT_WRITE_BUFFER_SIZE, WriteRingBuffer.POLICY_BLOCK);
     }
 
     /*
@@ -38,133 +28,117 @@ public class SerialBuffer
         debugging = value;
     }
 
-    public void putReadBuffer(ByteBuffer data)
+    /*
+     * Prints the received data when debugging. data is left untouched
+     */
+    public void debugReadData(ByteBuffer data)
     {
-        synchronized(this)
+        if(debugging)
         {
-            try
-            {
-                readBuffer.put(data);
-            }catch(BufferOverflowException e)
-            {
-                // TO-DO
-            }
+            byte[] dst = new byte[data.remaining()];
+            data.duplicate().get(dst);
+            UsbSerialDebugger.printReadLogGet(dst, true);
         }
     }
 
-    public ByteBuffer getReadBuffer()
+    /*
+     * Moves pending write data into dst, blocking until there is some.
+     * Returns the number of bytes copied, 0 if the calling thread was interrupted.
+     */
+    public int getWriteBuffer(byte[] dst)
     {
-        synchronized(this)
-        {
-            return readBuffer;
-        }
+        int n = writeBuffer.take(dst, writePacketSize, writeMaxLatencyNanos);
+        if(debugging && n > 0)
+            UsbSerialDebugger.printLogGet(Arrays.copyOf(dst, n), true);
+        return n;
     }
 
-
-    public byte[] getDataReceived()
+    /*
+     * Non blocking variant of getWriteBuffer, for a write thread shared by several devices.
+     * Returns 0 while the pending data is held back for coalescing.
+     */
+    public int pollWriteBuffer(byte[] dst)
     {
-        synchronized(this)
-        {
-            byte[] dst = new byte[readBuffer.position()];
-            readBuffer.position(0);
-            readBuffer.get(dst, 0, dst.length);
-            if(debugging)
-                UsbSerialDebugger.printReadLogGet(dst, true);
-            return dst;
-        }
+        int n = writeBuffer.takeIfReady(dst, writePacketSize, writeMaxLatencyNanos);
+        if(debugging && n > 0)
+            UsbSerialDebugger.printLogGet(Arrays.copyOf(dst, n), true);
+        return n;
     }
 
-    public void clearReadBuffer()
+    /*
+     * Nanoseconds before pollWriteBuffer returns data, Long.MAX_VALUE if there is none.
+     */
+    public long nanosUntilWriteReady()
     {
-        synchronized(this)
-        {
-            readBuffer.clear();
-        }
+        return writeBuffer.nanosUntilReady(writePacketSize, writeMaxLatencyNanos);
     }
 
-    public byte[] getWriteBuffer()
+    /*
+     * Thread woken up whenever write data is added or flushed, null to stop.
+     */
+    public void setWriteConsumer(Thread consumer)
     {
-        return writeBuffer.get();
+        writeBuffer.setConsumerThread(consumer);
     }
 
-    public void putWriteBuffer(byte[]data)
+    public boolean putWriteBuffer(byte[] data)
     {
-        writeBuffer.put(data);
+        if(data == null || data.length == 0)
+            return true;
+        if(debugging)
+            UsbSerialDebugger.printLogPut(data, true);
+        return writeBuffer.put(data, 0, data.length);
     }
 
-
-    public void resetWriteBuffer()
+    public void setWritePolicy(int policy)
     {
-        writeBuffer.reset();
+        writeBuffer.setPolicy(policy);
     }
 
-    public byte[] getBufferCompatible()
+    /*
+     * Small writes are held back up to maxLatencyMs, until a full packet can be sent.
+     * 0 sends every write right away.
+     */
+    public void setWriteMaxLatency(int maxLatencyMs)
     {
-        return readBuffer_compatible;
+        writeMaxLatencyNanos = maxLatencyMs * 1000000L;
     }
 
-    public byte[] getDataReceivedCompatible(int numberBytes)
+    public void setWritePacketSize(int packetSize)
     {
-        byte[] tempBuff = Arrays.copyOfRange(readBuffer_compatible, 0, numberBytes);
-        return tempBuff;
+        writePacketSize = Math.max(packetSize, 1);
     }
 
-    private class SynchronizedBuffer
+    /*
+     * Blocks until at most maxPending bytes of write data are waiting to be sent.
+     * Returns false if the calling thread was interrupted.
+     */
+    public boolean awaitWriteBacklog(int maxPending)
     {
-        private byte[] buffer;
-        private int position;
-
-        public SynchronizedBuffer()
-        {
-            this.buffer = new byte[DEFAULT_WRITE_BUFFER_SIZE];
-            position = -1;
-        }
+        return writeBuffer.awaitPendingAtMost(maxPending);
+    }
 
-        public synchronized void put(byte[] src)
-        {
-            if(src == null || src.length == 0) return;
-            if(position == -1)
-                position = 0;
-            if(debugging)
-                UsbSerialDebugger.printLogPut(src, true);
-            if(position + src.length > DEFAULT_WRITE_BUFFER_SIZE - 1) //Checking bounds. Source data does not fit in buffer
-            {
-                if(position < DEFAULT_WRITE_BUFFER_SIZE)
-                    System.arraycopy(src, 0, buffer, position, DEFAULT_WRITE_BUFFER_SIZE - position);
-                position = DEFAULT_WRITE_BUFFER_SIZE;
-                notify();
-            }else // Source data fits in buffer
-            {
-                System.arraycopy(src, 0, buffer, position, src.length);
-                position += src.length;
-                notify();
-            }
-        }
+    public void flushWriteBuffer()
+    {
+        writeBuffer.flush();
+    }
 
-        public synchronized byte[] get()
-        {
-            if(position == -1)
-            {
-                try
-                {
-                    wait();
-                } catch (InterruptedException e)
-                {
-                    Logger.Error(CLASS_ID, e.getMessage());
-                }
-            }
-            if(position <= -1 ) return new byte[0];
-            byte[] dst =  Arrays.copyOfRange(buffer, 0, position);
-            if(debugging)
-                UsbSerialDebugger.printLogGet(dst, true);
-            position = -1;
-            return dst;
-        }
+    public void resetWriteBuffer()
+    {
+        writeBuffer.clear();
+    }
 
-        public synchronized void reset()
-        {
-            position = -1;
-        }
+    /*
+     * Discards the pending write data and rejects writes until openWriteBuffer(). Threads
+     * blocked writing or waiting for the backlog are released.
+     */
+    public void closeWriteBuffer()
+    {
+        writeBuffer.close();
     }
 
+    public void openWriteBuffer()
+    {
+        writeBuffer.open();
+    }
 }
@@ -0,0 +1,145 @@
+package com.felhr.usbserial;
+
+import android.os.Build;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * I/O threads shared by several serial devices.
+ *
+ * Devices given this loop through UsbSerialDevice.setIoLoop do not start their own threads:
+ * one read thread and one write thread serve all of them, so the number of threads stays the
+ * same as devices are added.
+ *
+ * Every UsbDeviceConnection has its own completion queue and no call waits on several of them,
+ * so the read thread first handles the completions already there with requestWait(0), then
+ * blocks in requestWait with a timeout: READ_WAIT on a single device, SHARED_READ_WAIT on each
+ * device in turn when there are several. An idle loop wakes up a few times per second instead of
+ * spinning, a completion on a device not waited on is handled within SHARED_READ_WAIT per other
+ * device. requestWait with a timeout exists since API 26, on older versions devices keep their
+ * own WorkerThread for reads and only share the write thread.
+ * The write thread sends the data that is due in the buffer of every device, then parks until
+ * a device gets new data or a coalescing deadline is reached.
+ */
+public class SerialIoLoop
+{
+    public static final long READ_WAIT = 100; // ms, longest wait for a completion of a single device
+    public static final long SHARED_READ_WAIT = 10; // ms, wait on each device when there are several
+
+    private final CopyOnWriteArrayList<UsbSerialDevice> readers = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<UsbSerialDevice> writers = new CopyOnWriteArrayList<>();
+    private final SerialIoThread readThread;
+    private final SerialIoThread writeThread;
+
+    public SerialIoLoop()
+    {
+        readThread = new SerialIoThread("SerialIoLoop read")
+        {
+            @Override
+            protected void doWork()
+            {
+                pollReads();
+            }
+        };
+        writeThread = new SerialIoThread("SerialIoLoop write")
+        {
+            private final byte[] transferBuffer = new byte[SerialBuffer.DEFAULT_WRITE_BUFFER_SIZE];
+
+            @Override
+            protected void doWork()
+            {
+                pollWrites(transferBuffer);
+            }
+        };
+    }
+
+    public static boolean isSharedReadSupported()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    public void start()
+    {
+        readThread.start();
+        writeThread.start();
+        Thread consumer = writeThread.thread();
+        for(UsbSerialDevice device : writers)
+            device.serialBuffer.setWriteConsumer(consumer);
+        LockSupport.unpark(consumer);
+    }
+
+    public void stop()
+    {
+        // A read thread blocked in requestWait ends within READ_WAIT
+        readThread.stop();
+        writeThread.stop();
+    }
+
+    void registerReader(UsbSerialDevice device)
+    {
+        readers.addIfAbsent(device);
+        Thread reader = readThread.thread();
+        if(reader != null) // Parked while there was no device to read
+            LockSupport.unpark(reader);
+    }
+
+    void unregisterReader(UsbSerialDevice device)
+    {
+        readers.remove(device);
+    }
+
+    void registerWriter(UsbSerialDevice device)
+    {
+        writers.addIfAbsent(device);
+        Thread consumer = writeThread.thread();
+        device.serialBuffer.setWriteConsumer(consumer);
+        if(consumer != null) // Data may have been written before
+            LockSupport.unpark(consumer);
+    }
+
+    void unregisterWriter(UsbSerialDevice device)
+    {
+        writers.remove(device);
+        device.serialBuffer.setWriteConsumer(null);
+    }
+
+    private void pollReads()
+    {
+        int count = readers.size();
+        if(count == 0)
+        {
+            LockSupport.park(this); // Until a device is registered or the loop stopped
+            return;
+        }
+        boolean completed = false;
+        for(UsbSerialDevice device : readers)
+        {
+            if(device.pollReadCompletion(0))
+                completed = true;
+        }
+        if(completed)
+            return;
+
+        // Nothing pending, block until a device completes a read
+        long waitMs = count == 1 ? READ_WAIT : SHARED_READ_WAIT;
+        for(UsbSerialDevice device : readers)
+        {
+            if(device.pollReadCompletion(waitMs))
+                return;
+        }
+    }
+
+    private void pollWrites(byte[] transferBuffer)
+    {
+        long waitNanos = Long.MAX_VALUE;
+        for(UsbSerialDevice device : writers)
+            waitNanos = Math.min(waitNanos, device.transferPendingWrites(transferBuffer));
+
+        // Writes unpark this thread, so data written during the pass is not missed
+        if(waitNanos == Long.MAX_VALUE)
+            LockSupport.park(this);
+        else if(waitNanos > 0)
+            LockSupport.parkNanos(this, waitNanos);
+    }
+}
@@ -0,0 +1,152 @@
+package com.felhr.usbserial;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.ergotera.remote_ir.misc.Logger;
+
+/**
+ * Lifecycle of an I/O thread of a serial device.
+ *
+ * start() returns once the thread is running, without spinning. stop() asks the loop to end,
+ * wakes the thread up if it is blocked and joins it with a timeout. The object outlives its
+ * thread: a new thread is started on the next start(), so buffers and state owned by the
+ * subclass are reused across open/close cycles.
+ */
+public abstract class SerialIoThread
+{
+    private static final String CLASS_ID = SerialIoThread.class.getSimpleName();
+
+    public static final long START_TIMEOUT = 1000; // ms
+    public static final long STOP_TIMEOUT = 1000; // ms
+
+    private final String name;
+    private final AtomicBoolean working = new AtomicBoolean(false);
+    private Thread thread;
+
+    protected SerialIoThread(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Starts the thread if it is not running and waits until its loop is entered.
+     *
+     * @return true if the thread is running
+     */
+    public synchronized boolean start()
+    {
+        if(thread != null && thread.isAlive() && working.get())
+            return true;
+        if(thread != null) // Stopped but not finished yet
+            join(thread, STOP_TIMEOUT);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        working.set(true);
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try
+                {
+                    while(working.get())
+                        doWork();
+                }finally
+                {
+                    onStopped();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+
+        try
+        {
+            return started.await(START_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return thread.isAlive();
+        }
+    }
+
+    /**
+     * Ends the loop, wakes the thread up and waits for it to finish.
+     *
+     * @param timeout maximum time to wait for the thread, in ms
+     * @return true if the thread has finished
+     */
+    public boolean stop(long timeout)
+    {
+        Thread t;
+        synchronized(this)
+        {
+            t = thread;
+            if(t == null)
+                return true;
+            working.set(false);
+        }
+        wakeUp(t);
+        if(t == Thread.currentThread()) // Stopped from its own callback, it ends after this iteration
+            return false;
+        return join(t, timeout);
+    }
+
+    public boolean stop()
+    {
+        return stop(STOP_TIMEOUT);
+    }
+
+    public boolean isWorking()
+    {
+        return working.get();
+    }
+
+    /*
+     * Thread currently running the loop, null if it was never started.
+     */
+    synchronized Thread thread()
+    {
+        return thread;
+    }
+
+    /**
+     * One iteration of the loop, called while the thread is working.
+     */
+    protected abstract void doWork();
+
+    /**
+     * Unblocks the thread when stopping it. Interrupts it by default.
+     */
+    protected void wakeUp(Thread thread)
+    {
+        thread.interrupt();
+    }
+
+    /**
+     * Called from the thread once its loop ended.
+     */
+    protected void onStopped()
+    {
+    }
+
+    private static boolean join(Thread thread, long timeout)
+    {
+        try
+        {
+            thread.join(timeout);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if(thread.isAlive())
+        {
+            Logger.Warn(CLASS_ID, thread.getName() + " did not stop within " + timeout + "ms");
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+package com.felhr.usbserial;
+
+/**
+ * Line settings of a serial port: baud rate, data bits, stop bits, parity and flow control, with
+ * the constants of {@link UsbSerialInterface}. Applied at once by
+ * {@link UsbSerialDevice#setLineConfig(SerialLineConfig)}, in as few control transfers as the
+ * driver allows.
+ */
+public final class SerialLineConfig
+{
+    public final int baudRate;
+    public final int dataBits;
+    public final int stopBits;
+    public final int parity;
+    public final int flowControl;
+
+    public SerialLineConfig(int baudRate, int dataBits, int stopBits, int parity, int flowControl)
+    {
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+        this.flowControl = flowControl;
+    }
+
+    /**
+     * 8 data bits, 1 stop bit, no parity and no flow control.
+     */
+    public static SerialLineConfig of8N1(int baudRate)
+    {
+        return new SerialLineConfig(baudRate, UsbSerialInterface.DATA_BITS_8, UsbSerialInterface.STOP_BITS_1,
+                UsbSerialInterface.PARITY_NONE, UsbSerialInterface.FLOW_CONTROL_OFF);
+    }
+
+    public SerialLineConfig withBaudRate(int baudRate)
+    {
+        return new SerialLineConfig(baudRate, dataBits, stopBits, parity, flowControl);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o)
+            return true;
+        if(!(o instanceof SerialLineConfig))
+            return false;
+        SerialLineConfig other = (SerialLineConfig) o;
+        return baudRate == other.baudRate && dataBits == other.dataBits && stopBits == other.stopBits
+                && parity == other.parity && flowControl == other.flowControl;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = baudRate;
+        result = 31 * result + dataBits;
+        result = 31 * result + stopBits;
+        result = 31 * result + parity;
+        result = 31 * result + flowControl;
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return baudRate + " bauds, " + dataBits + " data bits, stop bits " + stopBits
+                + ", parity " + parity + ", flow control " + flowControl;
+    }
+}
@@ -1,9 +1,11 @@
 package com.felhr.usbserial;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
 
 import com.felhr.deviceids.CH34xIds;
 import com.felhr.deviceids.CP210xIds;
+import com.felhr.deviceids.DeviceIdTable;
 import com.felhr.deviceids.FTDISioIds;
 import com.felhr.deviceids.PL2303Ids;
 
@@ -14,6 +16,8 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 
+import ca.ergotera.remote_ir.misc.Logger;
+
 public abstract class UsbSerialDevice implements UsbSerialInterface
 {
     private static final String CLASS_ID = UsbSerialDevice.class.getSimpleName();
@@ -24,11 +28,16 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
     protected static final int USB_TIMEOUT = 5000;
 
+    // Number of IN requests kept queued at the same time by the WorkerThread
+    public static final int DEFAULT_IN_FLIGHT_REQUESTS = 4;
+    private int inFlightRequests = DEFAULT_IN_FLIGHT_REQUESTS;
+
     protected SerialBuffer serialBuffer;
 
     protected WorkerThread workerThread;
     protected WriteThread writeThread;
     protected ReadThread readThread;
+    private SerialIoLoop ioLoop; // Threads shared with other devices, null to use our own
 
     // Endpoints for synchronous read and write operations
     private UsbEndpoint inEndpoint;
@@ -50,7 +59,83 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         this.device = device;
         this.connection = connection;
         this.asyncMode = true;
-        serialBuffer = new SerialBuffer(mr1Version);
+        serialBuffer = new SerialBuffer();
+    }
+
+    /**
+     * Creates the driver of a device, see {@link #registerDevice(int, int, DriverFactory)}.
+     */
+    public interface DriverFactory
+    {
+        UsbSerialDevice create(UsbDevice device, UsbDeviceConnection connection, int iface);
+    }
+
+    public static final DriverFactory FTDI_DRIVER = new DriverFactory()
+    {
+        @Override
+        public UsbSerialDevice create(UsbDevice device, UsbDeviceConnection connection, int iface)
+        {
+            return new FTDISerialDevice(device, connection, iface);
+        }
+    };
+
+    public static final DriverFactory CP210X_DRIVER = new DriverFactory()
+    {
+        @Override
+        public UsbSerialDevice create(UsbDevice device, UsbDeviceConnection connection, int iface)
+        {
+            return new CP2102SerialDevice(device, connection, iface);
+        }
+    };
+
+    public static final DriverFactory PL2303_DRIVER = new DriverFactory()
+    {
+        @Override
+        public UsbSerialDevice create(UsbDevice device, UsbDeviceConnection connection, int iface)
+        {
+            return new PL2303SerialDevice(device, connection, iface);
+        }
+    };
+
+    public static final DriverFactory CH34X_DRIVER = new DriverFactory()
+    {
+        @Override
+        public UsbSerialDevice create(UsbDevice device, UsbDeviceConnection connection, int iface)
+        {
+            return new CH34xSerialDevice(device, connection, iface);
+        }
+    };
+
+    public static final DriverFactory CDC_DRIVER = new DriverFactory()
+    {
+        @Override
+        public UsbSerialDevice create(UsbDevice device, UsbDeviceConnection connection, int iface)
+        {
+            return new CDCSerialDevice(device, connection, iface);
+        }
+    };
+
+    // Driver of every known vid/pid, a single lookup on attach. Devices listed by several
+    // families keep the driver of the first one, in the order the ids lists were checked before.
+    private static final DeviceIdTable<DriverFactory> drivers = new DeviceIdTable<>();
+
+    static
+    {
+        drivers.putAllAbsent(FTDISioIds.getPackedIds(), FTDI_DRIVER);
+        drivers.putAllAbsent(CP210xIds.getPackedIds(), CP210X_DRIVER);
+        drivers.putAllAbsent(PL2303Ids.getPackedIds(), PL2303_DRIVER);
+        drivers.putAllAbsent(CH34xIds.getPackedIds(), CH34X_DRIVER);
+    }
+
+    /**
+     * Makes a device not known to the library (ie.: a clone with its own ids) use a driver,
+     * replacing the driver it had.
+     *
+     * @param factory one of the *_DRIVER constants, or a custom driver.
+     */
+    public static void registerDevice(int vendorId, int productId, DriverFactory factory)
+    {
+        drivers.put(vendorId, productId, factory);
     }
 
     public static UsbSerialDevice createUsbSerialDevice(UsbDevice device, UsbDeviceConnection connection)
@@ -65,35 +150,19 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 		 * When CDC is returned open() method is even more important, its response will inform about if it can be really
 		 * opened as a serial device with a generic CDC serial driver
 		 */
-        int vid = device.getVendorId();
-        int pid = device.getProductId();
+        DriverFactory factory = drivers.get(device.getVendorId(), device.getProductId());
 
-        if(FTDISioIds.isDeviceSupported(vid, pid))
-            return new FTDISerialDevice(device, connection, iface);
-        else if(CP210xIds.isDeviceSupported(vid, pid))
-            return new CP2102SerialDevice(device, connection, iface);
-        else if(PL2303Ids.isDeviceSupported(vid, pid))
-            return new PL2303SerialDevice(device, connection, iface);
-        else if(CH34xIds.isDeviceSupported(vid, pid))
-            return new CH34xSerialDevice(device, connection, iface);
+        if(factory != null)
+            return factory.create(device, connection, iface);
         else if(isCdcDevice(device))
-            return new CDCSerialDevice(device, connection, iface);
+            return CDC_DRIVER.create(device, connection, iface);
         else
             return null;
     }
 
     public static boolean isSupported(UsbDevice device)
     {
-        int vid = device.getVendorId();
-        int pid = device.getProductId();
-
-        if(FTDISioIds.isDeviceSupported(vid, pid))
-            return true;
-        else if(CP210xIds.isDeviceSupported(vid, pid))
-            return true;
-        else if(PL2303Ids.isDeviceSupported(vid, pid))
-            return true;
-        else if(CH34xIds.isDeviceSupported(vid, pid))
+        if(drivers.contains(device.getVendorId(), device.getProductId()))
             return true;
         else if(isCdcDevice(device))
             return true;
@@ -108,8 +177,62 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     @Override
     public void write(byte[] buffer)
     {
-        if(asyncMode)
-            serialBuffer.putWriteBuffer(buffer);
+        if(asyncMode && !serialBuffer.putWriteBuffer(buffer))
+            Logger.Warn(CLASS_ID, "Write buffer full or closed, " + buffer.length + " bytes were not queued");
+    }
+
+    /**
+     * Selects what {@link #write(byte[])} does when the write buffer is full.
+     *
+     * @param policy one of {@link WriteRingBuffer#POLICY_BLOCK} (default),
+     *               {@link WriteRingBuffer#POLICY_FAIL_FAST} or {@link WriteRingBuffer#POLICY_OVERWRITE}
+     */
+    public void setWriteBufferPolicy(int policy)
+    {
+        serialBuffer.setWritePolicy(policy);
+    }
+
+    /**
+     * Enables write coalescing: small writes are held back and sent together in a single transfer as soon
+     * as a full packet of the OUT endpoint is pending or the oldest pending byte waited maxLatencyMs.
+     *
+     * @param maxLatencyMs longest time a written byte can be held back, 0 sends every write right away (default)
+     */
+    public void setWriteCoalescing(int maxLatencyMs)
+    {
+        serialBuffer.setWriteMaxLatency(maxLatencyMs);
+    }
+
+    /**
+     * Sends every byte written so far without waiting for the coalescing deadline.
+     */
+    public void flush()
+    {
+        serialBuffer.flushWriteBuffer();
+    }
+
+    /**
+     * Blocks until at most maxPending written bytes are still waiting to be sent. Lets a caller
+     * keep the write buffer short, so what it writes next is not queued behind earlier data.
+     *
+     * @return false if the calling thread was interrupted
+     */
+    public boolean awaitWriteBacklog(int maxPending)
+    {
+        return serialBuffer.awaitWriteBacklog(maxPending);
+    }
+
+    /**
+     * Applies every line setting, call it after {@link #open()}. Drivers override it to send the
+     * settings in fewer control transfers than one per setter.
+     */
+    public void setLineConfig(SerialLineConfig config)
+    {
+        setBaudRate(config.baudRate);
+        setDataBits(config.dataBits);
+        setStopBits(config.stopBits);
+        setParity(config.parity);
+        setFlowControl(config.flowControl);
     }
 
     /**
@@ -136,8 +259,31 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         return -1;
     }
 
+    /**
+     * Use this setter <strong>before</strong> calling {@link #open()} to change how many IN requests
+     * are kept queued at the same time. More requests leave no gap between the completion of a transfer
+     * and the next one at high baud rates, at the cost of one read buffer per request.
+     *
+     * @param count number of requests, at least 1
+     */
+    public void setInFlightRequests(int count)
+    {
+        if(count < 1)
+            throw new IllegalArgumentException("At least one IN request is needed");
+        inFlightRequests = count;
+    }
+
     @Override
     public int read(UsbReadCallback mCallback)
+    {
+        return read(mCallback != null ? new ByteArrayReadAdapter(mCallback) : null);
+    }
+
+    /**
+     * Reads without copying: the callback receives pooled buffers and has to release them.
+     */
+    @Override
+    public int read(UsbReadBufferCallback mCallback)
     {
         if(!asyncMode)
             return -1;
@@ -146,17 +292,16 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         {
             if (workerThread != null) {
                 workerThread.setCallback(mCallback);
-                workerThread.getUsbRequest().queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+                workerThread.queueRequests();
             }
         }else
         {
-            readThread.setCallback(mCallback);
-            //readThread.start();
+            if (readThread != null)
+                readThread.setCallback(mCallback);
         }
         return 0;
     }
 
-
     @Override
     public abstract void close();
 
@@ -208,6 +353,29 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     @Override
     public abstract void setFlowControl(int flowControl);
 
+    /*
+     * Serves this device from threads shared with other devices instead of starting its own.
+     * Must be called before open().
+     */
+    public void setIoLoop(SerialIoLoop ioLoop)
+    {
+        this.ioLoop = ioLoop;
+    }
+
+    // Called from the read thread of a SerialIoLoop, waits up to timeoutMs (0 does not wait)
+    boolean pollReadCompletion(long timeoutMs)
+    {
+        WorkerThread workerThread = this.workerThread;
+        return workerThread != null && workerThread.pollCompletion(timeoutMs);
+    }
+
+    // Called from the write thread of a SerialIoLoop
+    long transferPendingWrites(byte[] transferBuffer)
+    {
+        WriteThread writeThread = this.writeThread;
+        return writeThread != null ? writeThread.transferPending(transferBuffer) : Long.MAX_VALUE;
+    }
+
     //Debug options
     public void debug(boolean value)
     {
@@ -234,169 +402,404 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
 
     /*
-     * WorkerThread waits for request notifications from IN endpoint
+     * Hands received data to the callback. FTDI status bytes are checked and removed in place.
+     * The buffer is released here when it is not handed over.
+     */
+    private void onReceivedData(PooledReadBuffer data, UsbReadBufferCallback callback)
+    {
+        // FTDI devices reserve two first bytes of every packet of an IN endpoint with info about
+        // modem and Line.
+        if(isFTDIDevice())
+        {
+            FTDISerialDevice.FTDIUtilities ftdiUtilities = ((FTDISerialDevice) this).ftdiUtilities;
+            ByteBuffer buffer = data.backingBuffer();
+            int length = data.length();
+            ftdiUtilities.checkModemStatus(buffer, length); //Check the Modem status
+            data.setLength(ftdiUtilities.adaptBuffer(buffer, length));
+        }
+
+        if(data.length() > 0 && callback != null)
+        {
+            serialBuffer.debugReadData(data.data());
+            callback.onReceivedData(data);
+        }else
+        {
+            data.release();
+        }
+    }
+
+    /*
+     * WorkerThread waits for request notifications from IN endpoint.
+     * Several requests are kept queued so the endpoint is still being read while a completed
+     * request is processed. Each request reads into a buffer of a pool, the buffer is handed
+     * to the callback and the request is queued again with a free buffer of the pool.
+     * Data is delivered in the order the requests were queued.
      */
-    protected class WorkerThread extends Thread
+    protected class WorkerThread extends SerialIoThread implements ReadBufferPool.OnBufferAvailableListener
     {
         private UsbSerialDevice usbSerialDevice;
 
-        private UsbReadCallback callback;
-        private UsbRequest requestIN;
-        private AtomicBoolean working;
+        private UsbReadBufferCallback callback;
+        private volatile UsbRequest[] requests;
+        private ReadBufferPool pool;
+        private PooledReadBuffer[] current; // Buffer each request is reading into
+        private long[] sequence; // Order in which each request was queued
+        private boolean[] completed;
+        private boolean[] starved; // Requests waiting for a free buffer to be queued
+        private long nextQueued;
+        private long nextDelivered;
+        private boolean queued;
+        private boolean polling; // A SerialIoLoop waits on the requests, they cannot be closed
+        private volatile boolean attached; // Completions are polled by a SerialIoLoop
 
         public WorkerThread(UsbSerialDevice usbSerialDevice)
         {
+            super(WorkerThread.class.getSimpleName());
             this.usbSerialDevice = usbSerialDevice;
-            working = new AtomicBoolean(true);
         }
 
         @Override
-        public void run()
+        protected void doWork()
         {
-            while(working.get())
+            if(!awaitQueued()) // requestWait would block forever without queued requests
+                return;
+            onCompleted(connection.requestWait());
+        }
+
+        /*
+         * Handles a completed request, waiting up to timeoutMs for one (0 does not wait), for a
+         * shared read thread. Returns false if no request had completed.
+         */
+        boolean pollCompletion(long timeoutMs)
+        {
+            synchronized(this)
             {
-                UsbRequest request = connection.requestWait();
-                if(request != null && request.getEndpoint().getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
-                        && request.getEndpoint().getDirection() == UsbConstants.USB_DIR_IN)
+                if(!attached || !queued)
+                    return false;
+                polling = true;
+            }
+            UsbRequest request;
+            try
+            {
+                // Not holding the lock: detach() cancels the requests to end the wait
+                request = connection.requestWait(timeoutMs);
+            } catch (TimeoutException e)
+            {
+                request = null;
+            } finally
+            {
+                synchronized(this)
                 {
-                    byte[] data = serialBuffer.getDataReceived();
+                    polling = false;
+                    notifyAll();
+                }
+            }
+            onCompleted(request);
+            return request != null;
+        }
 
-                    // FTDI devices reserves two first bytes of an IN endpoint with info about
-                    // modem and Line.
-                    if(isFTDIDevice())
-                    {
-                        ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(data); //Check the Modem status
-                        serialBuffer.clearReadBuffer();
+        synchronized void attach()
+        {
+            attached = true;
+        }
+
+        synchronized void detach()
+        {
+            attached = false;
+            if(queued)
+            {
+                // Cancelled requests complete, which ends a wait of the SerialIoLoop
+                for(UsbRequest request : requests)
+                    request.cancel();
+            }
+            while(polling) // The requests are closed once they are no longer waited on
+            {
+                try
+                {
+                    wait();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            closeRequests();
+        }
+
+        boolean isAttached()
+        {
+            return attached;
+        }
 
-                        if(data.length > 2)
+        private void onCompleted(UsbRequest request)
+        {
+            if(request != null && request.getEndpoint().getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
+                    && request.getEndpoint().getDirection() == UsbConstants.USB_DIR_IN
+                    && request.getClientData() instanceof Integer && (isWorking() || attached))
+            {
+                deliverCompleted((Integer) request.getClientData());
+            }
+        }
+
+        private synchronized boolean awaitQueued()
+        {
+            try
+            {
+                while(!queued && isWorking())
+                    wait();
+            } catch (InterruptedException e)
+            {
+                return false;
+            }
+            return queued;
+        }
+
+        @Override
+        protected void onStopped()
+        {
+            closeRequests();
+        }
+
+        private void deliverCompleted(int completedSlot)
+        {
+            while(true)
+            {
+                PooledReadBuffer data = null;
+                synchronized(this)
+                {
+                    if(requests == null)
+                        return;
+                    completed[completedSlot] = true;
+                    for(int i=0;i<=requests.length-1;i++)
+                    {
+                        if(completed[i] && sequence[i] == nextDelivered)
                         {
-                            data = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.adaptArray(data);
-                            onReceivedData(data);
+                            completed[i] = false;
+                            nextDelivered++;
+                            data = current[i];
+                            current[i] = null;
+                            data.setLength(data.backingBuffer().position());
+                            queueRequest(i); // Queue it again before processing the data
+                            break;
                         }
-                    }else
-                    {
-                        // Clear buffer, execute the callback
-                        serialBuffer.clearReadBuffer();
-                        onReceivedData(data);
                     }
-                    // Queue a new request
-                    requestIN.queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
                 }
+                if(data == null)
+                    return;
+                onReceivedData(data, callback);
             }
         }
 
-        public void setCallback(UsbReadCallback callback)
+        public void setCallback(UsbReadBufferCallback callback)
         {
             this.callback = callback;
         }
 
-        public void setUsbRequest(UsbRequest request)
+        /*
+         * Builds the pool of IN requests. The given request is the first one of the pool,
+         * the others are initialized on the same endpoint.
+         */
+        public synchronized void setUsbRequest(UsbRequest request)
+        {
+            UsbRequest[] pool = new UsbRequest[inFlightRequests];
+            current = new PooledReadBuffer[pool.length];
+            sequence = new long[pool.length];
+            completed = new boolean[pool.length];
+            starved = new boolean[pool.length];
+            nextQueued = 0;
+            nextDelivered = 0;
+            queued = false;
+            for(int i=0;i<=pool.length-1;i++)
+            {
+                if(i == 0)
+                {
+                    pool[i] = request;
+                }else
+                {
+                    pool[i] = new UsbRequest();
+                    pool[i].initialize(connection, request.getEndpoint());
+                }
+                pool[i].setClientData(i);
+            }
+            // Twice as many buffers as requests, so callbacks can hold some while reading goes on
+            this.pool = new ReadBufferPool(pool.length * 2, SerialBuffer.DEFAULT_READ_BUFFER_SIZE, true);
+            this.pool.setOnBufferAvailableListener(this);
+            requests = pool;
+        }
+
+        /*
+         * Queues every request of the pool, only the first call has an effect
+         */
+        public synchronized void queueRequests()
+        {
+            if(requests == null || queued)
+                return;
+            for(int i=0;i<=requests.length-1;i++)
+                queueRequest(i);
+            queued = true;
+            notifyAll();
+        }
+
+        // Must be called holding the lock
+        private void queueRequest(int slot)
         {
-            this.requestIN = request;
+            PooledReadBuffer buffer = pool.acquire();
+            if(buffer == null) // Every buffer is held by the callback, wait for a release
+            {
+                starved[slot] = true;
+                return;
+            }
+            starved[slot] = false;
+            current[slot] = buffer;
+            sequence[slot] = nextQueued++;
+            ByteBuffer byteBuffer = buffer.backingBuffer();
+            byteBuffer.clear();
+            requests[slot].queue(byteBuffer, byteBuffer.capacity());
         }
 
-        public UsbRequest getUsbRequest()
+        @Override
+        public synchronized void onBufferAvailable()
         {
-            return requestIN;
+            if(requests == null || !(isWorking() || attached))
+                return;
+            for(int i=0;i<=requests.length-1;i++)
+            {
+                if(starved[i])
+                    queueRequest(i);
+            }
         }
 
-        private void onReceivedData(byte[] data)
+        @Override
+        protected synchronized void wakeUp(Thread thread)
         {
-            if(callback != null)
-                callback.onReceivedData(data);
+            if(queued)
+            {
+                // Cancelled requests complete, which unblocks requestWait
+                for(UsbRequest request : requests)
+                    request.cancel();
+            }
+            notifyAll();
         }
 
-        public void stopWorkingThread()
+        private synchronized void closeRequests()
         {
-            working.set(false);
+            queued = false;
+            if(requests == null)
+                return;
+            for(UsbRequest request : requests)
+                request.close();
+            requests = null;
         }
     }
 
-    protected class WriteThread extends Thread
+    protected class WriteThread extends SerialIoThread
     {
-        private UsbEndpoint outEndpoint;
-        private AtomicBoolean working;
+        private volatile UsbEndpoint outEndpoint;
+        private final byte[] transferBuffer; // Reused for every bulk transfer
+        private boolean attached; // Data is sent by a SerialIoLoop
 
         public WriteThread()
         {
-            working = new AtomicBoolean(true);
+            super(WriteThread.class.getSimpleName());
+            transferBuffer = new byte[SerialBuffer.DEFAULT_WRITE_BUFFER_SIZE];
         }
 
         @Override
-        public void run()
+        protected void doWork()
         {
-            while(working.get())
+            // Interrupted by stop() while waiting for data
+            int length = serialBuffer.getWriteBuffer(transferBuffer);
+            if(length > 0)
+                connection.bulkTransfer(outEndpoint, transferBuffer, length, USB_TIMEOUT);
+        }
+
+        /*
+         * Sends the pending data that is due, for a shared write thread.
+         * Returns 0 if data was sent, otherwise the nanoseconds before some is due.
+         */
+        synchronized long transferPending(byte[] buffer)
+        {
+            if(!attached)
+                return Long.MAX_VALUE;
+            int length = serialBuffer.pollWriteBuffer(buffer);
+            if(length > 0)
             {
-                byte[] data = serialBuffer.getWriteBuffer();
-                if(data.length > 0)
-                    connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+                connection.bulkTransfer(outEndpoint, buffer, length, USB_TIMEOUT);
+                return 0;
             }
+            return serialBuffer.nanosUntilWriteReady();
         }
 
-        public void setUsbEndpoint(UsbEndpoint outEndpoint)
+        synchronized void attach()
         {
-            this.outEndpoint = outEndpoint;
+            attached = true;
+        }
+
+        // Waits for a transfer in progress, the connection can be closed afterwards
+        synchronized void detach()
+        {
+            attached = false;
         }
 
-        public void stopWriteThread()
+        synchronized boolean isAttached()
         {
-            working.set(false);
+            return attached;
+        }
+
+        public void setUsbEndpoint(UsbEndpoint outEndpoint)
+        {
+            this.outEndpoint = outEndpoint;
         }
     }
 
-    protected class ReadThread extends Thread
+    protected class ReadThread extends SerialIoThread
     {
+        private static final int READ_TIMEOUT = 100; // ms, bounds the time stop() waits for a transfer
+
         private UsbSerialDevice usbSerialDevice;
 
-        private UsbReadCallback callback;
-        private UsbEndpoint inEndpoint;
-        private AtomicBoolean working;
+        private volatile UsbReadBufferCallback callback;
+        private volatile UsbEndpoint inEndpoint;
+        private final ReadBufferPool pool;
 
         public ReadThread(UsbSerialDevice usbSerialDevice)
         {
+            super(ReadThread.class.getSimpleName());
             this.usbSerialDevice = usbSerialDevice;
-            working = new AtomicBoolean(true);
+            pool = new ReadBufferPool(2, SerialBuffer.DEFAULT_READ_BUFFER_SIZE, false);
         }
 
-        public void setCallback(UsbReadCallback callback)
+        public void setCallback(UsbReadBufferCallback callback)
         {
             this.callback = callback;
         }
 
         @Override
-        public void run()
+        protected void doWork()
         {
-            byte[] dataReceived = null;
-
-            while(working.get())
+            PooledReadBuffer data;
+            try
             {
-                int numberBytes;
-                if(inEndpoint != null)
-                    numberBytes = connection.bulkTransfer(inEndpoint, serialBuffer.getBufferCompatible(),
-                            SerialBuffer.DEFAULT_READ_BUFFER_SIZE, 0);
-                else
-                    numberBytes = 0;
-
-                if(numberBytes > 0)
-                {
-                    dataReceived = serialBuffer.getDataReceivedCompatible(numberBytes);
+                data = pool.acquireBlocking();
+            } catch (InterruptedException e)
+            {
+                return;
+            }
 
-                    // FTDI devices reserve two first bytes of an IN endpoint with info about
-                    // modem and Line.
-                    if(isFTDIDevice())
-                    {
-                        ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(dataReceived);
+            int numberBytes;
+            if(inEndpoint != null)
+                numberBytes = connection.bulkTransfer(inEndpoint, data.backingBuffer().array(),
+                        SerialBuffer.DEFAULT_READ_BUFFER_SIZE, READ_TIMEOUT);
+            else
+                numberBytes = 0;
 
-                        if(dataReceived.length > 2)
-                        {
-                            dataReceived = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.adaptArray(dataReceived);
-                            onReceivedData(dataReceived);
-                        }
-                    }else
-                    {
-                        onReceivedData(dataReceived);
-                    }
-                }
+            if(numberBytes > 0 && isWorking())
+            {
+                data.setLength(numberBytes);
+                onReceivedData(data, callback);
+            }else
+            {
+                data.release();
             }
         }
 
@@ -404,16 +807,28 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         {
             this.inEndpoint = inEndpoint;
         }
+    }
 
-        public void stopReadThread()
+    /*
+     * Keeps UsbReadCallback working on top of the pooled buffers: data is copied into an array
+     * and the buffer released before calling the callback.
+     */
+    private static class ByteArrayReadAdapter implements UsbReadBufferCallback
+    {
+        private final UsbReadCallback callback;
+
+        ByteArrayReadAdapter(UsbReadCallback callback)
         {
-            working.set(false);
+            this.callback = callback;
         }
 
-        private void onReceivedData(byte[] data)
+        @Override
+        public void onReceivedData(PooledReadBuffer data)
         {
-            if(callback != null)
-                callback.onReceivedData(data);
+            byte[] dst = new byte[data.length()];
+            data.data().get(dst);
+            data.release();
+            callback.onReceivedData(dst);
         }
     }
 
@@ -425,6 +840,7 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
     protected void setThreadsParams(UsbRequest request, UsbEndpoint endpoint)
     {
+        serialBuffer.setWritePacketSize(endpoint.getMaxPacketSize());
         if(mr1Version)
         {
             workerThread.setUsbRequest(request);
@@ -443,30 +859,43 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     {
         if(mr1Version && workerThread != null)
         {
-            workerThread.stopWorkingThread();
-            workerThread = null;
+            if(workerThread.isAttached())
+            {
+                ioLoop.unregisterReader(this);
+                workerThread.detach();
+            }else
+            {
+                workerThread.stop();
+            }
         }else if(!mr1Version && readThread != null)
         {
-            readThread.stopReadThread();
-            readThread = null;
+            readThread.stop();
         }
     }
 
     /*
-     * Restart workingThread if it has been killed before
+     * Restart workingThread if it has been killed before. Thread objects are kept between
+     * open/close cycles, only their underlying threads are recreated.
      */
     protected void restartWorkingThread()
     {
-        if(mr1Version && workerThread == null)
+        if(mr1Version)
         {
-            workerThread = new WorkerThread(this);
-            workerThread.start();
-            while(!workerThread.isAlive()){} // Busy waiting
-        }else if(!mr1Version && readThread == null)
+            if(workerThread == null)
+                workerThread = new WorkerThread(this);
+            if(ioLoop != null && SerialIoLoop.isSharedReadSupported())
+            {
+                workerThread.attach();
+                ioLoop.registerReader(this);
+            }else
+            {
+                workerThread.start();
+            }
+        }else
         {
-            readThread = new ReadThread(this);
+            if(readThread == null)
+                readThread = new ReadThread(this);
             readThread.start();
-            while(!readThread.isAlive()){} // Busy waiting
         }
     }
 
@@ -474,19 +903,30 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     {
         if(writeThread != null)
         {
-            writeThread.stopWriteThread();
-            writeThread = null;
-            serialBuffer.resetWriteBuffer();
+            if(writeThread.isAttached())
+            {
+                ioLoop.unregisterWriter(this);
+                writeThread.detach();
+            }else
+            {
+                writeThread.stop();
+            }
+            serialBuffer.closeWriteBuffer();
         }
     }
 
     protected void restartWriteThread()
     {
+        serialBuffer.openWriteBuffer();
         if(writeThread == null)
-        {
             writeThread = new WriteThread();
+        if(ioLoop != null)
+        {
+            writeThread.attach();
+            ioLoop.registerWriter(this);
+        }else
+        {
             writeThread.start();
-            while(!writeThread.isAlive()){} // Busy waiting
         }
     }
 }
@@ -32,6 +32,7 @@ public interface UsbSerialInterface
     boolean open();
     void write(byte[] buffer);
     int read(UsbReadCallback mCallback);
+    int read(UsbReadBufferCallback mCallback);
     void close();
 
     // Common Usb Serial Operations (I/O Synchronous)
@@ -96,4 +97,10 @@ public interface UsbSerialInterface
         void onReceivedData(byte[] data);
     }
 
+    // Usb Read Callback without copies. data must be released once consumed, from any thread
+    interface UsbReadBufferCallback
+    {
+        void onReceivedData(PooledReadBuffer data);
+    }
+
 }
@@ -0,0 +1,393 @@
+package com.felhr.usbserial;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated single-consumer ring buffer used on the write path.
+ *
+ * The consumer (the write thread) never takes a lock: read and write positions are
+ * monotonic counters published through volatile fields. Producers are serialized among
+ * themselves so the ring always sees a single producer at a time, even when commands
+ * are written from several application threads. A write is copied whole or not at all, so
+ * commands from several threads are never interleaved, and producers never wait for space
+ * while holding the lock: clear() and close() are never blocked by a full ring.
+ *
+ * The consumer can coalesce small writes: it then waits until enough bytes are pending or
+ * the oldest pending byte reached its latency deadline, unless a flush was requested.
+ * A consumer serving several rings does not block in take: it registers its thread with
+ * setConsumerThread, polls every ring with takeIfReady and parks until one of them wakes it up.
+ *
+ * When the ring is full the behaviour depends on the policy:
+ * POLICY_BLOCK waits for the write thread to drain enough space,
+ * POLICY_FAIL_FAST rejects the whole write and POLICY_OVERWRITE drops the oldest bytes.
+ * Once closed, writes are rejected and every waiting producer is released until open() is called.
+ */
+public class WriteRingBuffer
+{
+    public static final int POLICY_BLOCK = 0;
+    public static final int POLICY_FAIL_FAST = 1;
+    public static final int POLICY_OVERWRITE = 2;
+
+    private final byte[] buffer;
+    private final int capacity;
+    private final int mask;
+
+    // Absolute positions, the index in the array is position & mask
+    private final AtomicLong head = new AtomicLong(); // next byte to be read by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next byte to be written by the producer
+
+    private final Object producerLock = new Object();
+    // Producers waiting for space wait on this monitor, the consumer only takes it when one waits
+    private final Object spaceMonitor = new Object();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    private volatile int policy;
+    private volatile boolean closed;
+    private volatile Thread waitingConsumer;
+    private volatile Thread consumerThread; // Woken up on every write, see setConsumerThread
+    private volatile long firstPendingNanos; // When the oldest pending byte was written
+    private volatile long flushPosition; // Bytes before this position must be sent right away
+
+    public WriteRingBuffer(int capacity, int policy)
+    {
+        if(capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        this.buffer = new byte[capacity];
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        setPolicy(policy);
+    }
+
+    public void setPolicy(int policy)
+    {
+        if(policy != POLICY_BLOCK && policy != POLICY_FAIL_FAST && policy != POLICY_OVERWRITE)
+            throw new IllegalArgumentException("Unknown write buffer policy: " + policy);
+        this.policy = policy;
+    }
+
+    public int getPolicy()
+    {
+        return policy;
+    }
+
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Sets a thread to unpark whenever bytes are written or flushed, null to stop.
+     */
+    public void setConsumerThread(Thread consumerThread)
+    {
+        this.consumerThread = consumerThread;
+    }
+
+    /**
+     * Number of bytes waiting to be consumed.
+     */
+    public int available()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Copies src[offset, offset + length) into the ring.
+     *
+     * @return false if the data was rejected (fail-fast policy, longer than the ring with the
+     * blocking policy, ring closed) or the producer was interrupted while waiting for space,
+     * true otherwise. Nothing is written when false is returned.
+     */
+    public boolean put(byte[] src, int offset, int length)
+    {
+        if(src == null || length <= 0)
+            return true;
+
+        int policy = this.policy;
+        if(policy == POLICY_BLOCK)
+            return putBlocking(src, offset, length);
+
+        synchronized(producerLock)
+        {
+            if(closed)
+                return false;
+            if(policy == POLICY_FAIL_FAST)
+            {
+                if(length > capacity - available())
+                    return false;
+                copyIn(src, offset, length);
+                return true;
+            }
+            if(length > capacity) // Only the newest bytes can survive
+            {
+                offset += length - capacity;
+                length = capacity;
+            }
+            dropOldest(length);
+            copyIn(src, offset, length);
+            return true;
+        }
+    }
+
+    /**
+     * Moves up to dst.length bytes into dst, blocking while the ring is empty.
+     *
+     * @return number of bytes copied, 0 if the calling thread was interrupted.
+     */
+    public int take(byte[] dst)
+    {
+        return take(dst, 1, 0);
+    }
+
+    /**
+     * Moves up to dst.length bytes into dst once at least minLength bytes are pending, the oldest
+     * pending byte waited maxLatencyNanos or a flush was requested. Blocks until then.
+     *
+     * @return number of bytes copied, 0 if the calling thread was interrupted.
+     */
+    public int take(byte[] dst, int minLength, long maxLatencyNanos)
+    {
+        while(true)
+        {
+            int pending = available();
+            long waitNanos = 0; // 0 waits until a producer wakes us up
+            if(pending > 0)
+            {
+                waitNanos = nanosUntilReady(pending, minLength, maxLatencyNanos);
+                if(waitNanos <= 0)
+                {
+                    int n = poll(dst, 0, dst.length);
+                    if(n > 0)
+                        return n;
+                    continue;
+                }
+            }
+
+            waitingConsumer = Thread.currentThread();
+            // Re-check after publishing ourselves to avoid a lost wake-up
+            if(available() == pending && head.get() >= flushPosition)
+            {
+                if(waitNanos > 0)
+                    LockSupport.parkNanos(this, waitNanos);
+                else
+                    LockSupport.park(this);
+            }
+            waitingConsumer = null;
+
+            if(Thread.interrupted())
+                return 0;
+        }
+    }
+
+    /**
+     * Non blocking variant of take(dst, minLength, maxLatencyNanos).
+     *
+     * @return number of bytes copied, 0 if the pending bytes are not due yet.
+     */
+    public int takeIfReady(byte[] dst, int minLength, long maxLatencyNanos)
+    {
+        int pending = available();
+        if(pending <= 0 || nanosUntilReady(pending, minLength, maxLatencyNanos) > 0)
+            return 0;
+        return poll(dst, 0, dst.length);
+    }
+
+    /**
+     * Time before takeIfReady returns the pending bytes.
+     *
+     * @return 0 if they can be taken now, Long.MAX_VALUE if the ring is empty.
+     */
+    public long nanosUntilReady(int minLength, long maxLatencyNanos)
+    {
+        int pending = available();
+        if(pending <= 0)
+            return Long.MAX_VALUE;
+        return Math.max(0, nanosUntilReady(pending, minLength, maxLatencyNanos));
+    }
+
+    private long nanosUntilReady(int pending, int minLength, long maxLatencyNanos)
+    {
+        if(pending >= minLength || maxLatencyNanos <= 0 || head.get() < flushPosition)
+            return -1;
+        return firstPendingNanos + maxLatencyNanos - System.nanoTime();
+    }
+
+    /**
+     * Makes every byte written so far available to the consumer right away.
+     */
+    public void flush()
+    {
+        flushPosition = tail.get();
+        wakeUpConsumer();
+    }
+
+    /**
+     * Non blocking variant of take.
+     *
+     * @return number of bytes copied, 0 if the ring is empty.
+     */
+    public int poll(byte[] dst, int offset, int maxLength)
+    {
+        while(true)
+        {
+            long h = head.get();
+            int n = Math.min((int) (tail.get() - h), maxLength);
+            if(n <= 0)
+                return 0;
+
+            int index = (int) (h & mask);
+            int first = Math.min(n, capacity - index);
+            System.arraycopy(buffer, index, dst, offset, first);
+            if(first < n)
+                System.arraycopy(buffer, 0, dst, offset + first, n - first);
+
+            // Fails only when an overwriting producer or clear() moved head meanwhile, the copy may be torn
+            if(head.compareAndSet(h, h + n))
+            {
+                wakeUpProducers();
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Blocks until at most maxPending bytes are waiting to be consumed.
+     *
+     * @return false if the calling thread was interrupted or the ring was closed.
+     */
+    public boolean awaitPendingAtMost(int maxPending)
+    {
+        return awaitSpace(capacity - maxPending) && !closed;
+    }
+
+    /**
+     * Discards every pending byte. Producers waiting for space go on.
+     */
+    public void clear()
+    {
+        synchronized(producerLock)
+        {
+            head.set(tail.get());
+        }
+        wakeUpProducers();
+    }
+
+    /**
+     * Discards every pending byte and rejects the writes until open() is called. Producers
+     * waiting for space are released, their writes are rejected.
+     */
+    public void close()
+    {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * Accepts writes again after close().
+     */
+    public void open()
+    {
+        closed = false;
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    private boolean putBlocking(byte[] src, int offset, int length)
+    {
+        if(length > capacity) // Could never be written whole
+            return false;
+        while(true)
+        {
+            synchronized(producerLock)
+            {
+                if(closed)
+                    return false;
+                if(length <= capacity - available())
+                {
+                    copyIn(src, offset, length);
+                    return true;
+                }
+            }
+            // Another producer may take the space first, the lock is then tried again
+            if(!awaitSpace(length))
+                return false;
+        }
+    }
+
+    /*
+     * Blocks, without any lock held, until free bytes are available or the ring is closed.
+     * Returns false if the calling thread was interrupted, its interrupt status is kept.
+     */
+    private boolean awaitSpace(int free)
+    {
+        waitingProducers.incrementAndGet();
+        try
+        {
+            synchronized(spaceMonitor)
+            {
+                // The consumer moves head before taking the monitor, no wake-up is lost
+                while(capacity - available() < free && !closed)
+                    spaceMonitor.wait();
+            }
+            return true;
+        } catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally
+        {
+            waitingProducers.decrementAndGet();
+        }
+    }
+
+    private void wakeUpProducers()
+    {
+        if(waitingProducers.get() > 0)
+        {
+            synchronized(spaceMonitor)
+            {
+                spaceMonitor.notifyAll();
+            }
+        }
+    }
+
+    private void dropOldest(int length)
+    {
+        while(true)
+        {
+            long h = head.get();
+            long t = tail.get();
+            long needed = (t - h) + length - capacity;
+            if(needed <= 0 || head.compareAndSet(h, h + needed))
+                return;
+        }
+    }
+
+    private void copyIn(byte[] src, int offset, int length)
+    {
+        long t = tail.get();
+        if(t == head.get())
+            firstPendingNanos = System.nanoTime();
+        int index = (int) (t & mask);
+        int first = Math.min(length, capacity - index);
+        System.arraycopy(src, offset, buffer, index, first);
+        if(first < length)
+            System.arraycopy(src, offset + first, buffer, 0, length - first);
+        tail.set(t + length); // Publishes the bytes to the consumer
+        wakeUpConsumer();
+    }
+
+    private void wakeUpConsumer()
+    {
+        Thread consumer = waitingConsumer;
+        if(consumer != null)
+            LockSupport.unpark(consumer);
+        consumer = consumerThread;
+        if(consumer != null)
+            LockSupport.unpark(consumer);
+    }
+}
@@ -1,10 +1,10 @@
 package com.felhr.utils;
 
+import java.util.Arrays;
+
 public class HexData
 {
     private static final String HEXES = "0123456789ABCDEF";
-    private static final String HEX_INDICATOR = "0x";
-    private static final String SPACE = " ";
 
     private HexData()
     {
@@ -15,37 +15,59 @@ public class HexData
     {
         if(data != null)
         {
-            StringBuilder hex = new StringBuilder(2*data.length);
+            // "0xAB " per byte, filled in place instead of appended piece by piece
+            char[] hex = new char[5*data.length];
+            int j = 0;
             for(int i=0;i<=data.length-1;i++)
             {
                 byte dataAtIndex = data[i];
-                hex.append(HEX_INDICATOR);
-                hex.append(HEXES.charAt((dataAtIndex & 0xF0) >> 4))
-                        .append(HEXES.charAt((dataAtIndex & 0x0F)));
-                hex.append(SPACE);
+                hex[j++] = '0';
+                hex[j++] = 'x';
+                hex[j++] = HEXES.charAt((dataAtIndex & 0xF0) >> 4);
+                hex[j++] = HEXES.charAt((dataAtIndex & 0x0F));
+                hex[j++] = ' ';
             }
-            return hex.toString();
+            return new String(hex);
         }else
         {
             return null;
         }
     }
 
+    /*
+     * Parses hexadecimal bytes such as "0x1F 0xA5" or "1FA5", in a single pass: "0x" indicators
+     * and whitespace are skipped without regular expressions nor substrings.
+     */
     public static byte[] stringTobytes(String hexString)
     {
-        String stringProcessed = hexString.trim().replaceAll("0x", "");
-        stringProcessed = stringProcessed.replaceAll("\\s+","");
-        byte[] data = new byte[stringProcessed.length()/2];
-        int i = 0;
+        byte[] data = new byte[hexString.length()/2];
         int j = 0;
-        while(i <= stringProcessed.length()-1)
+        int high = -1;
+        int i = 0;
+        while(i <= hexString.length()-1)
         {
-            byte character = (byte) Integer.parseInt(stringProcessed.substring(i, i+2), 16);
-            data[j] = character;
-            j++;
-            i += 2;
+            char c = hexString.charAt(i);
+            if(c == '0' && i+1 < hexString.length() && hexString.charAt(i+1) == 'x')
+            {
+                i += 2;
+                continue;
+            }
+            i++;
+            if(Character.isWhitespace(c))
+                continue;
+            int digit = Character.digit(c, 16);
+            if(digit < 0)
+                throw new NumberFormatException("Not an hexadecimal digit: '" + c + "'");
+            if(high < 0)
+            {
+                high = digit;
+            }else
+            {
+                data[j++] = (byte) ((high << 4) | digit);
+                high = -1;
+            }
         }
-        return data;
+        return j == data.length ? data : Arrays.copyOf(data, j);
     }
 
     public static String hex4digits(String id)
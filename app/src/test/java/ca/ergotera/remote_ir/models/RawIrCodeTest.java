@@ -0,0 +1,90 @@
+package ca.ergotera.remote_ir.models;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the raw IR code blob, run on the development machine (host).
+ */
+public class RawIrCodeTest {
+
+    // NEC frame of address 0x00, command 0x45: header, 32 bits and the final mark
+    private static final int[] NEC_FRAME = necFrame();
+
+    @Test
+    public void blob_roundTripsRepeatedFrames() {
+        int[] durations = repeat(NEC_FRAME, 4);
+        RawIrCode code = new RawIrCode(38000, durations);
+
+        byte[] blob = code.toBlob();
+        RawIrCode decoded = RawIrCode.fromBlob(blob);
+        assertEquals(38000, decoded.getFrequency());
+        assertArrayEquals(durations, decoded.getDurations());
+        // Repeats are stored once
+        assertTrue(blob.length < new RawIrCode(38000, NEC_FRAME).toBlob().length + 8);
+    }
+
+    @Test
+    public void blob_roundTripsFramesOfDifferentLengths() {
+        int[] durations = {9000, 4500, 560, 1690, 560, 40000, 9000, 2250, 560, 96000, 9000, 2250, 560};
+        RawIrCode decoded = RawIrCode.fromBlob(new RawIrCode(36000, durations).toBlob());
+        assertEquals(36000, decoded.getFrequency());
+        assertArrayEquals(durations, decoded.getDurations());
+    }
+
+    @Test
+    public void blob_roundTripsEmptyCode() {
+        RawIrCode decoded = RawIrCode.fromBlob(new RawIrCode(38000, new int[0]).toBlob());
+        assertEquals(0, decoded.getDurations().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBlob_isRejected() {
+        byte[] blob = new RawIrCode(38000, NEC_FRAME).toBlob();
+        RawIrCode.fromBlob(Arrays.copyOf(blob, blob.length / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersion_isRejected() {
+        byte[] blob = new RawIrCode(38000, NEC_FRAME).toBlob();
+        blob[0] = 2;
+        RawIrCode.fromBlob(blob);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDurationCount_isRejected() {
+        // version 1, 38000 Hz, then 0xFFFFFFFF durations
+        byte[] blob = {1, (byte) 0xF0, (byte) 0xA8, 0x02, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        RawIrCode.fromBlob(blob);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFrameIndex_isRejected() {
+        byte[] blob = new RawIrCode(38000, NEC_FRAME).toBlob();
+        blob[blob.length - 1] = 5; // The only frame sent points past the unique frames
+        RawIrCode.fromBlob(blob);
+    }
+
+    private static int[] necFrame() {
+        int[] frame = new int[2 + 64 + 2];
+        frame[0] = 9000;
+        frame[1] = 4500;
+        for (int bit = 0; bit < 32; bit++) {
+            frame[2 + 2 * bit] = 560;
+            frame[3 + 2 * bit] = ((0x45 >> (bit % 8)) & 1) != 0 ? 1690 : 560;
+        }
+        frame[66] = 560;
+        frame[67] = 40000; // Gap before the next repeat
+        return frame;
+    }
+
+    private static int[] repeat(int[] frame, int times) {
+        int[] durations = new int[frame.length * times];
+        for (int i = 0; i < times; i++)
+            System.arraycopy(frame, 0, durations, i * frame.length, frame.length);
+        return durations;
+    }
+}
@@ -0,0 +1,150 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the binary framing, run on the development machine (host).
+ */
+public class BinaryFrameCodecTest {
+
+    private final List<byte[]> frames = new ArrayList<>();
+
+    private final FrameDecoder.OnFrameListener collector = new FrameDecoder.OnFrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    };
+
+    @Test
+    public void crc16_matchesCcittCheckValue() {
+        byte[] check = "123456789".getBytes();
+        assertEquals(0x29B1, BinaryFrameCodec.crc16(check, 0, check.length));
+    }
+
+    @Test
+    public void varint_roundTrips() {
+        long[] values = {0, 1, 127, 128, 300, 16689239, 0xFFFFFFFFL, Long.MAX_VALUE};
+        byte[] buffer = new byte[values.length * 10];
+        int length = 0;
+        for (long value : values)
+            length += BinaryFrameCodec.writeVarint(value, buffer, length);
+
+        int[] position = {0};
+        for (long value : values)
+            assertEquals(value, BinaryFrameCodec.readVarint(buffer, position, length));
+        assertEquals(length, position[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void varint_truncatedIsRejected() {
+        byte[] buffer = {(byte) 0x80, (byte) 0x80};
+        BinaryFrameCodec.readVarint(buffer, new int[]{0}, buffer.length);
+    }
+
+    @Test
+    public void sendIr_isMuchSmallerThanText() {
+        byte[] frame = BinaryFrameCodec.encodeSendIr(3, 32, 16689239);
+        String text = "SEND_IR {codeLen:32,codeType:3,codeValue:16689239}";
+        assertTrue(frame.length <= 12);
+        assertTrue(frame.length * 4 < text.length());
+
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(collector);
+        decoder.decode(frame, 0, frame.length);
+        assertEquals(1, frames.size());
+        byte[] decoded = frames.get(0);
+        assertEquals(BinaryFrameCodec.CMD_SEND_IR, decoded[1]);
+        int[] position = {BinaryFrameCodec.HEADER_LENGTH};
+        int end = decoded.length - BinaryFrameCodec.CRC_LENGTH;
+        assertEquals(3, BinaryFrameCodec.readVarint(decoded, position, end));
+        assertEquals(32, BinaryFrameCodec.readVarint(decoded, position, end));
+        assertEquals(16689239, BinaryFrameCodec.readVarint(decoded, position, end));
+        assertEquals(end, position[0]);
+    }
+
+    @Test
+    public void sendRaw_roundTripsDurations() {
+        int[] durations = {9000, 4500, 560, 560, 560, 1690, 560, 40000};
+        byte[] frame = BinaryFrameCodec.encodeSendRaw(38000, durations, 0, durations.length);
+
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(collector);
+        decoder.decode(frame, 0, frame.length);
+        byte[] decoded = frames.get(0);
+        int[] position = {BinaryFrameCodec.HEADER_LENGTH};
+        int end = decoded.length - BinaryFrameCodec.CRC_LENGTH;
+        assertEquals(38000, BinaryFrameCodec.readVarint(decoded, position, end));
+        assertEquals(durations.length, BinaryFrameCodec.readVarint(decoded, position, end));
+        for (int duration : durations)
+            assertEquals(duration, BinaryFrameCodec.readVarint(decoded, position, end));
+    }
+
+    @Test
+    public void decoder_handlesSplitAndCoalescedFrames() {
+        byte[] first = BinaryFrameCodec.encodeSendIr(3, 32, 1);
+        byte[] second = BinaryFrameCodec.encodeSendIr(3, 32, 2);
+        byte[] stream = new byte[first.length + second.length];
+        System.arraycopy(first, 0, stream, 0, first.length);
+        System.arraycopy(second, 0, stream, first.length, second.length);
+
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(collector);
+        for (int i = 0; i < stream.length; i += 3)
+            decoder.decode(stream, i, Math.min(3, stream.length - i));
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(first, frames.get(0));
+        assertArrayEquals(second, frames.get(1));
+    }
+
+    @Test
+    public void decoder_dropsCorruptedFrame() {
+        byte[] corrupted = BinaryFrameCodec.encodeSendIr(3, 32, 16689239);
+        corrupted[5] ^= 0x01;
+        byte[] valid = BinaryFrameCodec.encodeSendIr(3, 32, 16689239);
+
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(collector);
+        decoder.decode(corrupted, 0, corrupted.length);
+        decoder.decode(valid, 0, valid.length);
+
+        assertEquals(1, decoder.getCorruptedFrames());
+        assertEquals(1, frames.size());
+        assertArrayEquals(valid, frames.get(0));
+    }
+
+    @Test
+    public void frameDecoder_mixesTextAndBinaryFrames() {
+        byte[] payload = "{ID:12}".getBytes();
+        byte[] binary = BinaryFrameCodec.encode(ResponseParser.SENT, payload, 0, payload.length);
+        byte[] before = "PING {BIN:1}\r\n".getBytes();
+        byte[] after = "BTN_PRESSED {4}\r\n".getBytes();
+
+        FrameDecoder decoder = new FrameDecoder(collector);
+        decoder.decode(before, 0, before.length);
+        decoder.decode(binary, 0, binary.length);
+        decoder.decode(after, 0, after.length);
+
+        assertEquals(3, frames.size());
+        assertEquals("PING {BIN:1}", new String(frames.get(0)));
+        assertArrayEquals(binary, frames.get(1));
+        assertEquals("BTN_PRESSED {4}", new String(frames.get(2)));
+    }
+
+    @Test
+    public void responseParser_readsBinaryReply() {
+        byte[] payload = "{ID:12,codeValue:4294967295}".getBytes();
+        byte[] frame = BinaryFrameCodec.encode(ResponseParser.SENT, payload, 0, payload.length);
+
+        ResponseParser.Response response = new ResponseParser.Response();
+        assertTrue(new ResponseParser().parse(frame, 0, frame.length, response));
+        assertEquals(ResponseParser.SENT, response.getType());
+        assertFalse(response.isError());
+        assertEquals("{ID:12,codeValue:4294967295}", response.getPayload());
+        assertEquals(12, response.getInt("ID", -1));
+        assertEquals(4294967295L, response.getLong("codeValue", -1));
+    }
+}
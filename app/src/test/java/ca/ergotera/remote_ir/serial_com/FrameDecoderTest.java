@@ -0,0 +1,109 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the splitting of the received bytes into frames, run on the development machine
+ * (host).
+ */
+public class FrameDecoderTest {
+
+    private final List<byte[]> frames = new ArrayList<>();
+
+    private final FrameDecoder.OnFrameListener collector = new FrameDecoder.OnFrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    };
+
+    private final FrameDecoder decoder = new FrameDecoder(collector);
+
+    @Test
+    public void textFrames_splitAndCoalesced() {
+        byte[] stream = "PING {current_state:0}\r\nSENT {ID:1}SENT {ID:2}\r\nBTN_PRESSED {4}\n".getBytes();
+        for (int i = 0; i < stream.length; i += 5)
+            decoder.decode(stream, i, Math.min(5, stream.length - i));
+
+        assertFrames("PING {current_state:0}", "SENT {ID:1}", "SENT {ID:2}", "BTN_PRESSED {4}");
+        assertEquals(0, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void lostClosingBrace_resynchronizesOnLineEnd() {
+        decode("SENT {ID:1\r\nSENT {ID:2}\r\nPING {current_state:1}\r\n");
+
+        assertFrames("SENT {ID:2}", "PING {current_state:1}");
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void overflow_dropsUpToLineEndWhateverTheBraces() {
+        FrameDecoder small = new FrameDecoder(16, collector);
+        byte[] stream = "RECORDED {raw:{1,2,3,4,5,6,7,8,9}\r\nSENT {ID:3}\r\n".getBytes();
+        small.decode(stream, 0, stream.length);
+
+        assertFrames("SENT {ID:3}");
+        assertEquals(1, small.getDroppedFrames());
+    }
+
+    @Test
+    public void straySync_unknownTypeDoesNotSwallowText() {
+        byte[] noise = {BinaryFrameCodec.SYNC};
+        decoder.decode(noise, 0, noise.length);
+        decode("SENT {ID:4}\r\n");
+
+        assertFrames("SENT {ID:4}");
+        assertEquals(1, decoder.getCorruptedFrames());
+    }
+
+    @Test
+    public void straySync_lengthOverBoundIsDroppedAtHeader() {
+        byte[] noise = {BinaryFrameCodec.SYNC, ResponseParser.SENT, (byte) 0x7F, (byte) 0xFF};
+        decoder.decode(noise, 0, noise.length);
+        decode("SENT {ID:5}\r\n");
+
+        assertFrames("SENT {ID:5}");
+        assertEquals(1, decoder.getCorruptedFrames());
+    }
+
+    @Test
+    public void crcFailure_resynchronizesAfterSync() {
+        byte[] payload = "{ID:6}".getBytes();
+        byte[] valid = BinaryFrameCodec.encode(ResponseParser.SENT, payload, 0, payload.length);
+        // A bogus header whose frame ends inside the valid one
+        byte[] noise = {BinaryFrameCodec.SYNC, ResponseParser.SENT, 0, 2};
+        decoder.decode(noise, 0, noise.length);
+        decoder.decode(valid, 0, valid.length);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(valid, frames.get(0));
+        assertEquals(1, decoder.getCorruptedFrames());
+    }
+
+    @Test
+    public void reset_dropsPartialFrame() {
+        decode("SENT {ID:");
+        decoder.reset();
+        decode("SENT {ID:7}\r\n");
+
+        assertFrames("SENT {ID:7}");
+    }
+
+    private void decode(String text) {
+        byte[] data = text.getBytes();
+        decoder.decode(data, 0, data.length);
+    }
+
+    private void assertFrames(String... expected) {
+        assertEquals(expected.length, frames.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], new String(frames.get(i)));
+    }
+}
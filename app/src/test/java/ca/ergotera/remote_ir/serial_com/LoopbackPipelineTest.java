@@ -0,0 +1,185 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import com.felhr.usbserial.LoopbackSerialDevice;
+import com.felhr.usbserial.PooledReadBuffer;
+import com.felhr.usbserial.UsbSerialInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the command pipeline (priority lanes, serial port, frame decoding and parsing) against
+ * a simulated module on a loopback serial port, run on the development machine (host).
+ */
+public class LoopbackPipelineTest {
+
+    private static final long REPLY_TIMEOUT_MS = 2000;
+
+    private final ModuleSimulator module = new ModuleSimulator();
+    private final LoopbackSerialDevice device = new LoopbackSerialDevice(module);
+    private final LinkedBlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    private final ResponseParser parser = new ResponseParser();
+    private final ResponseParser.Response response = new ResponseParser.Response();
+
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.OnFrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            parser.parse(buffer, offset, length, response);
+            replies.add(response.getText());
+        }
+    });
+
+    private final PriorityWriter writer = new PriorityWriter(new PriorityWriter.Sink() {
+        @Override
+        public int write(byte[] frame) {
+            device.write(frame);
+            return 0;
+        }
+
+        @Override
+        public void awaitBacklog(int maxPending) {
+        }
+    });
+
+    @Before
+    public void setUp() {
+        module.attach(device);
+        device.open();
+        device.read(new UsbSerialInterface.UsbReadBufferCallback() {
+            @Override
+            public void onReceivedData(PooledReadBuffer data) {
+                decoder.decode(data.data().duplicate());
+                data.release();
+            }
+        });
+        writer.start();
+    }
+
+    @After
+    public void tearDown() {
+        writer.stop();
+        device.close();
+    }
+
+    @Test
+    public void ping_negotiatesBinaryProtocol() throws InterruptedException {
+        writer.write(PriorityWriter.LANE_CONTROL, "PING {BIN:1}".getBytes());
+        assertEquals("PING {current_state:IDL_STATE,BIN:1}", nextReply());
+
+        module.setBinarySupported(false);
+        writer.write(PriorityWriter.LANE_CONTROL, "PING {BIN:1}".getBytes());
+        assertEquals("PING {current_state:IDL_STATE}", nextReply());
+    }
+
+    @Test
+    public void buttonPress_isOnlyEmittedInButtonState() throws InterruptedException {
+        assertFalse(module.pressButton(7));
+
+        writer.write(PriorityWriter.LANE_CONTROL, "SET_STATE {STATE:BUT_STATE}".getBytes());
+        assertEquals("SET_STATE {SUCC:BUT_STATE}", nextReply());
+        assertTrue(module.pressButton(7));
+
+        String reply = nextReply();
+        byte[] bytes = reply.getBytes();
+        parser.parse(bytes, 0, bytes.length, response);
+        assertEquals(ResponseParser.BTN_PRESSED, response.getType());
+        assertEquals(7, response.getNumber(-1));
+    }
+
+    @Test
+    public void recordedCode_isEmittedInRecordState() throws InterruptedException {
+        writer.write(PriorityWriter.LANE_CONTROL, "SET_STATE {STATE:REC_STATE}".getBytes());
+        assertEquals("SET_STATE {SUCC:REC_STATE}", nextReply());
+        assertTrue(module.recordCode("{codeLen:32,codeType:3,codeValue:16689239}"));
+        assertEquals("RECORDED {codeLen:32,codeType:3,codeValue:16689239}", nextReply());
+    }
+
+    @Test
+    public void unknownCommand_isAnsweredWithError() throws InterruptedException {
+        writer.write(PriorityWriter.LANE_CONTROL, "REBOOT {}".getBytes());
+        assertEquals("ERROR {UNKNOWN_COMMAND}", nextReply());
+    }
+
+    @Test
+    public void codes_areAllAnsweredThroughSmallDelayedPackets() throws InterruptedException {
+        device.setPacketSize(7);
+        device.setLatency(2);
+        device.setBaudRate(115200);
+
+        int codes = 100;
+        for (int i = 0; i < codes; i++) {
+            byte[] text = ("SEND_IR {codeLen:32,codeType:3,codeValue:" + i + "}").getBytes();
+            byte[] binary = BinaryFrameCodec.encodeSendIr(3, 32, i);
+            writer.write(i % 2 == 0 ? PriorityWriter.LANE_INTERACTIVE : PriorityWriter.LANE_BULK, i % 4 < 2 ? text : binary);
+        }
+        for (int i = 0; i < codes; i++)
+            assertTrue(nextReply().startsWith("SENT {codeLen:32,codeType:3,codeValue:"));
+
+        assertEquals(codes, module.getCodesSent());
+        assertEquals(codes, writer.getFramesWritten(PriorityWriter.LANE_INTERACTIVE)
+                + writer.getFramesWritten(PriorityWriter.LANE_BULK));
+        assertEquals(0, writer.getQueueDepth(PriorityWriter.LANE_BULK));
+    }
+
+    @Test
+    public void rawCode_isDecodedByTheModule() throws InterruptedException {
+        int[] durations = {9000, 4500, 560, 1690, 560, 560, 560};
+        writer.write(PriorityWriter.LANE_INTERACTIVE, BinaryFrameCodec.encodeSendRaw(38000, durations, 0, durations.length));
+        assertEquals("SENT {frequency:38000,durations:7}", nextReply());
+    }
+
+    @Test
+    public void packetLoss_failsExactlyTheCommandsLost() throws InterruptedException {
+        // Every command and every reply fits in one packet, the losses of a seed are fixed
+        device.setPacketLoss(0.3, 42);
+        int pings = 50;
+        for (int i = 0; i < pings; i++)
+            writer.write(PriorityWriter.LANE_CONTROL, "PING {}".getBytes());
+
+        int resolved = 0;
+        while (replies.poll(500, TimeUnit.MILLISECONDS) != null)
+            resolved++;
+        int failed = pings - resolved;
+        assertEquals(27, resolved);
+        assertEquals(23, failed);
+        // Failed commands were lost on their way or their reply was
+        assertEquals(11, device.getPacketsLostToPeer());
+        assertEquals(12, device.getPacketsLostToHost());
+        assertEquals(pings - 11, module.getCommandsReceived());
+    }
+
+    @Test
+    public void syncRead_returnsRepliesWithoutCallback() {
+        LoopbackSerialDevice syncDevice = new LoopbackSerialDevice(module);
+        module.attach(syncDevice);
+        syncDevice.syncOpen();
+        try {
+            byte[] ping = "PING {}".getBytes();
+            assertEquals(ping.length, syncDevice.syncWrite(ping, 100));
+
+            StringBuilder reply = new StringBuilder();
+            byte[] buffer = new byte[8];
+            while (reply.indexOf("\n") < 0) {
+                int read = syncDevice.syncRead(buffer, (int) REPLY_TIMEOUT_MS);
+                assertTrue(read > 0);
+                reply.append(new String(buffer, 0, read));
+            }
+            assertEquals("PING {current_state:IDL_STATE}\r\n", reply.toString());
+        } finally {
+            syncDevice.syncClose();
+            module.attach(device);
+        }
+    }
+
+    private String nextReply() throws InterruptedException {
+        String reply = replies.poll(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(reply);
+        return reply;
+    }
+}
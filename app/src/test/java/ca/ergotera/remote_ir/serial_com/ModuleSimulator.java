@@ -0,0 +1,176 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import com.felhr.usbserial.LoopbackSerialDevice;
+
+/**
+ * Simulation of the IR module at the far end of a LoopbackSerialDevice, to exercise the serial
+ * stack and the command protocol on the JVM.
+ *
+ * Commands are decoded like the module does, in text or BinaryFrameCodec form, and answered with
+ * the text replies of the module: PING {current_state:...}, SET_STATE {SUCC:...}, SENT, or ERROR
+ * for unknown commands. The
+ * binary protocol is accepted when asked for through PING, unless disabled. Button presses and
+ * recorded codes are emitted on demand, as when a user presses an external button or points a
+ * remote at the module.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class ModuleSimulator implements LoopbackSerialDevice.Peer {
+
+    public static final String STATE_IDLE = "IDL_STATE";
+    public static final String STATE_BUTTON = "BUT_STATE";
+    public static final String STATE_RECORD = "REC_STATE";
+
+    private static final String LINE_END = "\r\n";
+
+    private final ResponseParser parser = new ResponseParser();
+    private final ResponseParser.Response command = new ResponseParser.Response();
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.OnFrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            onCommand(buffer, offset, length);
+        }
+    });
+
+    private volatile LoopbackSerialDevice device;
+    private volatile boolean binarySupported = true;
+    private volatile String state = STATE_IDLE;
+    private volatile int commandsReceived;
+    private volatile int codesSent;
+
+    /**
+     * Device the events are emitted on, until the host writes through another one.
+     */
+    public void attach(LoopbackSerialDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Whether PING {BIN:1} is answered with BIN:1, true by default.
+     */
+    public void setBinarySupported(boolean binarySupported) {
+        this.binarySupported = binarySupported;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public int getCommandsReceived() {
+        return commandsReceived;
+    }
+
+    /**
+     * IR codes sent so far, decoded or raw.
+     */
+    public int getCodesSent() {
+        return codesSent;
+    }
+
+    /**
+     * Emits BTN_PRESSED for the external button, as the module does in the button state.
+     *
+     * @return false if the module is not in the button state.
+     */
+    public boolean pressButton(int buttonId) {
+        if (!STATE_BUTTON.equals(state))
+            return false;
+        reply("BTN_PRESSED {" + buttonId + "}");
+        return true;
+    }
+
+    /**
+     * Emits RECORDED with the code, as the module does in the record state.
+     *
+     * @param code ie.: "{codeLen:32,codeType:3,codeValue:16689239}"
+     * @return false if the module is not in the record state.
+     */
+    public boolean recordCode(String code) {
+        if (!STATE_RECORD.equals(state))
+            return false;
+        reply("RECORDED " + code);
+        return true;
+    }
+
+    @Override
+    public synchronized void onHostData(LoopbackSerialDevice device, byte[] data, int offset, int length) {
+        this.device = device;
+        decoder.decode(data, offset, length);
+    }
+
+    // Called on the host to peer pipe, holding the lock
+    private void onCommand(byte[] buffer, int offset, int length) {
+        commandsReceived++;
+        if (buffer[offset] == BinaryFrameCodec.SYNC) {
+            onBinaryCommand(buffer, offset, length);
+            return;
+        }
+
+        parser.parse(buffer, offset, length, command);
+        String text = command.getText();
+        if (startsWith(text, "PING")) {
+            boolean binary = binarySupported && command.getInt("BIN", 0) == 1;
+            reply(binary ? pingReply() + ",BIN:1}" : pingReply() + "}");
+        } else if (startsWith(text, "SET_STATE")) {
+            String newState = command.getString("STATE");
+            if (STATE_IDLE.equals(newState) || STATE_BUTTON.equals(newState) || STATE_RECORD.equals(newState)) {
+                state = newState;
+                reply("SET_STATE {SUCC:" + newState + "}");
+            } else {
+                reply("SET_STATE {ERROR:UNKNOWN_STATE}");
+            }
+        } else if (startsWith(text, "SEND_IR")) {
+            codesSent++;
+            reply("SENT " + command.getPayload());
+        } else {
+            reply("ERROR {UNKNOWN_COMMAND}");
+        }
+    }
+
+    private void onBinaryCommand(byte[] buffer, int offset, int length) {
+        int[] position = {offset + BinaryFrameCodec.HEADER_LENGTH};
+        int end = offset + length - BinaryFrameCodec.CRC_LENGTH;
+        try {
+            switch (buffer[offset + 1]) {
+                case BinaryFrameCodec.CMD_PING:
+                    reply(pingReply() + ",BIN:1}");
+                    break;
+                case BinaryFrameCodec.CMD_SEND_IR:
+                    long codeType = BinaryFrameCodec.readVarint(buffer, position, end);
+                    long codeLength = BinaryFrameCodec.readVarint(buffer, position, end);
+                    long codeValue = BinaryFrameCodec.readVarint(buffer, position, end);
+                    codesSent++;
+                    reply("SENT {codeLen:" + codeLength + ",codeType:" + codeType + ",codeValue:" + codeValue + "}");
+                    break;
+                case BinaryFrameCodec.CMD_SEND_RAW:
+                    long frequency = BinaryFrameCodec.readVarint(buffer, position, end);
+                    long count = BinaryFrameCodec.readVarint(buffer, position, end);
+                    for (int i = 0; i < count; i++)
+                        BinaryFrameCodec.readVarint(buffer, position, end);
+                    codesSent++;
+                    reply("SENT {frequency:" + frequency + ",durations:" + count + "}");
+                    break;
+                default:
+                    reply("ERROR {UNKNOWN_COMMAND}");
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            reply("ERROR {BAD_FRAME}");
+        }
+    }
+
+    // Without the closing brace, BIN:1 may follow
+    private String pingReply() {
+        return "PING {current_state:" + state;
+    }
+
+    private void reply(String response) {
+        LoopbackSerialDevice device = this.device;
+        if (device != null)
+            device.deliver((response + LINE_END).getBytes());
+    }
+
+    private static boolean startsWith(String text, String verb) {
+        return text.regionMatches(true, 0, verb, 0, verb.length());
+    }
+}
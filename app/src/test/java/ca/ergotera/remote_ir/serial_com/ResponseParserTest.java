@@ -0,0 +1,97 @@
+package ca.ergotera.remote_ir.serial_com;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the response parser, run on the development machine (host).
+ */
+public class ResponseParserTest {
+
+    private final ResponseParser parser = new ResponseParser();
+    private final ResponseParser.Response response = new ResponseParser.Response();
+
+    @Test
+    public void verbs_areMatchedCaseInsensitively() {
+        assertEquals(ResponseParser.PING, parse("PING {current_state:IDL_STATE}"));
+        assertEquals(ResponseParser.SENT, parse("sent {codeLen:32,codeType:3,codeValue:1}"));
+        assertEquals(ResponseParser.ERROR, parse("Error {UNKNOWN_COMMAND}"));
+        assertEquals(ResponseParser.RECORDED, parse("RECORDED {codeLen:32,codeType:3,codeValue:1}"));
+        assertEquals(ResponseParser.SET_STATE, parse("set_state {SUCC:REC_STATE}"));
+        assertEquals(ResponseParser.BTN_PRESSED, parse("BTN_PRESSED {7}"));
+    }
+
+    @Test
+    public void unknownVerb_isReportedButStillParsed() {
+        byte[] frame = "REBOOTED {count:2}".getBytes();
+        assertFalse(parser.parse(frame, 0, frame.length, response));
+        assertEquals(ResponseParser.UNKNOWN, response.getType());
+        assertEquals("{count:2}", response.getPayload());
+        assertEquals(2, response.getInt("count", -1));
+    }
+
+    @Test
+    public void fields_areReadByKey() {
+        parse("RECORDED {codeLen:32,codeType:3,codeValue:4294967295}");
+        assertEquals(32, response.getInt("codeLen", -1));
+        assertEquals(3, response.getInt("CODETYPE", -1));
+        assertEquals(4294967295L, response.getLong("codeValue", -1));
+        assertEquals("32", response.getString("codeLen"));
+        assertEquals("{codeLen:32,codeType:3,codeValue:4294967295}", response.getPayload());
+    }
+
+    @Test
+    public void missingOrTextFields_giveTheDefault() {
+        parse("PING {current_state:IDL_STATE,BIN:1}");
+        assertEquals("IDL_STATE", response.getString("current_state"));
+        assertEquals(1, response.getInt("BIN", 0));
+        assertEquals(-1, response.getInt("current_state", -1));
+        assertEquals(-1, response.getInt("STATE", -1)); // Not a key of its own
+        assertNull(response.getString("codeLen"));
+    }
+
+    @Test
+    public void number_isTheFirstOfThePayload() {
+        parse("BTN_PRESSED {12}");
+        assertEquals(12, response.getNumber(-1));
+
+        parse("BTN_PRESSED {}");
+        assertEquals(-1, response.getNumber(-1));
+    }
+
+    @Test
+    public void errors_areFoundInAnyVerb() {
+        parse("SET_STATE {ERROR:UNKNOWN_STATE}");
+        assertEquals(ResponseParser.SET_STATE, response.getType());
+        assertTrue(response.isError());
+
+        parse("SET_STATE {SUCC:BUT_STATE}");
+        assertFalse(response.isError());
+    }
+
+    @Test
+    public void frame_isParsedInPlace() {
+        byte[] buffer = "xxPING {current_state:BUT_STATE}yy".getBytes();
+        assertTrue(parser.parse(buffer, 2, buffer.length - 4, response));
+        assertEquals("PING {current_state:BUT_STATE}", response.getText());
+        assertEquals("BUT_STATE", response.getString("current_state"));
+    }
+
+    @Test
+    public void binaryFrame_givesTypeAndPayload() {
+        byte[] payload = "{codeLen:32,codeType:3,codeValue:7}".getBytes();
+        byte[] frame = BinaryFrameCodec.encode(ResponseParser.SENT, payload, 0, payload.length);
+        assertTrue(parser.parse(frame, 0, frame.length, response));
+        assertEquals(ResponseParser.SENT, response.getType());
+        assertEquals("{codeLen:32,codeType:3,codeValue:7}", response.getText());
+        assertEquals(7, response.getInt("codeValue", -1));
+        assertFalse(response.isError());
+    }
+
+    private int parse(String text) {
+        byte[] frame = text.getBytes();
+        parser.parse(frame, 0, frame.length, response);
+        return response.getType();
+    }
+}
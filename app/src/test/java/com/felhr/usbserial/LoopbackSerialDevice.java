@@ -0,0 +1,430 @@
+package com.felhr.usbserial;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serial port backed by in-memory pipes instead of a USB device, so the serial stack can be
+ * driven on the JVM without an Android USB host.
+ *
+ * Bytes written by the host are handed to a {@link Peer} (ie.: a simulation of the module) and
+ * bytes sent by the peer with {@link #deliver(byte[], int, int)} reach the read callback, or
+ * syncRead(). Both directions are split into packets of the configured size, each delayed by the
+ * configured latency, paced at the configured baud rate (10 bits per byte) and dropped with the
+ * configured probability, like USB packets of a serial adapter. Each direction draws its losses
+ * from its own seeded generator, so they do not depend on how the two directions interleave.
+ */
+public class LoopbackSerialDevice implements UsbSerialInterface
+{
+    public static final int DEFAULT_PACKET_SIZE = 64;
+    private static final int READ_BUFFERS = 16;
+
+    /**
+     * Far end of the line.
+     */
+    public interface Peer
+    {
+        /**
+         * Called with the bytes of a packet written by the host, from the host to peer pipe.
+         */
+        void onHostData(LoopbackSerialDevice device, byte[] data, int offset, int length);
+    }
+
+    private final Peer peer;
+    private final Pipe toPeer = new Pipe("LoopbackToPeer", true);
+    private final Pipe toHost = new Pipe("LoopbackToHost", false);
+    private final ReadBufferPool readPool = new ReadBufferPool(READ_BUFFERS, DEFAULT_PACKET_SIZE, false);
+    private final LinkedBlockingQueue<byte[]> syncReads = new LinkedBlockingQueue<>();
+    private byte[] syncPending; // Packet partially consumed by syncRead
+    private int syncPendingOffset;
+
+    private volatile int packetSize = DEFAULT_PACKET_SIZE;
+    private volatile long latencyNanos;
+    private volatile int baudRate;
+    private volatile double lossRate;
+
+    private volatile UsbReadCallback readCallback;
+    private volatile UsbReadBufferCallback readBufferCallback;
+    private volatile boolean open;
+
+    private long bytesWritten;
+    private long bytesDelivered;
+
+    public LoopbackSerialDevice(Peer peer)
+    {
+        this.peer = peer;
+    }
+
+    // Simulation settings
+
+    /**
+     * Largest packet in both directions, up to {@link #DEFAULT_PACKET_SIZE}.
+     */
+    public void setPacketSize(int packetSize)
+    {
+        this.packetSize = Math.max(1, Math.min(packetSize, DEFAULT_PACKET_SIZE));
+    }
+
+    /**
+     * Delay added to every packet, in ms.
+     */
+    public void setLatency(long latencyMs)
+    {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+    }
+
+    /**
+     * Probability for a packet to be lost, in both directions.
+     */
+    public void setPacketLoss(double lossRate, long seed)
+    {
+        toPeer.setSeed(seed);
+        toHost.setSeed(~seed);
+        this.lossRate = lossRate;
+    }
+
+    // Statistics
+
+    public synchronized long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    public synchronized long getBytesDelivered()
+    {
+        return bytesDelivered;
+    }
+
+    public long getPacketsLost()
+    {
+        return getPacketsLostToPeer() + getPacketsLostToHost();
+    }
+
+    /**
+     * Packets written by the host and lost before reaching the peer.
+     */
+    public long getPacketsLostToPeer()
+    {
+        return toPeer.getPacketsLost();
+    }
+
+    /**
+     * Packets delivered by the peer and lost before reaching the host.
+     */
+    public long getPacketsLostToHost()
+    {
+        return toHost.getPacketsLost();
+    }
+
+    /**
+     * Sends bytes from the peer to the host.
+     */
+    public void deliver(byte[] data, int offset, int length)
+    {
+        toHost.send(data, offset, length);
+    }
+
+    public void deliver(byte[] data)
+    {
+        deliver(data, 0, data.length);
+    }
+
+    // Common Usb Serial Operations (I/O Asynchronous)
+
+    @Override
+    public boolean open()
+    {
+        open = true;
+        toPeer.start();
+        toHost.start();
+        return true;
+    }
+
+    @Override
+    public void write(byte[] buffer)
+    {
+        if(!open)
+            return;
+        synchronized(this)
+        {
+            bytesWritten += buffer.length;
+        }
+        toPeer.send(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(UsbReadCallback mCallback)
+    {
+        readCallback = mCallback;
+        return 0;
+    }
+
+    @Override
+    public int read(UsbReadBufferCallback mCallback)
+    {
+        readBufferCallback = mCallback;
+        return 0;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+        toPeer.stop();
+        toHost.stop();
+        toPeer.clear();
+        toHost.clear();
+        syncReads.clear();
+    }
+
+    // Common Usb Serial Operations (I/O Synchronous)
+
+    @Override
+    public boolean syncOpen()
+    {
+        return open();
+    }
+
+    @Override
+    public int syncWrite(byte[] buffer, int timeout)
+    {
+        write(buffer);
+        return open ? buffer.length : -1;
+    }
+
+    @Override
+    public int syncRead(byte[] buffer, int timeout)
+    {
+        if(syncPending == null)
+        {
+            try
+            {
+                syncPending = timeout > 0 ? syncReads.poll(timeout, TimeUnit.MILLISECONDS) : syncReads.take();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            syncPendingOffset = 0;
+            if(syncPending == null)
+                return 0;
+        }
+        int length = Math.min(buffer.length, syncPending.length - syncPendingOffset);
+        System.arraycopy(syncPending, syncPendingOffset, buffer, 0, length);
+        syncPendingOffset += length;
+        if(syncPendingOffset == syncPending.length)
+            syncPending = null;
+        return length;
+    }
+
+    @Override
+    public void syncClose()
+    {
+        close();
+    }
+
+    // Serial port configuration, the baud rate paces the packets
+
+    @Override
+    public void setBaudRate(int baudRate)
+    {
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public void setDataBits(int dataBits)
+    {
+    }
+
+    @Override
+    public void setStopBits(int stopBits)
+    {
+    }
+
+    @Override
+    public void setParity(int parity)
+    {
+    }
+
+    @Override
+    public void setFlowControl(int flowControl)
+    {
+    }
+
+    // Flow control and status lines are not simulated
+
+    @Override
+    public void setRTS(boolean state)
+    {
+    }
+
+    @Override
+    public void setDTR(boolean state)
+    {
+    }
+
+    @Override
+    public void getCTS(UsbCTSCallback ctsCallback)
+    {
+    }
+
+    @Override
+    public void getDSR(UsbDSRCallback dsrCallback)
+    {
+    }
+
+    @Override
+    public void getBreak(UsbBreakCallback breakCallback)
+    {
+    }
+
+    @Override
+    public void getFrame(UsbFrameCallback frameCallback)
+    {
+    }
+
+    @Override
+    public void getOverrun(UsbOverrunCallback overrunCallback)
+    {
+    }
+
+    @Override
+    public void getParity(UsbParityCallback parityCallback)
+    {
+    }
+
+    private void receive(byte[] packet)
+    {
+        synchronized(this)
+        {
+            bytesDelivered += packet.length;
+        }
+        UsbReadBufferCallback bufferCallback = readBufferCallback;
+        UsbReadCallback callback = readCallback;
+        if(bufferCallback != null)
+        {
+            PooledReadBuffer buffer;
+            try
+            {
+                buffer = readPool.acquireBlocking();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            ByteBuffer backing = buffer.backingBuffer();
+            backing.clear();
+            backing.put(packet);
+            buffer.setLength(packet.length);
+            bufferCallback.onReceivedData(buffer);
+        } else if(callback != null)
+        {
+            callback.onReceivedData(packet);
+        } else
+        {
+            syncReads.add(packet);
+        }
+    }
+
+    private static class Packet implements Delayed
+    {
+        final byte[] data;
+        final long dueNanos;
+
+        Packet(byte[] data, long dueNanos)
+        {
+            this.data = data;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other)
+        {
+            long diff = dueNanos - ((Packet) other).dueNanos;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    /*
+     * One direction of the line: packets are queued with the time they arrive at, and handed to
+     * their destination by the thread of the pipe.
+     */
+    private class Pipe extends SerialIoThread
+    {
+        private final boolean toPeer;
+        private final DelayQueue<Packet> packets = new DelayQueue<>();
+        private final Random random = new Random(0);
+        private long lineFreeNanos; // When the last queued packet is done on the wire
+        private long packetsLost;
+
+        Pipe(String name, boolean toPeer)
+        {
+            super(name);
+            this.toPeer = toPeer;
+        }
+
+        synchronized void setSeed(long seed)
+        {
+            random.setSeed(seed);
+        }
+
+        synchronized long getPacketsLost()
+        {
+            return packetsLost;
+        }
+
+        synchronized void send(byte[] data, int offset, int length)
+        {
+            int size = packetSize;
+            for(int i = offset; i < offset + length; i += size)
+            {
+                int count = Math.min(size, offset + length - i);
+                long now = System.nanoTime();
+                long wireNanos = baudRate > 0 ? count * 10L * 1000000000L / baudRate : 0;
+                lineFreeNanos = Math.max(lineFreeNanos + 1, now) + wireNanos;
+                double rate = lossRate;
+                if(rate > 0 && random.nextDouble() < rate)
+                {
+                    packetsLost++;
+                    continue;
+                }
+                byte[] packet = new byte[count];
+                System.arraycopy(data, i, packet, 0, count);
+                // Arrival times strictly increase, so the delay queue keeps the packets in order
+                packets.add(new Packet(packet, lineFreeNanos + latencyNanos));
+            }
+        }
+
+        void clear()
+        {
+            packets.clear();
+        }
+
+        @Override
+        protected void doWork()
+        {
+            Packet packet;
+            try
+            {
+                packet = packets.take();
+            } catch (InterruptedException e)
+            {
+                return; // Stopped
+            }
+            if(toPeer)
+                peer.onHostData(LoopbackSerialDevice.this, packet.data, 0, packet.data.length);
+            else
+                receive(packet.data);
+        }
+    }
+}
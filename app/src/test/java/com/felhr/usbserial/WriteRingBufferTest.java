@@ -0,0 +1,187 @@
+package com.felhr.usbserial;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the write ring buffer, run on the development machine (host).
+ */
+public class WriteRingBufferTest {
+
+    private static final long JOIN_TIMEOUT_MS = 2000;
+
+    private final WriteRingBuffer ring = new WriteRingBuffer(16, WriteRingBuffer.POLICY_BLOCK);
+
+    @Test
+    public void put_wrapsAroundTheEnd() {
+        byte[] dst = new byte[16];
+        for (int round = 0; round < 5; round++) {
+            assertTrue(ring.put(bytes(11, round * 11), 0, 11));
+            assertEquals(11, ring.available());
+            assertEquals(11, ring.poll(dst, 0, dst.length));
+            assertArrayEquals(bytes(11, round * 11), Arrays.copyOf(dst, 11));
+        }
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void failFast_rejectsWholeWriteWhenFull() {
+        ring.setPolicy(WriteRingBuffer.POLICY_FAIL_FAST);
+        assertTrue(ring.put(bytes(12, 0), 0, 12));
+        assertFalse(ring.put(bytes(8, 100), 0, 8));
+        assertTrue(ring.put(bytes(4, 100), 0, 4));
+        assertArrayEquals(concat(bytes(12, 0), bytes(4, 100)), takeAll());
+    }
+
+    @Test
+    public void overwrite_dropsOldestBytes() {
+        ring.setPolicy(WriteRingBuffer.POLICY_OVERWRITE);
+        assertTrue(ring.put(bytes(12, 0), 0, 12));
+        assertTrue(ring.put(bytes(8, 100), 0, 8));
+        assertArrayEquals(concat(bytes(8, 4), bytes(8, 100)), takeAll());
+
+        // Only the newest bytes of a write longer than the ring survive
+        assertTrue(ring.put(bytes(20, 0), 0, 20));
+        assertArrayEquals(bytes(16, 4), takeAll());
+    }
+
+    @Test
+    public void block_waitsForConsumer() throws InterruptedException {
+        assertTrue(ring.put(bytes(12, 0), 0, 12));
+        Producer producer = startProducer(bytes(8, 100));
+
+        byte[] dst = new byte[6];
+        assertEquals(6, ring.take(dst));
+        assertArrayEquals(bytes(6, 0), dst);
+        producer.join();
+        assertTrue(producer.result.get());
+        assertArrayEquals(concat(bytes(6, 6), bytes(8, 100)), takeAll());
+    }
+
+    @Test
+    public void clear_releasesBlockedProducer() throws InterruptedException {
+        assertTrue(ring.put(bytes(12, 0), 0, 12));
+        Producer producer = startProducer(bytes(8, 100));
+
+        Thread clearing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ring.clear();
+            }
+        });
+        clearing.start();
+        clearing.join(JOIN_TIMEOUT_MS);
+        assertFalse("clear() blocked by a waiting producer", clearing.isAlive());
+
+        producer.join();
+        assertTrue(producer.result.get());
+        assertArrayEquals(bytes(8, 100), takeAll());
+    }
+
+    @Test
+    public void close_rejectsBlockedProducerAndLaterWrites() throws InterruptedException {
+        assertTrue(ring.put(bytes(12, 0), 0, 12));
+        Producer producer = startProducer(bytes(8, 100));
+
+        ring.close();
+        producer.join();
+        assertFalse(producer.result.get());
+        assertEquals(0, ring.available());
+        assertFalse(ring.put(bytes(4, 0), 0, 4));
+
+        ring.open();
+        assertTrue(ring.put(bytes(4, 0), 0, 4));
+        assertEquals(4, ring.available());
+    }
+
+    @Test
+    public void close_releasesBacklogWaiter() throws InterruptedException {
+        assertTrue(ring.put(bytes(12, 0), 0, 12));
+        final AtomicBoolean result = new AtomicBoolean(true);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(ring.awaitPendingAtMost(4));
+            }
+        });
+        waiter.start();
+        awaitBlocked(waiter);
+
+        ring.close();
+        waiter.join(JOIN_TIMEOUT_MS);
+        assertFalse(waiter.isAlive());
+        assertFalse(result.get());
+    }
+
+    @Test
+    public void interruptedPut_writesNothing() throws InterruptedException {
+        assertTrue(ring.put(bytes(12, 0), 0, 12));
+        Producer producer = startProducer(bytes(8, 100));
+
+        producer.thread.interrupt();
+        producer.join();
+        assertFalse(producer.result.get());
+        assertArrayEquals(bytes(12, 0), takeAll());
+    }
+
+    @Test
+    public void blockingPut_longerThanRingIsRejected() {
+        assertFalse(ring.put(bytes(17, 0), 0, 17));
+        assertEquals(0, ring.available());
+    }
+
+    private class Producer {
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread thread;
+
+        void join() throws InterruptedException {
+            thread.join(JOIN_TIMEOUT_MS);
+            assertFalse("producer still blocked", thread.isAlive());
+        }
+    }
+
+    // Starts a producer writing data, and returns once it waits for space
+    private Producer startProducer(final byte[] data) throws InterruptedException {
+        final Producer producer = new Producer();
+        producer.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                producer.result.set(ring.put(data, 0, data.length));
+            }
+        });
+        producer.thread.start();
+        awaitBlocked(producer.thread);
+        return producer;
+    }
+
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MS;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("thread did not block", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private byte[] takeAll() {
+        byte[] dst = new byte[ring.available()];
+        assertEquals(dst.length, ring.poll(dst, 0, dst.length));
+        return dst;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] data = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, data, first.length, second.length);
+        return data;
+    }
+
+    private static byte[] bytes(int length, int first) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (first + i);
+        return data;
+    }
+}
@@ -0,0 +1,72 @@
+package ca.ergotera.remote_ir.benchmarks;
+
+import com.felhr.usbserial.FTDIPackets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removal of the FTDI status bytes from a read of the given length: the copying adaptArray against
+ * the in place compaction used by syncRead (array) and the read threads (direct buffer). Run with
+ * -prof gc, compact allocates nothing.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FTDIPacketsBenchmark {
+
+    @Param({"64", "512", "16384"})
+    public int length;
+
+    private byte[] read;
+    private byte[] array;
+    private ByteBuffer direct;
+    private final byte[] scratch = new byte[FTDIPackets.PAYLOAD_SIZE];
+
+    @Setup
+    public void setUp() {
+        read = new byte[length];
+        new Random(length).nextBytes(read);
+        array = new byte[length];
+        direct = ByteBuffer.allocateDirect(length);
+    }
+
+    @Benchmark
+    public byte[] adaptArray() {
+        return FTDIPackets.adaptArray(read);
+    }
+
+    // The read is copied back first, like a new USB transfer would
+
+    @Benchmark
+    public int compactArray() {
+        System.arraycopy(read, 0, array, 0, length);
+        return FTDIPackets.compact(array, 0, length);
+    }
+
+    @Benchmark
+    public int compactDirect() {
+        direct.clear();
+        direct.put(read);
+        direct.clear();
+        return FTDIPackets.compact(direct, length, scratch);
+    }
+}
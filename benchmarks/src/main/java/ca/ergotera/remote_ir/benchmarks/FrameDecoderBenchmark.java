@@ -0,0 +1,73 @@
+package ca.ergotera.remote_ir.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import ca.ergotera.remote_ir.serial_com.FrameDecoder;
+import ca.ergotera.remote_ir.serial_com.ResponseParser;
+
+/**
+ * Receive path of CommandManager.UsbHandler.parseResponse, from a USB read to the parsed
+ * responses: the read is split into frames by FrameDecoder and each frame is parsed. The
+ * handler itself runs on an Android Looper and is not built here.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"BTN_PRESSED {3}", "SENT {codeLen:32,codeType:3,codeValue:16689239}"})
+    public String response;
+
+    // Responses coalesced in the same read
+    @Param({"1", "4"})
+    public int responses;
+
+    private ByteBuffer data;
+    private FrameDecoder decoder;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        StringBuilder read = new StringBuilder();
+        for (int i = 0; i < responses; i++)
+            read.append(response).append("\r\n");
+        data = ByteBuffer.wrap(read.toString().getBytes(UTF_8));
+        final ResponseParser parser = new ResponseParser();
+        final ResponseParser.Response response = new ResponseParser.Response();
+        decoder = new FrameDecoder(new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                parser.parse(buffer, offset, length, response);
+                blackhole.consume(response.getType() == ResponseParser.BTN_PRESSED
+                        ? response.getNumber(-1) : response.getInt("codeValue", -1));
+            }
+        });
+    }
+
+    @Benchmark
+    public void decodeRead() {
+        data.rewind();
+        decoder.decode(data);
+    }
+}
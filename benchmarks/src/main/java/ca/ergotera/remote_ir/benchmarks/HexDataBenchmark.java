@@ -0,0 +1,65 @@
+package ca.ergotera.remote_ir.benchmarks;
+
+import com.felhr.utils.HexData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hexadecimal dumps of serial data, as printed by UsbSerialDebugger and the command logs.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexDataBenchmark {
+
+    @Param({"16", "64", "512"})
+    public int length;
+
+    private byte[] data;
+    private String hex;
+
+    @Setup
+    public void setUp() {
+        data = new byte[length];
+        new Random(length).nextBytes(data);
+        hex = HexData.hexToString(data);
+    }
+
+    @Benchmark
+    public String hexToString() {
+        return HexData.hexToString(data);
+    }
+
+    @Benchmark
+    public String legacyHexToString() {
+        return LegacyHexData.hexToString(data);
+    }
+
+    @Benchmark
+    public byte[] stringTobytes() {
+        return HexData.stringTobytes(hex);
+    }
+
+    @Benchmark
+    public byte[] legacyStringTobytes() {
+        return LegacyHexData.stringTobytes(hex);
+    }
+}
@@ -0,0 +1,44 @@
+package ca.ergotera.remote_ir.benchmarks;
+
+/**
+ * Copy of the regex and substring based HexData.stringTobytes and of the StringBuilder based
+ * HexData.hexToString, kept as the baseline of the hexadecimal benchmarks.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class LegacyHexData {
+
+    private static final String HEXES = "0123456789ABCDEF";
+    private static final String HEX_INDICATOR = "0x";
+    private static final String SPACE = " ";
+
+    private LegacyHexData() {
+    }
+
+    public static String hexToString(byte[] data) {
+        StringBuilder hex = new StringBuilder(2 * data.length);
+        for (int i = 0; i <= data.length - 1; i++) {
+            byte dataAtIndex = data[i];
+            hex.append(HEX_INDICATOR);
+            hex.append(HEXES.charAt((dataAtIndex & 0xF0) >> 4))
+                    .append(HEXES.charAt((dataAtIndex & 0x0F)));
+            hex.append(SPACE);
+        }
+        return hex.toString();
+    }
+
+    public static byte[] stringTobytes(String hexString) {
+        String stringProcessed = hexString.trim().replaceAll("0x", "");
+        stringProcessed = stringProcessed.replaceAll("\\s+", "");
+        byte[] data = new byte[stringProcessed.length() / 2];
+        int i = 0;
+        int j = 0;
+        while (i <= stringProcessed.length() - 1) {
+            byte character = (byte) Integer.parseInt(stringProcessed.substring(i, i + 2), 16);
+            data[j] = character;
+            j++;
+            i += 2;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,34 @@
+package ca.ergotera.remote_ir.benchmarks;
+
+import ca.ergotera.remote_ir.serial_com.CommandListener;
+
+/**
+ * Copy of the String based parser previously used by CommandManager.UsbHandler, kept as the
+ * baseline of the parser benchmarks. Logging was removed.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+public class LegacyResponseParser {
+
+    public void parseResponse(String response, CommandListener commandListener) {
+        // Makes the parser non-case sensitive.
+        String lowerCaseResponse = response.toLowerCase();
+
+        if (!lowerCaseResponse.contains("error")) {
+            if (lowerCaseResponse.contains("recorded {")) {
+                commandListener.recorded_IR_code(response.substring(9));
+            } else if (lowerCaseResponse.contains("ping {current_state:")) {
+                commandListener.ping_response(response.substring(5));
+            } else if (lowerCaseResponse.contains("btn_pressed {")) {
+                String s = lowerCaseResponse.substring(13, 14);
+                commandListener.external_button_pressed(Integer.parseInt(s));
+            } else if (lowerCaseResponse.contains("set_state {succ:")) {
+                commandListener.state_set_success(response.substring(10));
+            } else if (lowerCaseResponse.contains("sent ")) {
+                commandListener.send_IR_success(response.substring(5));
+            }
+        } else {
+            commandListener.handle_error(response);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ca.ergotera.remote_ir.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import ca.ergotera.remote_ir.serial_com.CommandListener;
+import ca.ergotera.remote_ir.serial_com.ResponseParser;
+
+/**
+ * Parsing of one response of the module, from the bytes received to the listener call.
+ * The legacy parser is given the bytes too: it used to receive them as a String built by
+ * UsbService for every chunk.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParserBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({
+            "BTN_PRESSED {3}",
+            "PING {CURRENT_STATE:IDL_STATE}",
+            "SET_STATE {SUCC:REC_STATE}",
+            "RECORDED {PROTOCOL:NEC,BITS:32,CODE:20DF10EF,RAW:8950,4450,600,550,600,1650,600,550,600,550}"
+    })
+    public String frame;
+
+    private byte[] bytes;
+    private BlackholeListener listener;
+    private LegacyResponseParser legacyParser;
+    private ResponseParser parser;
+    private ResponseParser.Response response;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        bytes = frame.getBytes(UTF_8);
+        listener = new BlackholeListener(blackhole);
+        legacyParser = new LegacyResponseParser();
+        parser = new ResponseParser();
+        response = new ResponseParser.Response();
+    }
+
+    @Benchmark
+    public void legacy() {
+        legacyParser.parseResponse(new String(bytes, UTF_8), listener);
+    }
+
+    @Benchmark
+    public void byteParser() {
+        parser.parse(bytes, 0, bytes.length, response);
+        if (response.isError()) {
+            listener.handle_error(response.getText());
+            return;
+        }
+        // Same dispatch as CommandManager.UsbHandler
+        switch (response.getType()) {
+            case ResponseParser.RECORDED:
+                listener.recorded_IR_code(response.getPayload());
+                break;
+            case ResponseParser.PING:
+                listener.ping_response(response.getPayload());
+                break;
+            case ResponseParser.BTN_PRESSED:
+                listener.external_button_pressed(response.getNumber(-1));
+                break;
+            case ResponseParser.SET_STATE:
+                listener.state_set_success(response.getPayload());
+                break;
+            case ResponseParser.SENT:
+                listener.send_IR_success(response.getPayload());
+                break;
+        }
+    }
+
+    private static class BlackholeListener implements CommandListener {
+        private final Blackhole blackhole;
+
+        BlackholeListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void external_button_pressed(int button_id) {
+            blackhole.consume(button_id);
+        }
+
+        @Override
+        public void recorded_IR_code(String code_data) {
+            blackhole.consume(code_data);
+        }
+
+        @Override
+        public void handle_error(String error) {
+            blackhole.consume(error);
+        }
+
+        @Override
+        public void ping_response(String ping) {
+            blackhole.consume(ping);
+        }
+
+        @Override
+        public void state_set_success(String current_state) {
+            blackhole.consume(current_state);
+        }
+
+        @Override
+        public void send_IR_success(String sent_ir) {
+            blackhole.consume(sent_ir);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ca.ergotera.remote_ir.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.ergotera.remote_ir.utils.Utils;
+
+/**
+ * Conversions of the button ids of an interface to and from their database column.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Param({"8", "64"})
+    public int buttons;
+
+    private int[] ids;
+    private String column;
+
+    @Setup
+    public void setUp() {
+        ids = new int[buttons];
+        for (int i = 0; i < buttons; i++)
+            ids[i] = 1000 + i * 7;
+        column = Utils.convertIntArrayToString(ids);
+    }
+
+    @Benchmark
+    public String convertIntArrayToString() {
+        return Utils.convertIntArrayToString(ids);
+    }
+
+    @Benchmark
+    public int[] convertStrArrayToIntArray() {
+        return Utils.convertStrArrayToIntArray(column);
+    }
+}
@@ -0,0 +1,59 @@
+package ca.ergotera.remote_ir.benchmarks;
+
+import com.felhr.usbserial.WriteRingBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write path of SerialBuffer: a command put by the application then taken by the write thread.
+ * SerialBuffer itself is not built here, its debugging hooks use android.util.Log, so its ring
+ * buffer is measured with the same settings.
+ *
+ * Copyright 2018, Ergotera Technologies, All rights reserved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteRingBufferBenchmark {
+
+    private static final int CAPACITY = 16 * 1024; // SerialBuffer.DEFAULT_WRITE_BUFFER_SIZE
+    private static final int PACKET_SIZE = 64;
+
+    @Param({"12", "64", "1024"})
+    public int length;
+
+    private WriteRingBuffer ring;
+    private byte[] command;
+    private byte[] packet;
+
+    @Setup
+    public void setUp() {
+        ring = new WriteRingBuffer(CAPACITY, WriteRingBuffer.POLICY_BLOCK);
+        command = new byte[length];
+        packet = new byte[PACKET_SIZE];
+    }
+
+    @Benchmark
+    public int putThenTake() {
+        ring.put(command, 0, command.length);
+        int taken = 0;
+        while (taken < length)
+            taken += ring.take(packet, 1, 0);
+        return taken;
+    }
+}